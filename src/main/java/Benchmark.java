@@ -0,0 +1,266 @@
+import node.Node;
+import node.Quorum;
+import node.blockchain.Block;
+import node.blockchain.BlockContainer;
+import node.blockchain.BlockSkeleton;
+import node.blockchain.Transaction;
+import node.communication.*;
+import node.communication.utils.Hash256;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.function.BooleanSupplier;
+
+import static node.communication.utils.Hashing.getSHAString;
+import static node.communication.utils.Hashing.hash;
+
+/**
+ * Microbenchmarks for the node's building blocks. codec and quorum run offline, blocks
+ * runs a quorum of nodes on local ports
+ * Usage: Benchmark <codec|quorum|blocks>
+ */
+public class Benchmark {
+
+    public static void main(String[] args) throws Exception {
+        if(args.length > 0 && args[0].equals("codec")){
+            benchmarkCodecs();
+        }else if(args.length > 0 && args[0].equals("quorum")){
+            benchmarkQuorum();
+        }else if(args.length > 0 && args[0].equals("blocks")){
+            benchmarkBlockTriggers();
+        }else{
+            System.out.println("Usage: Benchmark <codec|quorum|blocks>");
+        }
+    }
+
+    /**
+     * Compares encoded size and encode + decode throughput of the legacy Java serialization
+     * against the binary codec, for a representative message of every request type, and the
+     * size each would be sent at with DEFLATE and GZIP frame compression
+     */
+    private static void benchmarkCodecs() throws IOException {
+        LinkedHashMap<String, Message> samples = sampleMessages();
+        MessageCodec[] codecs = {new SerializedMessageCodec(), new BinaryMessageCodec()};
+        FrameCompression deflate = new FrameCompression(FrameCompression.DEFLATE, 0);
+        FrameCompression gzip = new FrameCompression(FrameCompression.GZIP, 0);
+
+        System.out.printf("%-22s %12s %12s %14s %14s %12s %12s%n", "Message", "Serial B", "Binary B",
+                "Serial op/s", "Binary op/s", "Deflate B", "Gzip B");
+        for(Map.Entry<String, Message> sample : samples.entrySet()){
+            long[] sizes = new long[codecs.length];
+            long[] rates = new long[codecs.length];
+            for(int c = 0; c < codecs.length; c++){
+                sizes[c] = codecs[c].encode(sample.getValue()).length;
+                rates[c] = roundTripsPerSecond(codecs[c], sample.getValue());
+            }
+            byte[] binary = codecs[1].encode(sample.getValue());
+            System.out.printf("%-22s %12d %12d %14d %14d %12d %12d%n", sample.getKey(), sizes[0], sizes[1], rates[0], rates[1],
+                    compressedSize(deflate, binary), compressedSize(gzip, binary));
+        }
+    }
+
+    /**
+     * Compares what every consensus message used to pay to find the quorum, deriving it
+     * from the tip block, with looking it up in the quorum cached for the tip, for tips of
+     * growing size and a quorum of 10 among 100 nodes
+     */
+    private static void benchmarkQuorum() {
+        int numNodes = 100, quorumSize = 10, startingPort = 8000;
+        Address member = new Address(startingPort, "localhost");
+        System.out.printf("%-10s %14s %14s %10s%n", "Tip txs", "Derive ns", "Cached ns", "Speedup");
+        for(int size : new int[]{0, 10, 100, 1000, 10000}){
+            HashMap<Hash256, Transaction> txList = new HashMap<>();
+            for(int i = 0; i < size; i++){
+                Transaction transaction = new Transaction("transaction-" + i);
+                txList.put(hash(transaction.getData()), transaction);
+            }
+            Block tip = new Block(txList, hash("previous"), 42);
+            Quorum cached = new Quorum(tip, Quorum.derive(tip, 0, numNodes, quorumSize, startingPort), member);
+
+            double derive = nanosPerOp(() -> Quorum.derive(tip, 0, numNodes, quorumSize, startingPort).contains(member));
+            /* What Node.getQuorum does while the tip is unchanged */
+            double lookup = nanosPerOp(() -> cached.getTip() == tip && cached.contains(member));
+            System.out.printf("%-10d %14.1f %14.1f %9.0fx%n", size, derive, lookup, derive / lookup);
+        }
+    }
+
+    /**
+     * Traces commit latency against throughput for fixed block sizes and for adaptive sizing.
+     * Each setting runs a fresh quorum of 4 nodes voting by broadcast, offered a light and a
+     * heavy load, and reports the transactions committed per second with the mean and 95th
+     * percentile time from submitting a transaction to its block being committed
+     */
+    private static void benchmarkBlockTriggers() throws Exception {
+        LinkedHashMap<String, String[]> settings = new LinkedHashMap<>();
+        /* BLOCK_SIZE, BLOCK_MAX_TXS, BLOCK_MAX_WAIT_MS */
+        settings.put("fixed 10 / 20ms", new String[]{"FIXED", "10", "20"});
+        settings.put("fixed 100 / 100ms", new String[]{"FIXED", "100", "100"});
+        settings.put("fixed 1000 / 500ms", new String[]{"FIXED", "1000", "500"});
+        settings.put("adaptive / 100ms", new String[]{"ADAPTIVE", "1000", "100"});
+        int[] loads = {100, 2000};
+        int quorumSize = 4, seconds = 8;
+
+        PrintStream out = System.out;
+        /* The nodes log every transaction */
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        out.printf("%-20s %10s %12s %14s %14s%n", "Trigger", "Offered/s", "Committed/s", "Mean ms", "p95 ms");
+        int startingPort = 7000;
+        String dataDir = Files.createTempDirectory("benchmark-blocks").toString();
+        for(Map.Entry<String, String[]> setting : settings.entrySet()){
+            for(int load : loads){
+                Properties config = new Properties();
+                config.setProperty("VOTING", "BROADCAST");
+                config.setProperty("DATA_DIR", dataDir);
+                config.setProperty("BLOCK_SIZE", setting.getValue()[0]);
+                config.setProperty("BLOCK_MAX_TXS", setting.getValue()[1]);
+                config.setProperty("BLOCK_MAX_WAIT_MS", setting.getValue()[2]);
+                ArrayList<Node> nodes = new ArrayList<>();
+                ArrayList<Address> addresses = new ArrayList<>();
+                for(int i = 0; i < quorumSize; i++){
+                    nodes.add(new Node(startingPort + i, quorumSize + 1, quorumSize - 1, quorumSize, quorumSize, startingPort, 3, config));
+                    addresses.add(new Address(startingPort + i, "localhost"));
+                }
+                for(Node node : nodes){
+                    node.requestConnections(new ArrayList<>(addresses));
+                }
+                startingPort += quorumSize;
+                Thread.sleep(2000);
+
+                HashMap<Hash256, Long> submitted = new HashMap<>();
+                ArrayList<Long> latencies = new ArrayList<>();
+                int height = 1, sent = 0;
+                long start = System.nanoTime();
+                long feedUntil = start + seconds * 1_000_000_000L;
+                long drainUntil = feedUntil + 2_000_000_000L;
+                while(System.nanoTime() < drainUntil){
+                    long now = System.nanoTime();
+                    /* Offer the load at a steady rate in 10ms steps */
+                    while(now < feedUntil && sent < (now - start) * load / 1_000_000_000L){
+                        Transaction transaction = new Transaction("load-" + startingPort + "-" + sent);
+                        Hash256 key = hash(transaction.getData());
+                        submitted.put(key, System.nanoTime());
+                        nodes.get(sent % quorumSize).addTransaction(key, transaction);
+                        sent++;
+                    }
+                    for(Block block = nodes.get(0).getBlock(height); block != null; block = nodes.get(0).getBlock(++height)){
+                        long committedAt = System.nanoTime();
+                        for(Hash256 key : block.getTxList().keySet()){
+                            Long submittedAt = submitted.remove(key);
+                            if(submittedAt != null){
+                                latencies.add(committedAt - submittedAt);
+                            }
+                        }
+                    }
+                    Thread.sleep(10);
+                }
+                Collections.sort(latencies);
+                double mean = latencies.stream().mapToLong(Long::longValue).average().orElse(Double.NaN) / 1e6;
+                double p95 = latencies.isEmpty() ? Double.NaN : latencies.get(latencies.size() * 95 / 100) / 1e6;
+                out.printf("%-20s %10d %12.0f %14.1f %14.1f%n", setting.getKey(), load,
+                        latencies.size() / (double) seconds, mean, p95);
+            }
+        }
+        System.setOut(out);
+        System.exit(0);
+    }
+
+    /**
+     * @return Mean nanoseconds per call, measured for half a second after as long a warm up
+     */
+    private static double nanosPerOp(BooleanSupplier op){
+        boolean sink = false;
+        long warmUps = 0;
+        long start = System.nanoTime();
+        while(System.nanoTime() - start < 500_000_000L){
+            sink ^= op.getAsBoolean();
+            warmUps++;
+        }
+        /* Time calls in batches of about a millisecond so the clock does not dominate fast ones */
+        long batch = Math.max(1, warmUps / 500);
+        long iterations = 0;
+        long elapsed;
+        start = System.nanoTime();
+        do {
+            for(long i = 0; i < batch; i++){
+                sink ^= op.getAsBoolean();
+            }
+            iterations += batch;
+            elapsed = System.nanoTime() - start;
+        } while(elapsed < 500_000_000L);
+        if(sink && iterations < 0){
+            System.out.println();
+        }
+        return (double) elapsed / iterations;
+    }
+
+    /* Frames which would not shrink are sent uncompressed */
+    private static int compressedSize(FrameCompression compression, byte[] payload) throws IOException {
+        byte[] compressed = compression.compress(payload);
+        return compressed == null ? payload.length : compressed.length;
+    }
+
+    private static long roundTripsPerSecond(MessageCodec codec, Message message) throws IOException {
+        /* Warm up so the JIT has compiled both codecs before measuring */
+        for(int i = 0; i < 2000; i++){
+            byte[] payload = codec.encode(message);
+            codec.decode(payload, 0, payload.length);
+        }
+        long iterations = 0;
+        long start = System.nanoTime();
+        long elapsed;
+        do {
+            for(int i = 0; i < 200; i++){
+                byte[] payload = codec.encode(message);
+                codec.decode(payload, 0, payload.length);
+            }
+            iterations += 200;
+            elapsed = System.nanoTime() - start;
+        } while(elapsed < 500_000_000L);
+        return iterations * 1_000_000_000L / elapsed;
+    }
+
+    private static LinkedHashMap<String, Message> sampleMessages() {
+        Address address = new Address(8000, "localhost");
+        HashMap<Hash256, Transaction> txList = new HashMap<>();
+        ArrayList<Transaction> transactions = new ArrayList<>();
+        for(int i = 0; i < 100; i++){
+            Transaction transaction = new Transaction("transaction-" + i);
+            txList.put(hash(transaction.getData()), transaction);
+            transactions.add(transaction);
+        }
+        HashSet<Hash256> keys = new HashSet<>(txList.keySet());
+        Block block = new Block(txList, hash("previous"), 42);
+        BlockContainer blockContainer = new BlockContainer(block);
+        ArrayList<String> signatures = new ArrayList<>();
+        for(int i = 0; i < 10; i++){
+            blockContainer.addSignature(String.valueOf(8000 + i));
+            signatures.add(getSHAString("signature-" + i));
+        }
+        ArrayList<Address> peers = new ArrayList<>();
+        for(int i = 0; i < 10; i++){
+            peers.add(new Address(8000 + i, "localhost"));
+        }
+
+        LinkedHashMap<String, Message> samples = new LinkedHashMap<>();
+        samples.put("PING", new Message(Message.Request.PING));
+        samples.put("REQUEST_CONNECTION", new Message(Message.Request.REQUEST_CONNECTION, address));
+        samples.put("QUERY_PEERS reply", new Message(peers));
+        samples.put("ADD_TRANSACTION", new Message(Message.Request.ADD_TRANSACTION, transactions.get(0)));
+        samples.put("RECEIVE_MEMPOOL x100", new Message(Message.Request.RECEIVE_MEMPOOL, keys));
+        MempoolSketch sketch = MempoolSketch.forDifference(16);
+        sketch.addAll(keys);
+        samples.put("MEMPOOL_SKETCH d=16", new Message(Message.Request.RECEIVE_MEMPOOL_SKETCH, sketch));
+        samples.put("REQUEST_TRANSACTION", new Message(Message.Request.REQUEST_TRANSACTION, new ArrayList<>(keys)));
+        samples.put("RECEIVE_TRANSACTIONS", new Message(Message.Request.RECEIVE_TRANSACTIONS, transactions));
+        samples.put("ADD_BLOCK x100", new Message(Message.Request.ADD_BLOCK, block));
+        samples.put("VOTE_BLOCK x100", new Message(Message.Request.VOTE_BLOCK, blockContainer));
+        ArrayList<Hash256> sortedKeys = new ArrayList<>(keys);
+        Collections.sort(sortedKeys);
+        samples.put("RECEIVE_SKELETON x100", new Message(Message.Request.RECEIVE_SKELETON,
+                new BlockSkeleton(42, block.getPrevBlockHash(), hash("block"), sortedKeys, signatures)));
+        return samples;
+    }
+}
@@ -1,20 +1,23 @@
 import graphing.Graph;
 import graphing.GraphNode;
+import node.Mempool;
+import node.blockchain.Block;
 import node.blockchain.Transaction;
 import node.communication.Address;
 import node.communication.Message;
+import node.communication.utils.Hash256;
 
 import java.io.*;
 import java.net.Socket;
-import java.util.ArrayList;
-import java.util.LinkedList;
-import java.util.Properties;
+import java.util.*;
+
+import static node.communication.utils.Hashing.getSHAString;
 
 //import javax.json.*;
 
 /**
  * One shot client that communicates with the network's nodes
- * Usage: <[graph] [query <portNum>] [trans <portNum> <Transaction String Id>]>
+ * Usage: <[graph] [topology] [query <portNum>] [stats <portNum>] [trans <portNum> <Transaction String Id>] [txstatus <portNum> <Transaction String Id>] [block <portNum> <height|hash>]>
  */
 public class Client {
 
@@ -93,10 +96,58 @@ public class Client {
 //                JsonWriter jsonWriter = Json.createWriter(os);
 //                jsonWriter.writeObject(empJsonObject);
 //                jsonWriter.close();
+            }else if(args[0].equals("topology")){
+                printTopology(startingPort, numNodes);
+            }else if(args[0].equals("stats")){
+                port = Integer.parseInt(args[1]);
+                Map<?, ?> stats = queryStats(port);
+                if (stats != null) {
+                    System.out.println("Node " + port + " stats:");
+                    for (Map.Entry<?, ?> entry : stats.entrySet()) {
+                        System.out.println("  " + entry.getKey() + ": " + entry.getValue());
+                    }
+                }
             }else if(args[0].equals("trans")){
                 port = Integer.parseInt(args[1]);
-                submitTransaction(port, args[2]);
-                System.out.println("Submitted transaction");
+                Object admission = submitTransaction(port, args[2]);
+                if (admission == Mempool.Admission.ACCEPTED) {
+                    System.out.println("Submitted transaction");
+                } else if (admission == Mempool.Admission.DUPLICATE) {
+                    System.out.println("Transaction already pending or committed at node " + port);
+                } else if (admission == Mempool.Admission.FULL) {
+                    System.out.println("Rejected: node " + port + "'s mempool is full, submit again later");
+                } else if (admission == Mempool.Admission.TOO_LARGE) {
+                    System.out.println("Rejected: transaction is larger than node " + port + "'s mempool");
+                }
+            }else if(args[0].equals("txstatus")){
+                port = Integer.parseInt(args[1]);
+                Map<?, ?> status = (Map<?, ?>) queryNode(port,
+                        new Message(Message.Request.QUERY_TRANSACTION, getSHAString(args[2])));
+                if (status == null) {
+                    return;
+                } else if (status.containsKey("height")) {
+                    System.out.println("Committed in block " + status.get("height") + " at position " + status.get("position"));
+                } else if (status.containsKey("mempool")) {
+                    System.out.println("Pending in node " + port + "'s mempool");
+                } else {
+                    System.out.println("Unknown to node " + port);
+                }
+            }else if(args[0].equals("block")){
+                port = Integer.parseInt(args[1]);
+                Object blockId = args[2].matches("\\d+") ? (Object) Integer.valueOf(args[2]) : args[2];
+                Block block = (Block) queryNode(port, new Message(Message.Request.QUERY_BLOCK, blockId));
+                if (block == null) {
+                    System.out.println("No block " + args[2] + " at node " + port);
+                } else {
+                    System.out.println("Block " + block.getBlockId() + ", previous "
+                            + (block.getPrevBlockHash() == null ? "none" : block.getPrevBlockHash())
+                            + ", " + block.getTxList().size() + " transactions");
+                    ArrayList<Hash256> keys = new ArrayList<>(block.getTxList().keySet());
+                    Collections.sort(keys);
+                    for (Hash256 key : keys) {
+                        System.out.println("  " + key + ": " + block.getTxList().get(key));
+                    }
+                }
             }else if(args[0].equals("transEx")){
                 port = 8000;
                 for(int i = 0; i < 10; i++){
@@ -111,10 +162,10 @@ public class Client {
                     }
                 }
             }else{
-                System.out.println("Usage: <[graph] [query <portNum>] [trans <portNum> <Transaction String Id>]>");
+                System.out.println("Usage: <[graph] [topology] [query <portNum>] [stats <portNum>] [trans <portNum> <Transaction String Id>] [txstatus <portNum> <Transaction String Id>] [block <portNum> <height|hash>]>");
             }
         }else{
-            System.out.println("Usage: <[graph] [query <portNum>] [trans <portNum> <Transaction String Id>]>");
+            System.out.println("Usage: <[graph] [topology] [query <portNum>] [stats <portNum>] [trans <portNum> <Transaction String Id>] [txstatus <portNum> <Transaction String Id>] [block <portNum> <height|hash>]>");
         }
     }
 
@@ -143,17 +194,150 @@ public class Client {
         return null;
     }
 
-    private static void submitTransaction(int port, String transaction){
+    /**
+     * Prints every node's peer count and mean peer RTT, then the network's diameter in hops
+     * and in latency. Latency paths add half the measured RTT of each link they cross,
+     * which estimates how long gossip takes to reach the furthest node
+     * @param startingPort First node's port
+     * @param numNodes Amount of nodes to query
+     */
+    private static void printTopology(int startingPort, int numNodes){
+        HashMap<Integer, ArrayList<Integer>> links = new HashMap<>();
+        HashMap<Integer, HashMap<Integer, Long>> rtts = new HashMap<>();
+        long rttSum = 0;
+        int rttCount = 0;
+        for (int i = 0; i < numNodes; i++) {
+            int port = startingPort + i;
+            ArrayList<Address> localPeers = queryPeer(port);
+            if (localPeers == null) {
+                continue;
+            }
+            ArrayList<Integer> peerPorts = new ArrayList<>();
+            for (Address address : localPeers) {
+                peerPorts.add(address.getPort());
+            }
+            links.put(port, peerPorts);
+            HashMap<Integer, Long> peerRtts = new HashMap<>();
+            Map<?, ?> stats = queryStats(port);
+            if (stats != null) {
+                for (Map.Entry<?, ?> entry : stats.entrySet()) {
+                    String key = String.valueOf(entry.getKey());
+                    if (key.startsWith("peerRttMicros:")) {
+                        long rtt = (Long) entry.getValue();
+                        peerRtts.put(Integer.parseInt(key.substring("peerRttMicros:".length())), rtt);
+                        rttSum += rtt;
+                        rttCount++;
+                    }
+                }
+                System.out.println("Node " + port + ": " + peerPorts.size() + " peers, mean RTT "
+                        + stats.get("meanPeerRttMicros") + " us");
+            }
+            rtts.put(port, peerRtts);
+        }
+        long defaultRtt = rttCount == 0 ? 0 : rttSum / rttCount;
+
+        int hopDiameter = 0, unreachable = 0;
+        long latencyDiameter = 0;
+        for (int source : links.keySet()) {
+            HashMap<Integer, Integer> hops = new HashMap<>();
+            ArrayDeque<Integer> frontier = new ArrayDeque<>();
+            hops.put(source, 0);
+            frontier.add(source);
+            while (!frontier.isEmpty()) {
+                int node = frontier.poll();
+                for (int peer : links.getOrDefault(node, new ArrayList<>())) {
+                    if (!hops.containsKey(peer)) {
+                        hops.put(peer, hops.get(node) + 1);
+                        frontier.add(peer);
+                    }
+                }
+            }
+            /* Dijkstra over one-way latencies */
+            HashMap<Integer, Long> latency = new HashMap<>();
+            PriorityQueue<long[]> queue = new PriorityQueue<>(Comparator.comparingLong(entry -> entry[1]));
+            latency.put(source, 0L);
+            queue.add(new long[]{source, 0});
+            while (!queue.isEmpty()) {
+                long[] entry = queue.poll();
+                int node = (int) entry[0];
+                if (entry[1] > latency.get(node) || !links.containsKey(node)) {
+                    continue;
+                }
+                for (int peer : links.get(node)) {
+                    long next = entry[1] + rtts.get(node).getOrDefault(peer, defaultRtt) / 2;
+                    if (!latency.containsKey(peer) || next < latency.get(peer)) {
+                        latency.put(peer, next);
+                        queue.add(new long[]{peer, next});
+                    }
+                }
+            }
+            unreachable += links.size() - latency.keySet().stream().filter(links::containsKey).count();
+            for (long value : latency.values()) {
+                latencyDiameter = Math.max(latencyDiameter, value);
+            }
+            for (int value : hops.values()) {
+                hopDiameter = Math.max(hopDiameter, value);
+            }
+        }
+        System.out.println("Nodes: " + links.size() + ", mean RTT " + defaultRtt + " us");
+        System.out.println("Diameter: " + hopDiameter + " hops, " + latencyDiameter + " us");
+        if (unreachable > 0) {
+            System.out.println("Partitioned: " + unreachable + " ordered pairs of nodes cannot reach each other");
+        }
+    }
+
+    /**
+     * Queries a specified node's counters given its port, assuming localhost
+     * @param port
+     * @return Map of counter names to values
+     */
+    private static Map<?, ?> queryStats(int port){
+        try {
+            Socket s = new Socket("localhost", port);
+            InputStream in = s.getInputStream();
+            ObjectInputStream oin = new ObjectInputStream(in);
+            OutputStream out = s.getOutputStream();
+            ObjectOutputStream oout = new ObjectOutputStream(out);
+            oout.writeObject(new Message(Message.Request.QUERY_STATS));
+            oout.flush();
+            Message messageReceived = (Message) oin.readObject();
+            s.close();
+            return (Map<?, ?>) messageReceived.getMetadata();
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("Error occurred");
+        }
+        return null;
+    }
+
+    /**
+     * Sends a query to a specified node given its port, assuming localhost
+     * @param port
+     * @param message
+     * @return The metadata of the reply
+     */
+    private static Object queryNode(int port, Message message){
         try {
             Socket s = new Socket("localhost", port);
+            InputStream in = s.getInputStream();
+            ObjectInputStream oin = new ObjectInputStream(in);
             OutputStream out = s.getOutputStream();
             ObjectOutputStream oout = new ObjectOutputStream(out);
-            Message message = new Message(Message.Request.ADD_TRANSACTION, new Transaction(transaction));
             oout.writeObject(message);
             oout.flush();
+            Message messageReceived = (Message) oin.readObject();
             s.close();
-        } catch (IOException e) {
-            //System.out.println("Error occurred");
+            return messageReceived.getMetadata();
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("Error occurred");
         }
+        return null;
+    }
+
+    /**
+     * Submits a transaction to a node, assuming localhost
+     * @return The node's Mempool.Admission of it, or null if the node could not be reached
+     */
+    private static Object submitTransaction(int port, String transaction){
+        return queryNode(port, new Message(Message.Request.SUBMIT_TRANSACTION, new Transaction(transaction)));
     }
 }
@@ -29,7 +29,9 @@ public class NetworkLauncher {
                 "\n     Specifies the time for a subnet to wait before seeking out connections. " +
                 "\n     Useful to allow all subnets to bind to their ports before connecting" +
                 "\n\n Default: NetworkLauncher will launch number of nodes specified in config.properties " +
-                "\n on localhost with no other scope of nodes";
+                "\n on localhost with no other scope of nodes" +
+                "\n\n With DISCOVERY=SEEDS in config.properties each node is only given the first SEEDS" +
+                "\n addresses of the network and discovers the others from them";
         try {
             /* Grab values from config file */
             String configFilePath = "src/main/java/config.properties";
@@ -78,7 +80,7 @@ public class NetworkLauncher {
                     myNodesEndingPort = Integer.parseInt(args[currentArg + 2]);
 
                     for(int i = myNodesStartingPort; i < myNodesEndingPort; i++){
-                        nodes.add(new Node(i, maxConnections, minConnections, numNodes, quorumSize, startingPort, minTransactionsPerBlock));
+                        nodes.add(new Node(i, maxConnections, minConnections, numNodes, quorumSize, startingPort, minTransactionsPerBlock, prop));
                         globalPeers.add(new Address(i, "localhost"));
                     }
 
@@ -103,7 +105,7 @@ public class NetworkLauncher {
             if(!oFlag){
                 for(int i = startingPort; i < startingPort + numNodes; i++){
                     globalPeers.add(new Address(i, "localhost"));
-                    nodes.add(new Node(i, maxConnections, minConnections, numNodes, quorumSize, startingPort, minTransactionsPerBlock));
+                    nodes.add(new Node(i, maxConnections, minConnections, numNodes, quorumSize, startingPort, minTransactionsPerBlock, prop));
                 }
             }
 
@@ -113,7 +115,11 @@ public class NetworkLauncher {
                 throw new RuntimeException(e);
             }
             NetworkLauncher n = new NetworkLauncher();
-            n.startNetworkClients(globalPeers, nodes); // Begins network connections
+            if(prop.getProperty("DISCOVERY", "GLOBAL").trim().equalsIgnoreCase("SEEDS")){
+                n.startSeededNetworkClients(globalPeers, nodes, Integer.parseInt(prop.getProperty("SEEDS", "3").trim()));
+            }else{
+                n.startNetworkClients(globalPeers, nodes); // Begins network connections
+            }
 
         } catch (FileNotFoundException e) {
             e.printStackTrace();
@@ -133,6 +139,22 @@ public class NetworkLauncher {
         }
     }
 
+    /**
+     * Gives each node a thread to start node connections knowing only the seeds, which are
+     * the first addresses of the network other than the node's own
+     */
+    public void startSeededNetworkClients(ArrayList<Address> globalPeers, ArrayList<Node> nodes, int numSeeds){
+        for(int i = 0; i < nodes.size(); i++){
+            ArrayList<Address> seeds = new ArrayList<Address>();
+            for(int j = 0; j < globalPeers.size() && seeds.size() < numSeeds; j++){
+                if(!globalPeers.get(j).equals(nodes.get(i).getAddress())){
+                    seeds.add(globalPeers.get(j));
+                }
+            }
+            new NodeLauncher(nodes.get(i), seeds).start();
+        }
+    }
+
     /**
      * Thread which is assigned to start a single node within the NetworkLaunchers managed nodes
      */
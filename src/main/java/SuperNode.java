@@ -4,7 +4,8 @@ import java.util.ArrayList;
 import java.util.Collections;
 
 /**
- * Launches a single node instance for debugging or development
+ * Launches a single node instance for debugging or development. Given seed addresses as
+ * host:port it joins through them, otherwise it knows of every port in the range below
  */
 public class SuperNode {
 
@@ -18,10 +19,19 @@ public class SuperNode {
         Node n1 = new Node(Integer.parseInt(args[0]), 5, 3, 1000, 10, 8000, 3);
         ArrayList<Address> globalPeers = new ArrayList<Address>();
 
-        System.out.println("==== Global Peer List ====");
-        for(int i = MIN_PORT; i < MAX_PORT + 1; i++){
-            globalPeers.add(new Address(i, host));
-            System.out.println("Host: " + host + " Port: " + i);
+        if(args.length > 1){
+            System.out.println("==== Seed List ====");
+            for(int i = 1; i < args.length; i++){
+                String[] seed = args[i].split(":");
+                globalPeers.add(new Address(Integer.parseInt(seed[1]), seed[0]));
+                System.out.println("Host: " + seed[0] + " Port: " + seed[1]);
+            }
+        }else{
+            System.out.println("==== Global Peer List ====");
+            for(int i = MIN_PORT; i < MAX_PORT + 1; i++){
+                globalPeers.add(new Address(i, host));
+                System.out.println("Host: " + host + " Port: " + i);
+            }
         }
 
         System.out.println("==========================");
@@ -0,0 +1,93 @@
+package node;
+
+import node.communication.Address;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * Bounded set of other nodes' addresses this node knows of, from which peers are chosen.
+ * Once the book is full a newly learned address replaces a random entry, so whatever the
+ * size of the network the book holds at most capacity addresses and stays a random sample
+ * of the nodes gossiped about, rather than filling with whichever were heard of first.
+ */
+public class AddressBook {
+    private final int capacity;
+    private final ArrayList<Address> addresses;
+    private final HashMap<Address, Integer> indexes;
+    private final Random random;
+
+    /**
+     * @param capacity Most addresses the book holds
+     */
+    AddressBook(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        this.addresses = new ArrayList<>();
+        this.indexes = new HashMap<>();
+        this.random = new Random();
+    }
+
+    /**
+     * @return True if the address was not known before
+     */
+    public synchronized boolean add(Address address) {
+        if (indexes.containsKey(address)) {
+            return false;
+        }
+        if (addresses.size() < capacity) {
+            indexes.put(address, addresses.size());
+            addresses.add(address);
+        } else {
+            int replaced = random.nextInt(capacity);
+            indexes.remove(addresses.get(replaced));
+            indexes.put(address, replaced);
+            addresses.set(replaced, address);
+        }
+        return true;
+    }
+
+    public synchronized void addAll(Iterable<Address> learned) {
+        for (Address address : learned) {
+            add(address);
+        }
+    }
+
+    /**
+     * Forgets an address, for instance one which could not be reached
+     */
+    public synchronized void remove(Address address) {
+        Integer index = indexes.remove(address);
+        if (index == null) {
+            return;
+        }
+        Address last = addresses.remove(addresses.size() - 1);
+        if (index < addresses.size()) {
+            addresses.set(index, last);
+            indexes.put(last, index);
+        }
+    }
+
+    /**
+     * @return Up to count addresses picked uniformly at random
+     */
+    public synchronized ArrayList<Address> sample(int count) {
+        ArrayList<Address> sample = new ArrayList<>(addresses);
+        int size = Math.min(count, sample.size());
+        for (int i = 0; i < size; i++) {
+            int j = i + random.nextInt(sample.size() - i);
+            Address swapped = sample.get(i);
+            sample.set(i, sample.get(j));
+            sample.set(j, swapped);
+        }
+        return new ArrayList<>(sample.subList(0, size));
+    }
+
+    public synchronized ArrayList<Address> copy() {
+        return new ArrayList<>(addresses);
+    }
+
+    public synchronized int size() {
+        return addresses.size();
+    }
+}
@@ -0,0 +1,152 @@
+package node;
+
+import node.blockchain.Block;
+import node.blockchain.Transaction;
+import node.communication.utils.Hash256;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Map;
+
+/**
+ * Blocks this node proposed which are still collecting votes, oldest first. Up to depth
+ * blocks may be in flight at once, each built on the one before it, and the transactions
+ * they hold are reserved so the next block template leaves them out. Blocks are handed
+ * back for committing strictly in height order, whatever order their votes complete in.
+ *
+ * Also makes sure only one proposal round runs at a time without losing a request for
+ * another round which arrives while one is running.
+ */
+public class BlockPipeline {
+    private final int depth;
+    private final ArrayDeque<BlockVotes> inFlight;
+    private final HashSet<Hash256> reservedKeys;
+    private long reservedBytes;
+    private boolean roundRunning, roundRequested;
+    private long committed, commitLatencySum;
+
+    /**
+     * @param depth Most blocks in flight at once, 1 to propose strictly one after another
+     */
+    BlockPipeline(int depth) {
+        this.depth = Math.max(1, depth);
+        this.inFlight = new ArrayDeque<>();
+        this.reservedKeys = new HashSet<>();
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    public synchronized boolean hasRoom() {
+        return inFlight.size() < depth;
+    }
+
+    /**
+     * @return The newest block in flight, which the next block extends, or null
+     */
+    public synchronized Block last() {
+        return inFlight.isEmpty() ? null : inFlight.peekLast().getBlock();
+    }
+
+    public synchronized void add(BlockVotes votes) {
+        inFlight.add(votes);
+        reserve(votes.getBlock(), true);
+    }
+
+    public synchronized boolean isReserved(Hash256 key) {
+        return reservedKeys.contains(key);
+    }
+
+    public synchronized int reservedCount() {
+        return reservedKeys.size();
+    }
+
+    public synchronized long reservedBytes() {
+        return reservedBytes;
+    }
+
+    /**
+     * Frees the transactions of a committed block, once they are out of the mempool
+     */
+    public synchronized void release(Block block) {
+        reserve(block, false);
+    }
+
+    private void reserve(Block block, boolean reserved) {
+        for (Map.Entry<Hash256, Transaction> entry : block.getTxList().entrySet()) {
+            if (reserved ? reservedKeys.add(entry.getKey()) : reservedKeys.remove(entry.getKey())) {
+                reservedBytes += (reserved ? 1 : -1) * BlockTrigger.sizeOf(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * @return The accepted blocks at the head of the pipeline, removed from it in height order
+     */
+    public synchronized ArrayList<BlockVotes> pollAccepted() {
+        ArrayList<BlockVotes> accepted = new ArrayList<>();
+        while (!inFlight.isEmpty() && inFlight.peekFirst().isAccepted()) {
+            BlockVotes votes = inFlight.pollFirst();
+            committed++;
+            commitLatencySum += votes.elapsed();
+            accepted.add(votes);
+        }
+        return accepted;
+    }
+
+    /**
+     * Drops a rejected block and every block built on it, freeing their transactions
+     * @return The dropped blocks
+     */
+    public synchronized ArrayList<Block> abandon(BlockVotes rejected) {
+        ArrayList<Block> dropped = new ArrayList<>();
+        boolean found = false;
+        for (BlockVotes votes : new ArrayList<>(inFlight)) {
+            found |= votes == rejected;
+            if (found) {
+                inFlight.remove(votes);
+                reserve(votes.getBlock(), false);
+                dropped.add(votes.getBlock());
+            }
+        }
+        return dropped;
+    }
+
+    /**
+     * @return True if the caller should run a round now, false if one is running already,
+     *         in which case it runs again once it is done
+     */
+    public synchronized boolean requestRound() {
+        if (roundRunning) {
+            roundRequested = true;
+            return false;
+        }
+        roundRunning = true;
+        return true;
+    }
+
+    /**
+     * @return True if another round was requested meanwhile and the caller should run it
+     */
+    public synchronized boolean finishRound() {
+        if (roundRequested) {
+            roundRequested = false;
+            return true;
+        }
+        roundRunning = false;
+        return false;
+    }
+
+    public synchronized long getCommitted() {
+        return committed;
+    }
+
+    /**
+     * @return Mean time from proposal to commit in nanoseconds, or -1 if nothing was committed
+     */
+    public synchronized long meanCommitLatency() {
+        return committed == 0 ? -1 : commitLatencySum / committed;
+    }
+}
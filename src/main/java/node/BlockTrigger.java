@@ -0,0 +1,96 @@
+package node;
+
+import node.blockchain.Transaction;
+
+/**
+ * Decides when the proposer builds the next block: once the transactions waiting for a
+ * block reach the target count or the byte limit, or once the oldest of them has waited
+ * the longest allowed, whichever comes first. Blocks are also capped at the target count
+ * and the byte limit.
+ *
+ * With adaptive sizing the target starts at the minimum block size. It doubles whenever
+ * a block leaves transactions behind, so blocks grow with the backlog, and halves whenever
+ * a block under half the target leaves nothing behind, so an idle network is not kept
+ * waiting for blocks which will not fill.
+ */
+public class BlockTrigger {
+    private final int minTxs, maxTxs, maxBytes;
+    private final long maxWaitNanos;
+    private final boolean adaptive;
+    private int targetTxs;
+    private long waitingSince;
+
+    /**
+     * @param minTxs Smallest target, used as the starting target when adaptive
+     * @param maxTxs Largest block in transactions
+     * @param maxBytes Largest block in transaction bytes
+     * @param maxWaitMillis Longest a transaction waits before a block is built for it
+     * @param adaptive True to adapt the target to the backlog, false to always target maxTxs
+     */
+    BlockTrigger(int minTxs, int maxTxs, int maxBytes, long maxWaitMillis, boolean adaptive) {
+        this.minTxs = Math.max(1, Math.min(minTxs, maxTxs));
+        this.maxTxs = Math.max(1, maxTxs);
+        this.maxBytes = Math.max(1, maxBytes);
+        this.maxWaitNanos = maxWaitMillis * 1_000_000L;
+        this.adaptive = adaptive;
+        this.targetTxs = adaptive ? this.minTxs : this.maxTxs;
+        this.waitingSince = -1;
+    }
+
+    /**
+     * Size a transaction counts for against the byte limit
+     */
+    public static int sizeOf(Transaction transaction) {
+        return transaction.getData().length();
+    }
+
+    /**
+     * @param pending Transactions in the mempool which no block holds
+     * @param pendingBytes Their total size
+     * @return True if a block should be built now
+     */
+    public synchronized boolean shouldPropose(int pending, long pendingBytes, long now) {
+        if (pending <= 0) {
+            waitingSince = -1;
+            return false;
+        }
+        if (waitingSince < 0) {
+            waitingSince = now;
+        }
+        return pending >= targetTxs || pendingBytes >= maxBytes || now - waitingSince >= maxWaitNanos;
+    }
+
+    /**
+     * @return Most transactions the next block may hold
+     */
+    public synchronized int getTargetTxs() {
+        return targetTxs;
+    }
+
+    public int getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return Nanoseconds between checks for transactions which waited long enough
+     */
+    public long getCheckIntervalNanos() {
+        return Math.max(1_000_000L, maxWaitNanos / 4);
+    }
+
+    /**
+     * Adapts the target after a block was built
+     * @param included Transactions the block holds
+     * @param leftover Transactions which were left waiting for a later block
+     */
+    public synchronized void proposed(int included, int leftover, long now) {
+        if (adaptive) {
+            if (leftover > 0) {
+                targetTxs = Math.min(maxTxs, targetTxs * 2);
+            } else if (included < targetTxs / 2) {
+                targetTxs = Math.max(minTxs, targetTxs / 2);
+            }
+        }
+        waitingSince = leftover > 0 ? now : -1;
+    }
+}
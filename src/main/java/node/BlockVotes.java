@@ -0,0 +1,80 @@
+package node;
+
+import node.blockchain.Block;
+
+import java.util.ArrayList;
+
+/**
+ * Signatures collected for a block its proposer broadcast to the quorum. Votes arrive
+ * concurrently and in any order, and the block is accepted by whichever vote first
+ * brings the count to the threshold, so the slowest members never delay the commit.
+ * Once too many members refused for the threshold to be reachable it is rejected.
+ */
+public class BlockVotes {
+    private final Block block;
+    private final int threshold, voters;
+    private final long startedAt;
+    private final ArrayList<String> signatures;
+    private int refusals;
+    private boolean accepted, rejected;
+
+    /**
+     * @param block Proposed block
+     * @param threshold Signatures needed to commit, the proposer's own included
+     * @param voters Quorum size, the proposer included
+     * @param proposerSignature The proposer's own signature
+     */
+    BlockVotes(Block block, int threshold, int voters, String proposerSignature) {
+        this.block = block;
+        this.threshold = threshold;
+        this.voters = voters;
+        this.startedAt = System.nanoTime();
+        this.signatures = new ArrayList<>();
+        this.signatures.add(proposerSignature);
+        this.accepted = signatures.size() >= threshold;
+    }
+
+    /**
+     * @return True for exactly the vote which reaches the threshold
+     */
+    public synchronized boolean add(String signature) {
+        if (accepted || rejected || signatures.contains(signature)) {
+            return false;
+        }
+        signatures.add(signature);
+        accepted = signatures.size() >= threshold;
+        return accepted;
+    }
+
+    /**
+     * Counts a member which refused to sign or could not be reached
+     * @return True for exactly the refusal which makes the threshold unreachable
+     */
+    public synchronized boolean refuse() {
+        if (accepted || rejected) {
+            return false;
+        }
+        refusals++;
+        rejected = voters - refusals < threshold;
+        return rejected;
+    }
+
+    public synchronized boolean isAccepted() {
+        return accepted;
+    }
+
+    public Block getBlock() {
+        return block;
+    }
+
+    public synchronized ArrayList<String> getSignatures() {
+        return new ArrayList<>(signatures);
+    }
+
+    /**
+     * @return Nanoseconds since the block was proposed
+     */
+    public long elapsed() {
+        return System.nanoTime() - startedAt;
+    }
+}
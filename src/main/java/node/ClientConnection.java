@@ -3,59 +3,209 @@ package node;
 import node.communication.*;
 import java.io.*;
 import java.net.ConnectException;
-import java.net.Socket;
 import java.net.SocketException;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 
 /**
- * Attempts to establish bidirectional connection to specified amount of peers
+ * Attempts to establish bidirectional connection to specified amount of peers.
+ *
+ * Candidates are probed with a timed PING on the link the handshake will use. Most of
+ * the wanted peers are the candidates with the lowest round trip time and the rest are
+ * picked at random, so that gossip travels over fast links while the random long-range
+ * links keep the network's diameter small. When rewiring, the slowest near peer this
+ * node chose is swapped for a probed candidate that is clearly faster.
+ *
+ * Candidates come from the node's address book. When it holds too few to choose from,
+ * as it does right after starting from a handful of seeds, the node first asks the
+ * nodes it knows for more.
  */
 public class ClientConnection extends Thread {
+    private static final double REWIRE_MARGIN = 0.8;
     private final Node node;
-    private final ArrayList<Address> globalPeers;
+    private final Address excluded;
+    private final boolean rewire;
 
-    ClientConnection(Node node, ArrayList<Address> globalPeers) throws SocketException {
+    /**
+     * @param excluded Address not to connect to, such as a peer just evicted, or null
+     * @param rewire True to replace one slow near peer instead of seeking new peers
+     */
+    ClientConnection(Node node, Address excluded, boolean rewire) throws SocketException {
         this.node = node;
-        this.globalPeers = globalPeers;
+        this.excluded = excluded;
+        this.rewire = rewire;
         setPriority(NORM_PRIORITY - 1);
     }
 
     public void run() {
+        if (rewire) {
+            rewire();
+            return;
+        }
         System.out.println("Requesting connections...");
-        if (node.getLocalPeers().size() < node.getMaxPeers()) {
-            for (Address address : globalPeers) {
-                if (node.getLocalPeers().size() >= node.getMaxPeers()){
-                    break;
+        if (node.getLocalPeers().size() >= node.getMaxPeers()) {
+            return;
+        }
+        int wanted = Math.max(1, node.getMinConnections() - node.getLocalPeers().size());
+        ArrayList<Address> candidates = candidates();
+        if (candidates.size() < wanted + node.getPeerProbes() && node.discoverPeers() > 0) {
+            candidates = candidates();
+        }
+        int wantedNear = (wanted * node.getNearPeersPercent() + 99) / 100;
+        ArrayList<Probe> probes = probe(candidates, Math.max(node.getPeerProbes(), wantedNear));
+
+        int connected = 0;
+        for (Probe probe : probes) {
+            if (connected >= wantedNear || !node.eligibleConnection(probe.address, false)) {
+                probe.connection.close();
+            } else if (handshake(probe.connection, probe.rtt)) {
+                node.markNearPeer(probe.address);
+                connected++;
+            }
+        }
+        /* Long-range links are picked at random, and also make up for near peers that refused */
+        Collections.shuffle(candidates);
+        for (Address address : candidates) {
+            if (connected >= wanted || node.getLocalPeers().size() >= node.getMaxPeers()) {
+                break;
+            }
+            if (!node.eligibleConnection(address, false)) {
+                continue;
+            }
+            try {
+                if (handshake(node.getConnectionPool().open(address), -1)) {
+                    connected++;
                 }
-                try {
-                    if (node.eligibleConnection(address, false)) {
-                        Socket s = new Socket(address.getHost(), address.getPort());
-                        InputStream in = s.getInputStream();
-                        ObjectInputStream oin = new ObjectInputStream(in);
-                        OutputStream out = s.getOutputStream();
-                        ObjectOutputStream oout = new ObjectOutputStream(out);
-
-                        Message message = new Message(Message.Request.REQUEST_CONNECTION, node.getAddress());
-                        oout.writeObject(message);
-                        oout.flush();
-                        Message messageReceived = (Message) oin.readObject();
-
-                        if (messageReceived.getRequest().equals(Message.Request.ACCEPT_CONNECTION)) {
-                            node.establishConnection(address);
-                            if (node.getLocalPeers().size() == node.getMinConnections()) {
-                                return;
-                            }
-                        }
-                        s.close();
-                    }
-                } catch (ConnectException e0) {
-
-                } catch (IOException e1) {
-                    System.out.println(e1);
-                } catch (ClassNotFoundException e2) {
-                    System.out.println(e2);
+            } catch (ConnectException e0) {
+                node.getAddressBook().remove(address);
+            } catch (IOException e1) {
+                System.out.println(e1);
+            }
+        }
+        if (connected > 0) {
+            node.connectedToPeers();
+        }
+    }
+
+    /**
+     * Swaps the slowest near peer for the fastest probed candidate if it is clearly faster.
+     * The new peer is connected before the old one is dropped, so the node never has
+     * fewer peers than before
+     */
+    private void rewire() {
+        PeerLatencies latencies = node.getPeerLatencies();
+        Address slowest = null;
+        for (Address address : node.copyNearPeers()) {
+            if (slowest == null || latencies.get(address) > latencies.get(slowest)) {
+                slowest = address;
+            }
+        }
+        if (slowest == null || latencies.get(slowest) < 0) {
+            return;
+        }
+        ArrayList<Address> candidates = new ArrayList<>();
+        for (Address address : node.getAddressBook().copy()) {
+            if (node.isCandidatePeer(address)) {
+                candidates.add(address);
+            }
+        }
+        ArrayList<Probe> probes = probe(candidates, node.getPeerProbes());
+        boolean swapped = false;
+        for (Probe probe : probes) {
+            if (!swapped && probe.rtt < latencies.get(slowest) * REWIRE_MARGIN && handshake(probe.connection, probe.rtt)) {
+                node.markNearPeer(probe.address);
+                node.dropPeer(slowest);
+                System.out.println("Node " + node.getAddress().getPort() + ": Rewired peer " + slowest.getPort()
+                        + " to " + probe.address.getPort());
+                swapped = true;
+            } else {
+                probe.connection.close();
+            }
+        }
+    }
+
+    /**
+     * @return Known addresses we could connect to now
+     */
+    private ArrayList<Address> candidates() {
+        ArrayList<Address> candidates = new ArrayList<>();
+        for (Address address : node.getAddressBook().copy()) {
+            if ((excluded == null || !excluded.equals(address)) && node.eligibleConnection(address, false)) {
+                candidates.add(address);
+            }
+        }
+        return candidates;
+    }
+
+    /**
+     * Opens links to a random sample of the candidates and times a PING on each
+     * @return The reachable candidates, fastest first, with their links still open
+     */
+    private ArrayList<Probe> probe(ArrayList<Address> candidates, int count) {
+        ArrayList<Address> sample = new ArrayList<>(candidates);
+        Collections.shuffle(sample);
+        ArrayList<Probe> probes = new ArrayList<>();
+        for (Address address : sample.subList(0, Math.min(count, sample.size()))) {
+            PeerConnection connection = null;
+            try {
+                connection = node.getConnectionPool().open(address);
+                long start = System.nanoTime();
+                connection.request(new Message(Message.Request.PING));
+                long rtt = System.nanoTime() - start;
+                node.getPeerLatencies().record(address, rtt);
+                probes.add(new Probe(address, connection, rtt));
+            } catch (ConnectException e) {
+                node.getAddressBook().remove(address);
+            } catch (IOException e) {
+                if (connection != null) {
+                    connection.close();
                 }
             }
         }
+        probes.sort(Comparator.comparingLong(probe -> probe.rtt));
+        return probes;
+    }
+
+    /**
+     * Requests a connection over an open link, which becomes the long-lived link to the
+     * peer if it accepts. Unless a probe measured the link already, the request's round trip
+     * is recorded as the peer's latency
+     * @param rtt Round trip a probe measured on this link, or -1
+     * @return True if the peer accepted
+     */
+    private boolean handshake(PeerConnection connection, long rtt) {
+        Address address = connection.getAddress();
+        try {
+            long start = System.nanoTime();
+            Message messageReceived = connection.request(new Message(Message.Request.REQUEST_CONNECTION, node.getHandshake()));
+            if (rtt < 0) {
+                node.getPeerLatencies().record(address, System.nanoTime() - start);
+            }
+
+            if (messageReceived.getRequest().equals(Message.Request.ACCEPT_CONNECTION)) {
+                node.negotiateCompression(address, Handshake.of(messageReceived.getMetadata()).getCompressions());
+                node.establishConnection(address);
+                /* The handshake link becomes the long-lived link to this peer */
+                node.getConnectionPool().release(connection);
+                return true;
+            }
+        } catch (IOException e) {
+            System.out.println(e);
+        }
+        connection.close();
+        return false;
+    }
+
+    private static class Probe {
+        private final Address address;
+        private final PeerConnection connection;
+        private final long rtt;
+
+        Probe(Address address, PeerConnection connection, long rtt) {
+            this.address = address;
+            this.connection = connection;
+            this.rtt = rtt;
+        }
     }
 }
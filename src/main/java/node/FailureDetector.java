@@ -0,0 +1,117 @@
+package node;
+
+import node.communication.Address;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+
+/**
+ * Phi accrual failure detector. For every registered peer it keeps a window of the
+ * intervals between heartbeats, where a heartbeat is any reply from the peer or message
+ * it sent us, and turns the time since the last one into phi, the negative log10 of the
+ * probability that a heartbeat would still arrive that late. Phi therefore grows continuously while a peer
+ * is silent and adapts to how regularly that peer is heard from.
+ *
+ * Idle peers are pinged once per interval, so the mean interval is never taken to be
+ * shorter than it. Otherwise a burst of traffic would make the first quiet interval
+ * look like a failure.
+ */
+public class FailureDetector {
+    private static final int WINDOW = 100;
+
+    private final long intervalMillis;
+    private final double minStdDeviation;
+    private final HashMap<Address, History> histories;
+
+    /**
+     * @param intervalMillis Interval at which idle peers are pinged
+     */
+    FailureDetector(long intervalMillis) {
+        this.intervalMillis = intervalMillis;
+        this.minStdDeviation = intervalMillis / 4.0;
+        this.histories = new HashMap<>();
+    }
+
+    /**
+     * Starts watching a peer, as if it had just been heard from
+     */
+    public synchronized void register(Address address) {
+        histories.computeIfAbsent(address, k -> new History(System.currentTimeMillis()));
+    }
+
+    public synchronized void remove(Address address) {
+        histories.remove(address);
+    }
+
+    /**
+     * Records a heartbeat from a peer. Replies from nodes which are not watched are ignored
+     */
+    public synchronized void heartbeat(Address address) {
+        History history = histories.get(address);
+        if (history != null) {
+            history.add(System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * @return Milliseconds since the peer was last heard from, or -1 if it is not watched
+     */
+    public synchronized long sinceLastHeartbeat(Address address, long now) {
+        History history = histories.get(address);
+        return history == null ? -1 : now - history.last;
+    }
+
+    /**
+     * @return Suspicion that the peer has failed, 0 if it is not watched
+     */
+    public synchronized double phi(Address address, long now) {
+        History history = histories.get(address);
+        if (history == null) {
+            return 0;
+        }
+        double mean = Math.max(intervalMillis, history.mean());
+        double stdDeviation = Math.max(minStdDeviation, history.stdDeviation());
+        double y = (now - history.last - mean) / stdDeviation;
+        /* Logistic approximation of the normal distribution's tail */
+        double e = Math.exp(-y * (1.5976 + 0.070566 * y * y));
+        if (now - history.last > mean) {
+            return -Math.log10(e / (1.0 + e));
+        }
+        return -Math.log10(1.0 - 1.0 / (1.0 + e));
+    }
+
+    private static class History {
+        private final ArrayDeque<Long> intervals = new ArrayDeque<>();
+        private long last;
+        private double sum, sumOfSquares;
+
+        History(long now) {
+            this.last = now;
+        }
+
+        void add(long now) {
+            long interval = now - last;
+            last = now;
+            intervals.add(interval);
+            sum += interval;
+            sumOfSquares += (double) interval * interval;
+            if (intervals.size() > WINDOW) {
+                long oldest = intervals.poll();
+                sum -= oldest;
+                sumOfSquares -= (double) oldest * oldest;
+            }
+        }
+
+        double mean() {
+            return intervals.isEmpty() ? 0 : sum / intervals.size();
+        }
+
+        double stdDeviation() {
+            if (intervals.isEmpty()) {
+                return 0;
+            }
+            double mean = mean();
+            return Math.sqrt(Math.max(0, sumOfSquares / intervals.size() - mean * mean));
+        }
+    }
+}
@@ -0,0 +1,123 @@
+package node;
+
+import node.blockchain.Transaction;
+import node.communication.utils.Hash256;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Mempool store on the heap. A ConcurrentHashMap, which locks per bin, holds the
+ * transactions, so lookups take no lock and inserts from different connections only meet
+ * when their keys share a bin. Arrival order is kept in a queue beside it whose entries
+ * for transactions which already left are skipped once they reach its head, and purged
+ * when they outnumber the live ones
+ */
+class HeapMempoolStore implements MempoolStore {
+    private static class Arrival {
+        private final Hash256 key;
+        private final Transaction transaction;
+        private final long arrivedAt;
+
+        private Arrival(Hash256 key, Transaction transaction, long arrivedAt) {
+            this.key = key;
+            this.transaction = transaction;
+            this.arrivedAt = arrivedAt;
+        }
+    }
+
+    private final ConcurrentHashMap<Hash256, Transaction> transactions;
+    private final ConcurrentLinkedQueue<Arrival> arrivals;
+    private final AtomicInteger arrivalCount;
+
+    HeapMempoolStore() {
+        this.transactions = new ConcurrentHashMap<>();
+        this.arrivals = new ConcurrentLinkedQueue<>();
+        this.arrivalCount = new AtomicInteger();
+    }
+
+    @Override
+    public boolean putIfAbsent(Hash256 key, Transaction transaction, long arrivedAt) {
+        if (transactions.putIfAbsent(key, transaction) != null) {
+            return false;
+        }
+        arrivals.add(new Arrival(key, transaction, arrivedAt));
+        arrivalCount.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public Transaction get(Hash256 key) {
+        return transactions.get(key);
+    }
+
+    @Override
+    public boolean contains(Hash256 key) {
+        return transactions.containsKey(key);
+    }
+
+    @Override
+    public int remove(Hash256 key) {
+        Transaction transaction = transactions.remove(key);
+        return transaction == null ? -1 : BlockTrigger.sizeOf(transaction);
+    }
+
+    @Override
+    public Hash256 oldest(long arrivedBefore) {
+        Arrival oldest;
+        while ((oldest = arrivals.peek()) != null) {
+            if (isLive(oldest)) {
+                return oldest.arrivedAt < arrivedBefore ? oldest.key : null;
+            }
+            if (arrivals.remove(oldest)) {
+                arrivalCount.decrementAndGet();
+            }
+        }
+        return null;
+    }
+
+    /* A transaction which left and arrived again is a different object */
+    private boolean isLive(Arrival arrival) {
+        return transactions.get(arrival.key) == arrival.transaction;
+    }
+
+    @Override
+    public int size() {
+        return transactions.size();
+    }
+
+    @Override
+    public Collection<Hash256> keys() {
+        return Collections.unmodifiableSet(transactions.keySet());
+    }
+
+    @Override
+    public void forEach(BiConsumer<Hash256, Transaction> action) {
+        transactions.forEach(action);
+    }
+
+    /**
+     * Purges arrivals of transactions which left behind a younger one, once they outnumber the live ones
+     */
+    @Override
+    public void purge() {
+        if (arrivalCount.get() > 2 * Math.max(transactions.size(), 1024)) {
+            arrivals.removeIf(arrival -> {
+                if (isLive(arrival)) {
+                    return false;
+                }
+                arrivalCount.decrementAndGet();
+                return true;
+            });
+        }
+    }
+
+    @Override
+    public long offHeapBytes() {
+        return 0;
+    }
+}
@@ -0,0 +1,116 @@
+package node;
+
+import node.communication.Address;
+import node.communication.ConnectionPool;
+import node.communication.Message;
+import node.communication.PeerConnection;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static node.communication.utils.Utils.daemonThreads;
+
+/**
+ * Watches the node's local peers twice per heartbeat interval. Peers which have not been
+ * heard from for an interval are pinged, on a small pool of threads so one unresponsive peer
+ * does not delay the others, and peers whose phi reaches the threshold are evicted and
+ * replaced. Every rewire interval the node also tries to swap a slow peer for a faster one,
+ * and every discovery interval it refreshes its address book.
+ */
+public class HeartBeatMonitor {
+    private final Node node;
+    private final FailureDetector failureDetector;
+    private final long intervalMillis;
+    private final double phiThreshold;
+    private final long rewireIntervalMillis;
+    private final long discoveryIntervalMillis;
+    private long rewiredAt, discoveredAt;
+    private final HashSet<Address> pinging;
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService pings;
+
+    /**
+     * @param intervalMillis Interval at which idle peers are pinged
+     * @param phiThreshold   Phi at which a peer is considered to have failed
+     * @param rewireIntervalMillis Time between rewiring passes, 0 to never rewire
+     * @param discoveryIntervalMillis Time between peer discovery passes, 0 to never discover
+     * @param pingThreads    Threads pinging peers and querying for addresses
+     * @param scheduler      Runs the checks, shared with the node's other timers
+     */
+    HeartBeatMonitor(Node node, FailureDetector failureDetector, long intervalMillis, double phiThreshold,
+                     long rewireIntervalMillis, long discoveryIntervalMillis, int pingThreads,
+                     ScheduledExecutorService scheduler) {
+        this.node = node;
+        this.failureDetector = failureDetector;
+        this.intervalMillis = intervalMillis;
+        this.phiThreshold = phiThreshold;
+        this.rewireIntervalMillis = rewireIntervalMillis;
+        this.discoveryIntervalMillis = discoveryIntervalMillis;
+        this.rewiredAt = System.currentTimeMillis();
+        this.discoveredAt = rewiredAt;
+        this.pinging = new HashSet<>();
+        this.scheduler = scheduler;
+        this.pings = Executors.newFixedThreadPool(pingThreads,
+                daemonThreads("node-" + node.getAddress().getPort() + "-pings"));
+    }
+
+    public void start() {
+        scheduler.scheduleWithFixedDelay(this::check, intervalMillis, intervalMillis / 2, TimeUnit.MILLISECONDS);
+    }
+
+    private void check() {
+        long now = System.currentTimeMillis();
+        for (Address address : node.copyLocalPeers()) {
+            double phi = failureDetector.phi(address, now);
+            if (phi >= phiThreshold) {
+                node.evictPeer(address, phi);
+            } else if (failureDetector.sinceLastHeartbeat(address, now) >= intervalMillis) {
+                synchronized (pinging) {
+                    if (!pinging.add(address)) {
+                        continue;
+                    }
+                }
+                pings.execute(() -> ping(address));
+            }
+        }
+        if (rewireIntervalMillis > 0 && now - rewiredAt >= rewireIntervalMillis) {
+            rewiredAt = now;
+            node.rewirePeers();
+        }
+        if (discoveryIntervalMillis > 0 && now - discoveredAt >= discoveryIntervalMillis) {
+            discoveredAt = now;
+            /* Queries may wait on unresponsive nodes, so they run beside the pings */
+            pings.execute(node::maintainPeers);
+        }
+    }
+
+    /**
+     * A reply counts as a heartbeat through the connection pool. A failed or late ping
+     * records nothing and leaves phi to grow
+     */
+    private void ping(Address address) {
+        ConnectionPool connectionPool = node.getConnectionPool();
+        PeerConnection connection = null;
+        try {
+            connection = connectionPool.acquire(address);
+            connection.setTimeout((int) (intervalMillis * 4));
+            long start = System.nanoTime();
+            connection.request(new Message(Message.Request.PING));
+            node.getPeerLatencies().record(address, System.nanoTime() - start);
+            connection.setTimeout(0);
+            connectionPool.release(connection);
+        } catch (IOException e) {
+            if (connection != null) {
+                connectionPool.discard(connection);
+            }
+        } finally {
+            synchronized (pinging) {
+                pinging.remove(address);
+            }
+        }
+    }
+}
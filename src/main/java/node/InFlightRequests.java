@@ -0,0 +1,58 @@
+package node;
+
+import node.communication.utils.Hash256;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tracks transaction bodies requested with GETDATA so the same body is not fetched
+ * from several announcing peers at once. A request which is not answered within the
+ * timeout may be sent again to the next peer announcing the key.
+ */
+public class InFlightRequests {
+    private static final int PRUNE_THRESHOLD = 10000;
+
+    private final long timeoutMillis;
+    private final ConcurrentHashMap<Hash256, Long> deadlines;
+
+    InFlightRequests(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        this.deadlines = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * Claims a key for fetching
+     * @param key Transaction key announced by a peer
+     * @return True if the caller should request the body, false if a request is already outstanding
+     */
+    public boolean tryRequest(Hash256 key) {
+        long now = System.currentTimeMillis();
+        if (deadlines.size() > PRUNE_THRESHOLD) {
+            prune(now);
+        }
+        Long deadline = deadlines.putIfAbsent(key, now + timeoutMillis);
+        if (deadline == null) {
+            return true;
+        }
+        return deadline < now && deadlines.replace(key, deadline, now + timeoutMillis);
+    }
+
+    /**
+     * Marks a key as answered
+     */
+    public void received(Hash256 key) {
+        deadlines.remove(key);
+    }
+
+    /* Requests for bodies which never arrived would otherwise stay forever */
+    private void prune(long now) {
+        Iterator<Map.Entry<Hash256, Long>> entries = deadlines.entrySet().iterator();
+        while (entries.hasNext()) {
+            if (entries.next().getValue() < now) {
+                entries.remove();
+            }
+        }
+    }
+}
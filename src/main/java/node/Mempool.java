@@ -0,0 +1,254 @@
+package node;
+
+import node.blockchain.MempoolLog;
+import node.blockchain.Transaction;
+import node.communication.utils.Hash256;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Transactions waiting for a block, keyed by the SHA-256 hash of their data, kept in a
+ * MempoolStore on the heap or, with MEMPOOL_STORAGE=OFF_HEAP, outside it. Every change is
+ * made to the store first and then logged, so the log never holds a transaction the
+ * mempool dropped.
+ *
+ * The mempool holds at most maxTxs transactions and maxBytes of transaction data. Once
+ * full it either evicts its oldest transactions to admit new ones or rejects new ones
+ * until blocks make room, and transactions which waited longer than the time to live are
+ * expired. Both limits are checked before inserting, so concurrent inserts can overshoot
+ * them by one transaction each until the next eviction.
+ */
+public class Mempool {
+    /**
+     * Answer to a transaction offered to the mempool
+     */
+    public enum Admission {
+        ACCEPTED,
+        /* Already pending, or committed */
+        DUPLICATE,
+        /* Full and not evicting, so offer it again once blocks made room */
+        FULL,
+        /* Larger than the whole mempool */
+        TOO_LARGE
+    }
+
+    private final MempoolStore store;
+    private final AtomicLong bytes, evicted, expired, rejected;
+    private final MempoolLog log;
+    private final ShardedConsensus shardedConsensus;
+    private final int maxTxs;
+    private final long maxBytes, ttlMillis;
+    private final boolean evictOldest;
+
+    /**
+     * @param shardedConsensus Shards counting the transactions of their keys, or null
+     * @param ttlMillis Longest a transaction waits for a block, or 0 for no limit
+     * @param evictOldest Whether a full mempool evicts its oldest transactions or rejects new ones
+     */
+    Mempool(MempoolStore store, MempoolLog log, ShardedConsensus shardedConsensus, int maxTxs, long maxBytes,
+            long ttlMillis, boolean evictOldest){
+        this.store = store;
+        this.bytes = new AtomicLong();
+        this.evicted = new AtomicLong();
+        this.expired = new AtomicLong();
+        this.rejected = new AtomicLong();
+        this.log = log;
+        this.shardedConsensus = shardedConsensus;
+        this.maxTxs = maxTxs;
+        this.maxBytes = maxBytes;
+        this.ttlMillis = ttlMillis;
+        this.evictOldest = evictOldest;
+    }
+
+    /**
+     * Adds a transaction if there is room for it, evicting the oldest ones to make room if
+     * the mempool evicts
+     */
+    public Admission add(Hash256 key, Transaction transaction){
+        int size = BlockTrigger.sizeOf(transaction);
+        if(size > maxBytes){
+            rejected.incrementAndGet();
+            return Admission.TOO_LARGE;
+        }
+        if(!evictOldest && (store.size() >= maxTxs || bytes.get() + size > maxBytes)){
+            if(store.contains(key)){
+                return Admission.DUPLICATE;
+            }
+            rejected.incrementAndGet();
+            return Admission.FULL;
+        }
+        if(!store.putIfAbsent(key, transaction, System.currentTimeMillis())){
+            return Admission.DUPLICATE;
+        }
+        bytes.addAndGet(size);
+        log.added(key, transaction);
+        if(shardedConsensus != null){
+            shardedConsensus.transactionAdded(key, size);
+        }
+        if(evictOldest && (store.size() > maxTxs || bytes.get() > maxBytes)){
+            evict();
+        }
+        return Admission.ACCEPTED;
+    }
+
+    /**
+     * Drops the oldest transactions until the mempool is within its limits again
+     */
+    private void evict(){
+        ArrayList<Hash256> keys = new ArrayList<>();
+        Hash256 oldest;
+        while((store.size() > maxTxs || bytes.get() > maxBytes) && (oldest = store.oldest(Long.MAX_VALUE)) != null){
+            if(remove(oldest)){
+                keys.add(oldest);
+                evicted.incrementAndGet();
+            }
+        }
+        log.removed(keys);
+    }
+
+    /**
+     * Drops the transactions which waited longer than the time to live and lets the store
+     * release what removed ones still hold. Runs periodically
+     */
+    public void expire(){
+        ArrayList<Hash256> keys = new ArrayList<>();
+        if(ttlMillis > 0){
+            long expiredBefore = System.currentTimeMillis() - ttlMillis;
+            Hash256 oldest;
+            while((oldest = store.oldest(expiredBefore)) != null){
+                if(remove(oldest)){
+                    keys.add(oldest);
+                    expired.incrementAndGet();
+                }
+            }
+        }
+        store.purge();
+        log.removed(keys);
+        if(log.needsCompaction()){
+            compactLog();
+        }
+    }
+
+    private boolean remove(Hash256 key){
+        int size = store.remove(key);
+        if(size < 0){
+            return false;
+        }
+        bytes.addAndGet(-size);
+        if(shardedConsensus != null){
+            shardedConsensus.transactionRemoved(key, size);
+        }
+        return true;
+    }
+
+    /**
+     * Removes the transactions of a committed block and logs them together, compacting the
+     * log once it is mostly removed transactions
+     */
+    public void removeAll(Collection<Hash256> keys){
+        ArrayList<Hash256> removed = new ArrayList<>();
+        for(Hash256 key : keys){
+            if(remove(key)){
+                removed.add(key);
+            }
+        }
+        log.removed(removed);
+        if(log.needsCompaction()){
+            compactLog();
+        }
+    }
+
+    /**
+     * Empties the mempool without logging, for a caller which refills it and then calls compactLog
+     */
+    void clear(){
+        for(Hash256 key : new ArrayList<>(store.keys())){
+            remove(key);
+        }
+    }
+
+    /**
+     * Rewrites the log with just the transactions now in the mempool
+     */
+    void compactLog(){
+        log.compact(this::copy);
+    }
+
+    public boolean contains(Hash256 key){
+        return store.contains(key);
+    }
+
+    /**
+     * @return The transaction, or null if it is not in the mempool
+     */
+    public Transaction get(Hash256 key){
+        return store.get(key);
+    }
+
+    public int size(){
+        return store.size();
+    }
+
+    /**
+     * @return Total length of the data of the transactions in the mempool
+     */
+    public long bytes(){
+        return bytes.get();
+    }
+
+    /**
+     * @return Keys of the transactions, without decoding any transaction
+     */
+    public Collection<Hash256> keys(){
+        return store.keys();
+    }
+
+    public ArrayList<Transaction> values(){
+        ArrayList<Transaction> values = new ArrayList<>(store.size());
+        store.forEach((key, transaction) -> values.add(transaction));
+        return values;
+    }
+
+    /**
+     * @return A copy of the mempool, by key
+     */
+    public HashMap<Hash256, Transaction> copy(){
+        HashMap<Hash256, Transaction> copy = new HashMap<>();
+        store.forEach(copy::put);
+        return copy;
+    }
+
+    /**
+     * @return Size of the log on disk
+     */
+    public long logBytes(){
+        return log.size();
+    }
+
+    long offHeapBytes(){
+        return store.offHeapBytes();
+    }
+
+    long getEvicted(){
+        return evicted.get();
+    }
+
+    long getExpired(){
+        return expired.get();
+    }
+
+    long getRejected(){
+        return rejected.get();
+    }
+
+    int getMaxTxs(){
+        return maxTxs;
+    }
+
+    long getTtlMillis(){
+        return ttlMillis;
+    }
+}
@@ -0,0 +1,53 @@
+package node;
+
+import node.blockchain.Transaction;
+import node.communication.utils.Hash256;
+
+import java.util.Collection;
+import java.util.function.BiConsumer;
+
+/**
+ * Where the mempool keeps its transactions, by key, remembering the order they arrived
+ * in. Stores are safe for concurrent use, and what they list is weakly consistent: a
+ * transaction added or removed while a listing runs may or may not be part of it
+ */
+interface MempoolStore {
+    /**
+     * @param arrivedAt Milliseconds since the epoch
+     * @return False if a transaction with the key is stored already
+     */
+    boolean putIfAbsent(Hash256 key, Transaction transaction, long arrivedAt);
+
+    /**
+     * @return The transaction, or null if none with the key is stored
+     */
+    Transaction get(Hash256 key);
+
+    boolean contains(Hash256 key);
+
+    /**
+     * @return BlockTrigger.sizeOf the removed transaction, or -1 if none with the key was stored
+     */
+    int remove(Hash256 key);
+
+    /**
+     * @return Key of the transaction which arrived first, if it arrived before a time, or null
+     */
+    Hash256 oldest(long arrivedBefore);
+
+    int size();
+
+    Collection<Hash256> keys();
+
+    void forEach(BiConsumer<Hash256, Transaction> action);
+
+    /**
+     * Releases what transactions which left still hold. Runs periodically
+     */
+    void purge();
+
+    /**
+     * @return Memory held outside the heap
+     */
+    long offHeapBytes();
+}
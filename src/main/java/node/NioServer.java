@@ -0,0 +1,314 @@
+package node;
+
+import node.communication.Address;
+import node.communication.FrameCompression;
+import node.communication.Framing;
+import node.communication.Message;
+import node.communication.MessageCodec;
+import node.communication.Responder;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Non-blocking transport which serves every link of a node from a small, fixed set of
+ * event loop threads. Loops only move bytes and cut frames; decoded messages are handed
+ * to a fixed pool of workers, one message at a time per link so replies keep their order.
+ * The amount of threads therefore stays the same no matter how many peers or requests arrive.
+ * Workers must not wait for replies from other nodes, whose workers may be waiting for
+ * ours, so Node hands such exchanges to threads of its own.
+ */
+public class NioServer {
+    private final Node node;
+    private final ServerSocketChannel serverChannel;
+    private final EventLoop[] loops;
+    private final ExecutorService workers;
+    private final RequestHandler requestHandler;
+    private int nextLoop;
+
+    /**
+     * @param port          Port to bind
+     * @param eventLoops    Amount of selector threads
+     * @param workerThreads Amount of threads running the protocol for decoded messages
+     */
+    NioServer(Node node, int port, int eventLoops, int workerThreads) throws IOException {
+        this.node = node;
+        this.requestHandler = new RequestHandler(node);
+        this.workers = Executors.newFixedThreadPool(workerThreads);
+        this.serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        this.loops = new EventLoop[eventLoops];
+        for (int i = 0; i < eventLoops; i++) {
+            loops[i] = new EventLoop();
+        }
+        serverChannel.register(loops[0].selector, SelectionKey.OP_ACCEPT);
+    }
+
+    public void start() {
+        for (EventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            EventLoop loop = loops[nextLoop];
+            nextLoop = (nextLoop + 1) % loops.length;
+            Link link = new Link(channel, loop);
+            loop.execute(link::register);
+        }
+    }
+
+    /**
+     * A selector thread. Work from other threads is queued and run between selects,
+     * since selection keys may only be changed safely from the loop itself
+     */
+    class EventLoop extends Thread {
+        private final Selector selector;
+        private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+        EventLoop() throws IOException {
+            this.selector = Selector.open();
+        }
+
+        void execute(Runnable task) {
+            tasks.add(task);
+            selector.wakeup();
+        }
+
+        public void run() {
+            while (true) {
+                try {
+                    selector.select();
+                    Runnable task;
+                    while ((task = tasks.poll()) != null) {
+                        task.run();
+                    }
+                    Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        SelectionKey key = keys.next();
+                        keys.remove();
+                        if (!key.isValid()) {
+                            continue;
+                        }
+                        if (key.isAcceptable()) {
+                            accept();
+                            continue;
+                        }
+                        Link link = (Link) key.attachment();
+                        try {
+                            if (key.isReadable()) {
+                                link.onReadable();
+                            }
+                            if (key.isValid() && key.isWritable()) {
+                                link.onWritable();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            link.close();
+                        }
+                    }
+                } catch (IOException e) {
+                    System.out.println(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * State of one accepted link
+     */
+    class Link implements Responder {
+        private final SocketChannel channel;
+        private final EventLoop loop;
+        private final ConcurrentLinkedQueue<ByteBuffer> writes = new ConcurrentLinkedQueue<>();
+        private final ArrayDeque<Message> inbox = new ArrayDeque<>();
+        private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+        private SelectionKey key;
+        private MessageCodec codec;
+        private FrameCompression replyCompression;
+        private boolean framed, draining;
+        private volatile Address peer;
+
+        Link(SocketChannel channel, EventLoop loop) {
+            this.channel = channel;
+            this.loop = loop;
+        }
+
+        void register() {
+            try {
+                key = channel.register(loop.selector, SelectionKey.OP_READ, this);
+                /* Legacy clients wait for the object stream header before they write anything */
+                writes.add(ByteBuffer.wrap(Framing.STREAM_HEADER));
+                onWritable();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        void onReadable() throws IOException {
+            if (channel.read(readBuffer) < 0) {
+                close();
+                return;
+            }
+            readBuffer.flip();
+            if (!framed) {
+                if (readBuffer.remaining() < Framing.HEADER_LENGTH) {
+                    readBuffer.compact();
+                    return;
+                }
+                byte[] firstBytes = new byte[Framing.HEADER_LENGTH];
+                readBuffer.get(firstBytes);
+                if (!Framing.isPreface(firstBytes)) {
+                    handOff();
+                    return;
+                }
+                framed = true;
+            }
+            if (codec == null) {
+                if (!readBuffer.hasRemaining()) {
+                    readBuffer.compact();
+                    return;
+                }
+                codec = Framing.codecFor(readBuffer.get() & 0xFF);
+            }
+            int needed = 0;
+            while (readBuffer.remaining() >= 4) {
+                int header = readBuffer.getInt(readBuffer.position());
+                int length = Framing.payloadLength(header);
+                if (readBuffer.remaining() < 4 + length) {
+                    needed = 4 + length;
+                    break;
+                }
+                readBuffer.getInt();
+                /* A peer which sends compressed frames can inflate our replies too */
+                if (Framing.isCompressed(header)) {
+                    replyCompression = node.getFrameCompression();
+                }
+                Message message = Framing.decode(codec, header, readBuffer.array(), readBuffer.arrayOffset() + readBuffer.position(), length);
+                readBuffer.position(readBuffer.position() + length);
+                deliver(message);
+            }
+            readBuffer.compact();
+            if (needed > readBuffer.capacity()) {
+                ByteBuffer larger = ByteBuffer.allocate(needed);
+                readBuffer.flip();
+                larger.put(readBuffer);
+                readBuffer = larger;
+            }
+        }
+
+        void onWritable() throws IOException {
+            ByteBuffer head;
+            while ((head = writes.peek()) != null) {
+                channel.write(head);
+                if (head.hasRemaining()) {
+                    key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+                    return;
+                }
+                writes.poll();
+            }
+            key.interestOps(SelectionKey.OP_READ);
+        }
+
+        @Override
+        public void reply(Message message) throws IOException {
+            writes.add(Framing.toFrame(codec, replyCompression, message));
+            loop.execute(() -> {
+                try {
+                    if (key.isValid()) {
+                        onWritable();
+                    }
+                } catch (IOException e) {
+                    close();
+                }
+            });
+        }
+
+        @Override
+        public Address getPeer() {
+            return peer;
+        }
+
+        @Override
+        public void setPeer(Address peer) {
+            this.peer = peer;
+        }
+
+        private void deliver(Message message) {
+            synchronized (inbox) {
+                inbox.add(message);
+                if (draining) {
+                    return;
+                }
+                draining = true;
+            }
+            workers.execute(this::drain);
+        }
+
+        private void drain() {
+            while (true) {
+                Message message;
+                synchronized (inbox) {
+                    message = inbox.poll();
+                    if (message == null) {
+                        draining = false;
+                        return;
+                    }
+                }
+                try {
+                    requestHandler.handleRequest(message, this);
+                } catch (IOException e) {
+                    System.out.println("I/O error " + e);
+                } catch (RuntimeException e) {
+                    System.out.println(e);
+                }
+            }
+        }
+
+        /**
+         * Legacy object stream clients cannot be decoded frame by frame, so they are served by a
+         * blocking ServerConnection. The key is cancelled first and the channel switched to
+         * blocking mode once the next select has deregistered it.
+         */
+        private void handOff() {
+            byte[] buffered = new byte[readBuffer.remaining()];
+            readBuffer.get(buffered);
+            key.cancel();
+            loop.execute(() -> {
+                try {
+                    channel.configureBlocking(true);
+                    ByteBuffer head;
+                    while ((head = writes.poll()) != null) {
+                        while (head.hasRemaining()) {
+                            channel.write(head);
+                        }
+                    }
+                    new ServerConnection(channel.socket(), node, buffered).start();
+                } catch (IOException e) {
+                    close();
+                }
+            });
+        }
+
+        void close() {
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
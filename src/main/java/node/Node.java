@@ -2,10 +2,23 @@ package node;
 
 import node.blockchain.Block;
 import node.blockchain.BlockSkeleton;
+import node.blockchain.BlockStore;
+import node.blockchain.BlockTransactions;
+import node.blockchain.MempoolLog;
 import node.blockchain.Transaction;
 import node.blockchain.BlockContainer;
 import node.communication.Address;
+import node.communication.BinaryMessageCodec;
+import node.communication.ConnectionPool;
+import node.communication.FrameCompression;
+import node.communication.Framing;
+import node.communication.Handshake;
+import node.communication.Inventory;
+import node.communication.MempoolSketch;
 import node.communication.Message;
+import node.communication.PeerConnection;
+import node.communication.Responder;
+import node.communication.utils.Hash256;
 import node.communication.utils.Hashing;
 
 import java.io.*;
@@ -14,12 +27,19 @@ import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
-import java.security.NoSuchAlgorithmException;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static node.communication.utils.Hashing.getBlockHash;
-import static node.communication.utils.Hashing.getSHAString;
+import static node.communication.utils.Hashing.hash;
+import static node.communication.utils.Utils.daemonThreads;
 import static node.communication.utils.Utils.deepCloneHashmap;
+import static node.communication.utils.Utils.getIntProperty;
 
 /**
  * Node represents a peer, a cooperating member within the network
@@ -28,13 +48,47 @@ import static node.communication.utils.Utils.deepCloneHashmap;
 public class Node  {
 
     private final int MAX_PEERS, NUM_NODES, QUORUM_SIZE, STARTING_PORT, MIN_CONNECTIONS, MIN_TRANSACTIONS_PER_BLOCK;
-    private final Object lock, quorumLock, memPoolLock, quorumReadyVotesLock, memPoolRoundsLock, sigRoundsLock;
+    private final Object lock, quorumReadyVotesLock, memPoolRoundsLock, sigRoundsLock, chainLock;
     private int quorumReadyVotes, memPoolRounds, sigRounds;
     private ArrayList<Address> localPeers, quorumPeers;
-    private HashMap<String, Transaction> mempool;
+    private volatile Quorum quorum;
+    private Mempool mempool;
     private ArrayList<String> quorumSigs;
-    private ArrayList<Block> blockchain;
+    private BlockStore blockchain;
+    private MempoolLog mempoolLog;
+    private StateSync stateSync;
     private final Address myAddress;
+    private final ConnectionPool connectionPool;
+    private final FailureDetector failureDetector;
+    private final PeerLatencies peerLatencies;
+    private final HashSet<Address> nearPeers;
+    private final int peerProbes, nearPeersPercent;
+    private final AddressBook addressBook;
+    private final int discoveryFanout, addressSampleSize;
+    private final HeartBeatMonitor heartBeatMonitor;
+    private final FrameCompression frameCompression;
+    private final TransactionBatcher<Transaction> transactionBatcher;
+    private final TransactionBatcher<Hash256> inventoryBatcher;
+    private final InFlightRequests inFlightRequests;
+    private final SeenCache seenCache;
+    private final HashMap<Integer, PartialBlock> partialBlocks;
+    private final ExecutorService blockRelay;
+    /* Timers and background disk work of the node's parts, on daemon threads */
+    private final ScheduledExecutorService scheduler;
+    private final boolean sketchMempoolSync;
+    private final int minSketchDifference;
+    private final HashMap<Address, Integer> mempoolDifferences;
+    private final AtomicLong sketchesDecoded, sketchFallbacks;
+    private long peersEvicted;
+    private final boolean broadcastVoting;
+    private final int voteThresholdPercent, voteTimeout;
+    private final ExecutorService voteRequests;
+    private final BlockPipeline blockPipeline;
+    private final BlockTrigger blockTrigger;
+    private final ShardedConsensus shardedConsensus;
+    private final Object commitLock;
+    private Block votedBlock;
+    private volatile long votingStartedAt, voteLatency = -1;
     private ServerSocket ss;
 
     private enum status{IN_QUORUM, NOT_IN_QUORUM};
@@ -46,7 +100,17 @@ public class Node  {
     public Address getAddress(){return this.myAddress;}
     public ArrayList<Address> getLocalPeers(){return this.localPeers;}
     public ArrayList<Address> getQuorumPeers(){return this.quorumPeers;}
-    public HashMap<String, Transaction> getMempool(){return this.mempool;}
+    public Mempool getMempool(){return this.mempool;}
+    public ConnectionPool getConnectionPool(){return this.connectionPool;}
+    public SeenCache getSeenCache(){return this.seenCache;}
+    public FrameCompression getFrameCompression(){return this.frameCompression;}
+    public PeerLatencies getPeerLatencies(){return this.peerLatencies;}
+    public int getPeerProbes(){return this.peerProbes;}
+    public int getNearPeersPercent(){return this.nearPeersPercent;}
+    public boolean isBroadcastVoting(){return this.broadcastVoting;}
+    public AddressBook getAddressBook(){return this.addressBook;}
+    public ShardedConsensus getShardedConsensus(){return this.shardedConsensus;}
+    public StateSync getStateSync(){return this.stateSync;}
     public status getStatus() {
         return nodeStatus;
     }
@@ -60,13 +124,26 @@ public class Node  {
      * @param initialConnections How many nodes we want to attempt to connect to on start
      */
     public Node(int port, int maxPeers, int initialConnections, int numNodes, int quorumSize, int startingPort, int minTransactionsPerBlock) {
+        this(port, maxPeers, initialConnections, numNodes, quorumSize, startingPort, minTransactionsPerBlock, new Properties());
+    }
+
+    /**
+     * Node constructor which additionally reads optional tuning settings
+     *
+     * @param config Loaded config.properties, settings missing from it use their defaults
+     */
+    public Node(int port, int maxPeers, int initialConnections, int numNodes, int quorumSize, int startingPort, int minTransactionsPerBlock, Properties config) {
 
         /* Initialize global variables */
         lock =  new Object();
-        quorumLock = new Object();
         quorumReadyVotesLock = new Object();
         memPoolRoundsLock = new Object();
         sigRoundsLock = new Object();
+        chainLock = new Object();
+        partialBlocks = new HashMap<>();
+        blockRelay = Executors.newSingleThreadExecutor();
+        scheduler = Executors.newScheduledThreadPool(getIntProperty(config, "SCHEDULER_THREADS", 2),
+                daemonThreads("node-" + port + "-scheduler"));
         myAddress = new Address(port, "localhost");
         localPeers = new ArrayList<>();
         quorumPeers = new ArrayList<>();
@@ -77,17 +154,118 @@ public class Node  {
         QUORUM_SIZE = quorumSize;
         STARTING_PORT = startingPort;
         MIN_TRANSACTIONS_PER_BLOCK = minTransactionsPerBlock;
-        mempool = new HashMap<>();
-        memPoolLock = new Object();
+        sketchesDecoded = new AtomicLong();
+        sketchFallbacks = new AtomicLong();
         memPoolRounds = 0;
         quorumReadyVotes = 0;
         sigRounds = 0;
+        int heartbeatInterval = getIntProperty(config, "HEARTBEAT_INTERVAL_MS", 1000);
+        failureDetector = new FailureDetector(heartbeatInterval);
+        heartBeatMonitor = new HeartBeatMonitor(this, failureDetector, heartbeatInterval,
+                getIntProperty(config, "PHI_THRESHOLD", 8), getIntProperty(config, "REWIRE_INTERVAL_MS", 30000),
+                getIntProperty(config, "DISCOVERY_INTERVAL_MS", 10000),
+                getIntProperty(config, "PING_THREADS", 4), scheduler);
+        /* Room for every address the book can hold and every peer, some of which came to us unknown */
+        peerLatencies = new PeerLatencies(getIntProperty(config, "ADDRESS_BOOK_SIZE", 256) + maxPeers);
+        nearPeers = new HashSet<>();
+        peerProbes = getIntProperty(config, "PEER_PROBES", 8);
+        nearPeersPercent = getIntProperty(config, "NEAR_PEERS_PERCENT", 67);
+        addressBook = new AddressBook(getIntProperty(config, "ADDRESS_BOOK_SIZE", 256));
+        discoveryFanout = getIntProperty(config, "DISCOVERY_FANOUT", 3);
+        addressSampleSize = getIntProperty(config, "ADDRESS_SAMPLE_SIZE", 16);
+        connectionPool = new ConnectionPool(getIntProperty(config, "MAX_IDLE_CONNECTIONS_PER_PEER", 2),
+                Framing.codecFor(config.getProperty("WIRE_CODEC", "BINARY")), failureDetector::heartbeat,
+                getIntProperty(config, "CONNECT_TIMEOUT_MS", 5000));
+        frameCompression = FrameCompression.fromConfig(config.getProperty("COMPRESSION", "NONE"),
+                getIntProperty(config, "COMPRESSION_THRESHOLD", 1024));
+        /* Nodes outside our peers, such as quorum members, are negotiated with on the first pooled link */
+        if (frameCompression != null && connectionPool.getCodec().getId() == BinaryMessageCodec.ID) {
+            connectionPool.negotiateCompression(new Handshake(myAddress, FrameCompression.SUPPORTED), frameCompression);
+        }
+        int txBatchSize = getIntProperty(config, "TX_BATCH_SIZE", 32);
+        int txBatchDelay = getIntProperty(config, "TX_BATCH_DELAY_MS", 5);
+        if (config.getProperty("TX_RELAY", "INV").trim().equalsIgnoreCase("PUSH")) {
+            transactionBatcher = txBatchSize > 1
+                    ? new TransactionBatcher<>(this, txBatchSize, txBatchDelay, batch -> new Message(Message.Request.TX_BATCH, batch), scheduler)
+                    : null;
+            inventoryBatcher = null;
+        } else {
+            transactionBatcher = null;
+            inventoryBatcher = new TransactionBatcher<>(this, Math.max(txBatchSize, 1), txBatchDelay,
+                    keys -> new Message(Message.Request.INV, new Inventory(myAddress, keys)), scheduler);
+        }
+        inFlightRequests = new InFlightRequests(getIntProperty(config, "INV_REQUEST_TIMEOUT_MS", 2000));
+        seenCache = new SeenCache(config.getProperty("SEEN_CACHE", "EXACT").trim().equalsIgnoreCase("BLOOM"),
+                getIntProperty(config, "SEEN_CACHE_CAPACITY", 100000),
+                getIntProperty(config, "SEEN_CACHE_WINDOW_MS", 60000));
+        sketchMempoolSync = !config.getProperty("MEMPOOL_SYNC", "SKETCH").trim().equalsIgnoreCase("FULL");
+        minSketchDifference = getIntProperty(config, "MEMPOOL_SKETCH_MIN_DIFFERENCE", 16);
+        mempoolDifferences = new HashMap<>();
+        broadcastVoting = config.getProperty("VOTING", "RING").trim().equalsIgnoreCase("BROADCAST");
+        voteThresholdPercent = getIntProperty(config, "VOTE_THRESHOLD_PERCENT", 67);
+        voteTimeout = getIntProperty(config, "VOTE_TIMEOUT_MS", 5000);
+        voteRequests = Executors.newCachedThreadPool();
+        blockPipeline = new BlockPipeline(getIntProperty(config, "PIPELINE_DEPTH", 1));
+        commitLock = new Object();
+        blockTrigger = new BlockTrigger(minTransactionsPerBlock,
+                getIntProperty(config, "BLOCK_MAX_TXS", 1000),
+                getIntProperty(config, "BLOCK_MAX_BYTES", 1048576),
+                getIntProperty(config, "BLOCK_MAX_WAIT_MS", 500),
+                !config.getProperty("BLOCK_SIZE", "ADAPTIVE").trim().equalsIgnoreCase("FIXED"));
+        int shards = getIntProperty(config, "SHARDS", 1);
+        shardedConsensus = shards > 1
+                ? new ShardedConsensus(this, shards, numNodes, quorumSize, startingPort, minTransactionsPerBlock, config,
+                        voteRequests, blockRelay, scheduler)
+                : null;
+        if (broadcastVoting && shardedConsensus == null) {
+            long checkInterval = blockTrigger.getCheckIntervalNanos();
+            scheduler.scheduleWithFixedDelay(this::checkBlockTrigger,
+                    checkInterval, checkInterval, TimeUnit.NANOSECONDS);
+        }
+        try {
+            blockchain = new BlockStore(Paths.get(config.getProperty("DATA_DIR", "data").trim(), String.valueOf(port), "blocks"),
+                    getIntProperty(config, "BLOCK_SEGMENT_BYTES", 64 * 1024 * 1024),
+                    getIntProperty(config, "BLOCK_FSYNC_BLOCKS", 16),
+                    getIntProperty(config, "BLOCK_FSYNC_INTERVAL_MS", 100),
+                    Math.max(getIntProperty(config, "BLOCK_CACHE_SIZE", 256), blockPipeline.getDepth() + 1),
+                    scheduler);
+            mempoolLog = new MempoolLog(Paths.get(config.getProperty("DATA_DIR", "data").trim(), String.valueOf(port), "mempool.log"),
+                    getIntProperty(config, "MEMPOOL_LOG_SYNC_BYTES", 65536),
+                    getIntProperty(config, "MEMPOOL_LOG_SYNC_MS", 20),
+                    getIntProperty(config, "MEMPOOL_LOG_COMPACT_BYTES", 16 * 1024 * 1024),
+                    scheduler);
+            mempool = new Mempool(config.getProperty("MEMPOOL_STORAGE", "HEAP").trim().equalsIgnoreCase("OFF_HEAP")
+                            ? new OffHeapMempoolStore(getIntProperty(config, "MEMPOOL_ARENA_SLAB_BYTES", 1024 * 1024))
+                            : new HeapMempoolStore(),
+                    mempoolLog, shardedConsensus,
+                    getIntProperty(config, "MEMPOOL_MAX_TXS", 100000),
+                    getIntProperty(config, "MEMPOOL_MAX_BYTES", 64 * 1024 * 1024),
+                    getIntProperty(config, "MEMPOOL_TTL_MS", 600000),
+                    !config.getProperty("MEMPOOL_EVICTION", "OLDEST").trim().equalsIgnoreCase("REJECT"));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
         initializeBlockchain();
+        recoverMempool();
+        long expiryInterval = mempool.getTtlMillis() > 0 ? Math.min(mempool.getTtlMillis() / 4 + 1, 1000) : 1000;
+        scheduler.scheduleWithFixedDelay(mempool::expire,
+                expiryInterval, expiryInterval, TimeUnit.MILLISECONDS);
+        /* Shard chains are held in memory only, so there is nothing to snapshot */
+        stateSync = shardedConsensus == null
+                ? new StateSync(this, Paths.get(config.getProperty("DATA_DIR", "data").trim(), String.valueOf(port), "snapshot.dat"), config, scheduler)
+                : null;
 
         try {
-            ss = new ServerSocket(port);
-            Acceptor acceptor = new Acceptor(this);
-            acceptor.start();
+            if (config.getProperty("TRANSPORT", "BLOCKING").trim().equalsIgnoreCase("NIO")) {
+                NioServer nioServer = new NioServer(this, port,
+                        getIntProperty(config, "NIO_EVENT_LOOPS", 1),
+                        getIntProperty(config, "NIO_WORKER_THREADS", 2));
+                nioServer.start();
+            } else {
+                ss = new ServerSocket(port);
+                Acceptor acceptor = new Acceptor(this);
+                acceptor.start();
+            }
             System.out.println("Node up and running on port " + port + " " + InetAddress.getLocalHost());
         } catch (IOException e) {
             System.err.println(e);
@@ -95,11 +273,62 @@ public class Node  {
     }
 
     /**
-     * Initializes blockchain
+     * Initializes blockchain with the genesis block, unless the block store was reopened
+     * with a chain in it, which carries on from its tip
      */
     public void initializeBlockchain(){
-        blockchain = new ArrayList<Block>();
-        blockchain.add(new Block(new HashMap<String, Transaction>(), "", 0));
+        if(blockchain.size() == 0){
+            blockchain.add(new Block(new HashMap<Hash256, Transaction>(), null, 0));
+        }else{
+            System.out.println("Node " + myAddress.getPort() + ": Reopened chain at height " + (blockchain.size() - 1));
+        }
+    }
+
+    /**
+     * Refills the mempool from its log, leaving out transactions a block committed before
+     * the log heard of it, and starts the log over with what is left
+     */
+    private void recoverMempool(){
+        long start = System.nanoTime();
+        LinkedHashMap<Hash256, Transaction> logged;
+        try {
+            logged = mempoolLog.replay();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        for(Map.Entry<Hash256, Transaction> entry : logged.entrySet()){
+            if(blockchain.findTransaction(entry.getKey()) == null
+                    && mempool.add(entry.getKey(), entry.getValue()) == Mempool.Admission.ACCEPTED){
+                seenCache.add(entry.getKey());
+            }
+        }
+        mempool.compactLog();
+        if(mempool.size() > 0){
+            System.out.println("Node " + myAddress.getPort() + ": Recovered " + mempool.size() + " mempool transactions in "
+                    + (System.nanoTime() - start) / 1_000_000 + " ms");
+        }
+    }
+
+    /**
+     * What this node says about itself in REQUEST_CONNECTION. Handshakes are carried as
+     * trailing bytes of the binary layout, so with the serialized codec, where older nodes
+     * could not load the class, the bare address is sent and nothing is negotiated
+     */
+    public Object getHandshake(){
+        if (connectionPool.getCodec().getId() == BinaryMessageCodec.ID) {
+            return new Handshake(myAddress, FrameCompression.SUPPORTED);
+        }
+        return myAddress;
+    }
+
+    /**
+     * Compresses large frames to a peer from now on if it can inflate our compression
+     * @param address Peer which completed a handshake with us
+     * @param compressions Compressions the peer offered, null if it predates negotiation
+     */
+    public void negotiateCompression(Address address, byte[] compressions){
+        boolean supported = frameCompression != null && frameCompression.isSupportedBy(compressions);
+        connectionPool.setCompression(address, supported ? frameCompression : null);
     }
 
     /**
@@ -125,31 +354,217 @@ public class Node  {
      * @param address
      */
     public void establishConnection(Address address){
+        failureDetector.register(address);
+        addressBook.add(address);
         localPeers.add(address);
         System.out.println("Node " + this.getAddress().getPort() + ": Added peer: " + address.getPort());
     }
 
     /**
      * Iterate through a list of peers and attempt to establish a mutual connection
-     * with a specified amount of nodes
-     * @param globalPeers
+     * with a specified amount of nodes. The list may hold every node in the network or
+     * only a few seeds, the rest being discovered through QUERY_PEERS
+     * @param knownPeers
      */
-    public void requestConnections(ArrayList<Address> globalPeers){
+    public void requestConnections(ArrayList<Address> knownPeers){
         try {
-            if(globalPeers.size() > 0){
+            if(knownPeers.size() > 0){
+                for(Address address : new ArrayList<>(knownPeers)){
+                    if(!address.equals(myAddress)){
+                        addressBook.add(address);
+                    }
+                }
+
                 /* Begin seeking connections */
-                ClientConnection connect = new ClientConnection(this, globalPeers);
+                ClientConnection connect = new ClientConnection(this, null, false);
                 connect.start();
 
                 /* Begin heartbeat monitor */
-                Thread.sleep(10000);
-                HeartBeatMonitor heartBeatMonitor = new HeartBeatMonitor(this);
                 heartBeatMonitor.start();
             }
         } catch (SocketException e) {
             throw new RuntimeException(e);
-        } catch (InterruptedException e) {
-            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Called once a round of seeking connections is over, to catch up with the new peers
+     */
+    void connectedToPeers(){
+        if(stateSync != null){
+            stateSync.checkPeers();
+        }
+    }
+
+    public ArrayList<Address> copyLocalPeers(){
+        synchronized (lock){
+            return new ArrayList<>(localPeers);
+        }
+    }
+
+    public ArrayList<Address> copyNearPeers(){
+        synchronized (lock){
+            return new ArrayList<>(nearPeers);
+        }
+    }
+
+    /**
+     * Remembers that a peer was chosen for its low latency, making it eligible for rewiring
+     */
+    public void markNearPeer(Address address){
+        synchronized (lock){
+            if(containsAddress(localPeers, address)){
+                nearPeers.add(address);
+            }
+        }
+    }
+
+    /**
+     * @return True if the address is another node we are not yet connected to
+     */
+    public boolean isCandidatePeer(Address address){
+        synchronized (lock){
+            return !address.equals(myAddress) && !containsAddress(localPeers, address);
+        }
+    }
+
+    /**
+     * Drops a peer the failure detector suspects and seeks a replacement among the
+     * other known nodes
+     * @param address Suspected peer
+     * @param phi Suspicion which caused the eviction
+     */
+    public void evictPeer(Address address, double phi){
+        synchronized (lock){
+            if(removeAddress(address) == null){
+                return;
+            }
+            peersEvicted++;
+        }
+        System.out.printf("Node %d: Evicted peer %d, phi %.1f%n", myAddress.getPort(), address.getPort(), phi);
+        seekPeers(address);
+    }
+
+    /**
+     * Counts a message from a node as a heartbeat, see FailureDetector
+     */
+    void heardFrom(Address address){
+        failureDetector.heartbeat(address);
+    }
+
+    /**
+     * Disconnects from a peer which rewiring replaced, telling it to drop us as well
+     */
+    public void dropPeer(Address address){
+        sendOneWayMessage(address, new Message(Message.Request.DISCONNECT, myAddress));
+        synchronized (lock){
+            removeAddress(address);
+        }
+    }
+
+    /**
+     * Drops a peer which disconnected from us, replacing it if we are left with too few
+     */
+    public void receiveDisconnect(Address address){
+        boolean tooFew;
+        synchronized (lock){
+            if(removeAddress(address) == null){
+                return;
+            }
+            tooFew = localPeers.size() < MIN_CONNECTIONS;
+        }
+        if(tooFew){
+            seekPeers(address);
+        }
+    }
+
+    /**
+     * Starts a periodic rewiring pass, see ClientConnection
+     */
+    public void rewirePeers(){
+        if(addressBook.size() > 0){
+            try {
+                new ClientConnection(this, null, true).start();
+            } catch (SocketException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Periodic discovery pass. Refreshes the address book and, should earlier attempts
+     * have left us with too few peers, seeks more among the addresses just learned
+     */
+    public void maintainPeers(){
+        if(addressBook.size() == 0){
+            return;
+        }
+        discoverPeers();
+        boolean tooFew;
+        synchronized (lock){
+            tooFew = localPeers.size() < MIN_CONNECTIONS;
+        }
+        if(tooFew){
+            seekPeers(null);
+        }
+    }
+
+    /**
+     * Asks a few random nodes from the address book which addresses they know of. Each is
+     * told our own address in the query, so seeds learn of the nodes joining through them,
+     * and nodes which cannot be reached are forgotten
+     * @return Amount of addresses which were new to us
+     */
+    public int discoverPeers(){
+        int learned = 0;
+        for(Address address : addressBook.sample(discoveryFanout)){
+            /* Queried nodes are mostly not peers, so the link is not kept in the pool */
+            PeerConnection connection = null;
+            try {
+                connection = connectionPool.open(address);
+                Message reply = connection.request(new Message(Message.Request.QUERY_PEERS, myAddress));
+                if(reply.getMetadata() instanceof List){
+                    for(Object known : (List<?>) reply.getMetadata()){
+                        if(known instanceof Address && !known.equals(myAddress) && addressBook.add((Address) known)){
+                            learned++;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                addressBook.remove(address);
+            } finally {
+                if(connection != null){
+                    connection.close();
+                }
+            }
+        }
+        return learned;
+    }
+
+    /**
+     * Answers a discovery query with a random sample of the address book, so no single
+     * node's view of the network spreads further than any other's
+     * @param requester Node which asked, added to our own address book
+     */
+    public ArrayList<Address> samplePeers(Address requester){
+        if(!requester.equals(myAddress)){
+            addressBook.add(requester);
+        }
+        ArrayList<Address> sample = addressBook.sample(addressSampleSize + 1);
+        sample.remove(requester);
+        if(sample.size() > addressSampleSize){
+            sample.remove(sample.size() - 1);
+        }
+        return sample;
+    }
+
+    private void seekPeers(Address excluded){
+        if(addressBook.size() > 0){
+            try {
+                new ClientConnection(this, excluded, false).start();
+            } catch (SocketException e) {
+                throw new RuntimeException(e);
+            }
         }
     }
 
@@ -169,59 +584,52 @@ public class Node  {
     }
 
     public boolean containsTransaction(Transaction transaction){
-        Set<Transaction> values = new HashSet<>();
-        for(Map.Entry<String, Transaction> entry : mempool.entrySet()){
-            if (entry.getValue().equals(transaction)) {
-                return true;
-            }
-        }
-        return false;
+        return mempool.contains(hash(transaction.getData()));
     }
 
     public Address removeAddress(Address address){
         for (Address existingAddress : localPeers) {
             if (existingAddress.equals(address)) {
                 localPeers.remove(address);
+                nearPeers.remove(address);
+                failureDetector.remove(address);
+                peerLatencies.remove(address);
+                connectionPool.closeAll(address);
                 return address;
             }
         }
         return null;
     }
 
-    public void gossipTransaction(Transaction transaction){
+    /**
+     * Gossips a transaction to our local peers. With TX_RELAY=INV only its key is announced
+     * and peers pull the body if they lack it, otherwise the body itself is pushed.
+     * Either is batched with other transactions if TX_BATCH_SIZE allows it
+     * @param key Mempool key of the transaction
+     * @param transaction Transaction to gossip
+     */
+    public void gossipTransaction(Hash256 key, Transaction transaction){
+        ArrayList<Address> peers;
         synchronized (lock){
-            for(Address address : localPeers){
-                try {
-                    Socket s = new Socket(address.getHost(), address.getPort());
-                    InputStream in = s.getInputStream();
-                    ObjectInputStream oin = new ObjectInputStream(in);
-                    OutputStream out = s.getOutputStream();
-                    ObjectOutputStream oout = new ObjectOutputStream(out);
-                    Message message = new Message(Message.Request.ADD_TRANSACTION, transaction);
-                    oout.writeObject(message);
-                    oout.flush();
-                    s.close();
-                } catch (IOException e) {
-                    System.out.println("Received IO Exception from node " + address.getPort());
-                    //removeAddress(address);
-                } catch (ConcurrentModificationException e){
-                    break;
-                }
+            if(inventoryBatcher != null){
+                inventoryBatcher.add(localPeers, key);
+                return;
+            }
+            if(transactionBatcher != null){
+                transactionBatcher.add(localPeers, transaction);
+                return;
             }
+            peers = new ArrayList<>(localPeers);
+        }
+        for(Address address : peers){
+            sendOneWayMessage(address, new Message(Message.Request.ADD_TRANSACTION, transaction));
         }
     }
 
 
     public void sendOneWayMessage(Address address, Message message) {
         try {
-            Socket s = new Socket(address.getHost(), address.getPort());
-            InputStream in = s.getInputStream();
-            ObjectInputStream oin = new ObjectInputStream(in);
-            OutputStream out = s.getOutputStream();
-            ObjectOutputStream oout = new ObjectOutputStream(out);
-            oout.writeObject(message);
-            oout.flush();
-            s.close();
+            connectionPool.sendOneWay(address, message);
         } catch (IOException e) {
             System.out.println("Received IO Exception from node " + address.getPort());
             //removeAddress(address);
@@ -230,44 +638,132 @@ public class Node  {
 
     public Message sendTwoWayMessage(Address address, Message message) {
         try {
-            Socket s = new Socket(address.getHost(), address.getPort());
-            InputStream in = s.getInputStream();
-            ObjectInputStream oin = new ObjectInputStream(in);
-            OutputStream out = s.getOutputStream();
-            ObjectOutputStream oout = new ObjectOutputStream(out);
-            oout.writeObject(message);
-            oout.flush();
-            Message messageReceived = (Message) oin.readObject();
-            s.close();
-            return messageReceived;
+            return connectionPool.sendTwoWay(address, message);
         } catch (IOException e) {
             System.out.println("Received IO Exception from node " + address.getPort());
             //removeAddress(address);
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException(e);
         }
         return null;
     }
 
     public void addTransaction(Transaction transaction){
-        synchronized (memPoolLock){
-            if(!containsTransaction(transaction)){
-                try {
-                    mempool.put(getSHAString(transaction.getData()), transaction);
-                } catch (NoSuchAlgorithmException e) {
-                    throw new RuntimeException(e);
-                }
-                gossipTransaction(transaction);
-                System.out.println("Node " + myAddress.getPort() + ": mempool :" + mempool.values());
+        addTransaction(hash(transaction.getData()), transaction);
+    }
 
-                if(mempool.size() == MIN_TRANSACTIONS_PER_BLOCK){
-                    if(inQuorum()){
-                        //System.out.println("node " + myAddress.getPort() + ": In quorum");
-                        //sendQuorumReady();
-                    }
+    /**
+     * Adds a transaction whose key the caller already computed, gossiping it if it is new.
+     * Only the thread whose insert won gossips, and it does so holding no lock
+     * @param key Mempool key of the transaction
+     * @param transaction Transaction to add
+     * @return Whether the mempool took the transaction, and if not why
+     */
+    public Mempool.Admission addTransaction(Hash256 key, Transaction transaction){
+        inFlightRequests.received(key);
+        Mempool.Admission admission = mempool.add(key, transaction);
+        if(admission != Mempool.Admission.ACCEPTED){
+            return admission;
+        }
+        seenCache.add(key);
+        gossipTransaction(key, transaction);
+        System.out.println("Node " + myAddress.getPort() + ": mempool : " + mempool.size() + " transactions, "
+                + mempool.bytes() + " bytes");
+        if(broadcastVoting && shardedConsensus == null && shouldPropose()){
+            scheduleProposals();
+        }
+        return admission;
+    }
+
+    /**
+     * Admits a transaction a client submitted, which unlike gossip is answered: a
+     * transaction a block already committed is a duplicate, and one the mempool has no
+     * room for is refused so the client can back off and submit it again
+     * @return Whether the mempool took the transaction, and if not why
+     */
+    public Mempool.Admission submitTransaction(Transaction transaction){
+        Hash256 key = hash(transaction.getData());
+        if(blockchain.findTransaction(key) != null){
+            return Mempool.Admission.DUPLICATE;
+        }
+        return addTransaction(key, transaction);
+    }
+
+    /**
+     * Requests the bodies of announced transactions which we neither hold nor already await
+     * @param inventory Keys announced by a peer
+     */
+    public void receiveInventory(Inventory inventory){
+        ArrayList<Hash256> wanted = new ArrayList<>();
+        for(Hash256 key : inventory.getKeys()){
+            if(!mempool.contains(key) && inFlightRequests.tryRequest(key)){
+                wanted.add(key);
+            }
+        }
+        if(!wanted.isEmpty()){
+            sendOneWayMessage(inventory.getAddress(), new Message(Message.Request.GETDATA, new Inventory(myAddress, wanted)));
+        }
+    }
+
+    /**
+     * Sends a peer the bodies it requested after our announcement
+     * @param inventory Keys requested by a peer
+     */
+    public void receiveDataRequest(Inventory inventory){
+        ArrayList<Transaction> transactions = new ArrayList<>();
+        for(Hash256 key : inventory.getKeys()){
+            Transaction transaction = mempool.get(key);
+            if(transaction != null){
+                transactions.add(transaction);
+            }
+        }
+        if(!transactions.isEmpty()){
+            sendOneWayMessage(inventory.getAddress(), new Message(Message.Request.TX_BATCH, transactions));
+        }
+    }
+
+    /**
+     * Counters describing this node, answered to QUERY_STATS
+     * @return Counter names mapped to their values
+     */
+    public LinkedHashMap<String, Long> getStats(){
+        LinkedHashMap<String, Long> stats = new LinkedHashMap<>();
+        stats.put("seenCacheHits", seenCache.getHits());
+        stats.put("seenCacheMisses", seenCache.getMisses());
+        stats.put("mempoolSize", (long) mempool.size());
+        stats.put("mempoolBytes", mempool.bytes());
+        stats.put("mempoolEvicted", mempool.getEvicted());
+        stats.put("mempoolExpired", mempool.getExpired());
+        stats.put("mempoolRejected", mempool.getRejected());
+        stats.put("mempoolOffHeapBytes", mempool.offHeapBytes());
+        stats.put("mempoolLogBytes", mempool.logBytes());
+        stats.put("mempoolSketchesDecoded", sketchesDecoded.get());
+        stats.put("mempoolSketchFallbacks", sketchFallbacks.get());
+        synchronized (lock){
+            stats.put("peersEvicted", peersEvicted);
+            stats.put("addressBookSize", (long) addressBook.size());
+            stats.put("voteLatencyMicros", voteLatency < 0 ? -1 : voteLatency / 1000);
+            stats.put("blocksCommitted", blockPipeline.getCommitted());
+            stats.put("blockTargetTxs", (long) blockTrigger.getTargetTxs());
+            long commitLatency = blockPipeline.meanCommitLatency();
+            stats.put("meanCommitLatencyMicros", commitLatency < 0 ? -1 : commitLatency / 1000);
+            if (shardedConsensus != null) {
+                shardedConsensus.addStats(stats);
+            }
+            if (stateSync != null) {
+                stateSync.addStats(stats);
+            }
+            long rttSum = 0;
+            int measured = 0;
+            for (Address address : localPeers) {
+                long rtt = peerLatencies.get(address);
+                if (rtt >= 0) {
+                    stats.put("peerRttMicros:" + address.getPort(), rtt / 1000);
+                    rttSum += rtt;
+                    measured++;
                 }
             }
+            stats.put("meanPeerRttMicros", measured == 0 ? -1 : rttSum / measured / 1000);
         }
+        return stats;
     }
 
     public void sendQuorumReady(){
@@ -275,127 +771,324 @@ public class Node  {
         sendOneWayMessageQuorum(new Message(Message.Request.QUORUM_READY));
     }
 
+    /**
+     * Counts a quorum member which is ready, offering our mempool once all are. Offering it
+     * waits on replies from every member, which are answered by threads handling their
+     * messages, so it runs on a thread of its own rather than the one handling this message
+     */
     public void receiveQuorumReady(){
         synchronized (quorumReadyVotesLock){
             quorumReadyVotes++;
-            ArrayList<Address> quorum = deriveQuorum(blockchain.get(blockchain.size() - 1), 0);
+            List<Address> quorum = getQuorum().getMembers();
             if(quorumReadyVotes == quorum.size() - 1){
                 quorumReadyVotes = 0;
-                sendMempoolHashes();
+                voteRequests.execute(this::sendMempoolHashes);
             }
         }
     }
 
+    /**
+     * Offers our mempool to every other quorum member. With sketch sync each member is sent
+     * a sketch sized to the difference last seen with it and only falls back to the full
+     * key list when it cannot decode the sketch. Transactions it then asks for are sent
+     * on the same connection
+     */
     public void sendMempoolHashes() {
         //System.out.println("Node " + myAddress.getPort() + " sending mempool");
 
-        HashSet<String> keys = new HashSet(mempool.keySet());
-        ArrayList<Address> quorum = deriveQuorum(blockchain.get(blockchain.size() - 1), 0);
+        HashSet<Hash256> keys = new HashSet<>(mempool.keys());
+        List<Address> quorum = getQuorum().getMembers();
 
         for (Address quorumAddress : quorum) {
             if (!myAddress.equals(quorumAddress)) {
-                Socket s = null;
+                PeerConnection connection = null;
                 try {
-                    s = new Socket(quorumAddress.getHost(), quorumAddress.getPort());
-                    InputStream in = s.getInputStream();
-                    ObjectInputStream oin = new ObjectInputStream(in);
-                    OutputStream out = s.getOutputStream();
-                    ObjectOutputStream oout = new ObjectOutputStream(out);
-                    oout.writeObject(new Message(Message.Request.RECEIVE_MEMPOOL, keys));
-                    oout.flush();
-                    Message messageReceived = (Message) oin.readObject();
-                    if(messageReceived.getRequest().name().equals("REQUEST_TRANSACTION")){
-                        ArrayList<String> hashesRequested = (ArrayList<String>) messageReceived.getMetadata();
+                    connection = connectionPool.acquire(quorumAddress);
+                    Message messageReceived;
+                    int fallbackDifference = 0;
+                    MempoolSketch sketch = sketchMempoolSync ? sketchFor(quorumAddress) : null;
+                    /* A sketch with more cells than we hold keys is no smaller than the keys */
+                    if (sketch != null && sketch.getCells() < keys.size()) {
+                        sketch.addAll(keys);
+                        messageReceived = connection.request(new Message(Message.Request.RECEIVE_MEMPOOL_SKETCH, sketch));
+                        if (messageReceived.getRequest() == Message.Request.REQUEST_MEMPOOL) {
+                            messageReceived = connection.request(new Message(Message.Request.RECEIVE_MEMPOOL, keys));
+                            fallbackDifference = 2 * sketch.getCells();
+                        }
+                    } else {
+                        messageReceived = connection.request(new Message(Message.Request.RECEIVE_MEMPOOL, keys));
+                    }
+                    int difference = 0;
+                    if(messageReceived.getRequest() == Message.Request.REQUEST_TRANSACTION
+                            && messageReceived.getMetadata() instanceof Collection){
+                        Collection<?> hashesRequested = (Collection<?>) messageReceived.getMetadata();
                         ArrayList<Transaction> transactionsToSend = new ArrayList<>();
-                        for(String hash : keys){
-                            if(mempool.containsKey(hash)){
-                                transactionsToSend.add(mempool.get(hash));
-                            }else{
-                                s.close();
-                                throw new Exception();
-                                // something is wrong
+                        for(Object key : hashesRequested){
+                            /* A block or expiry may have taken it since we offered it, which the member can live without */
+                            Transaction transaction = key instanceof Hash256 ? mempool.get((Hash256) key) : null;
+                            if(transaction != null){
+                                transactionsToSend.add(transaction);
                             }
                         }
-                        oout.writeObject(new Message(Message.Request.RECEIVE_MEMPOOL, transactionsToSend));
-                    }else{
+                        connection.send(new Message(Message.Request.RECEIVE_TRANSACTIONS, transactionsToSend));
+                        difference = hashesRequested.size();
+                    }
+                    /* Members offer each other their mempools, so expect as many keys the other way */
+                    synchronized (mempoolDifferences) {
+                        mempoolDifferences.put(quorumAddress, Math.max(fallbackDifference, 2 * difference));
                     }
-                    s.close();
+                    connectionPool.release(connection);
                 } catch (IOException e) {
                     System.out.println(e);
-                    //throw new RuntimeException(e);
-                } catch (ClassNotFoundException e) {
-                    //throw new RuntimeException(e);
-                } catch (Exception e){
-
+                    if(connection != null) connectionPool.discard(connection);
                 }
             }
         }
     }
 
-    public void receiveMempool(Set<String> keys, ObjectOutputStream oout, ObjectInputStream oin) {
-        synchronized (memPoolLock) {
-            ArrayList<Address> quorum = deriveQuorum(blockchain.get(blockchain.size() - 1), 0);
-            //System.out.println("Node " + myAddress.getPort() + " Received mempool");
-            ArrayList<String> keysAbsent = new ArrayList<>();
-            for (String key : keys) {
-                if (!mempool.containsKey(key)) {
-                    keysAbsent.add(key);
-                }
+    private MempoolSketch sketchFor(Address quorumAddress) {
+        synchronized (mempoolDifferences) {
+            return MempoolSketch.forDifference(Math.max(minSketchDifference, mempoolDifferences.getOrDefault(quorumAddress, 0)));
+        }
+    }
+
+    /**
+     * Decodes a quorum member's mempool sketch against our own mempool and requests the
+     * transactions we lack. If the sketch cannot be decoded the full key list is requested
+     * instead and the round is counted once it arrives. The sketch is built from the
+     * mempool as it is while we iterate, which decoding tolerates like any other difference
+     * @param sketch Sketch of the sender's mempool
+     * @param responder Link the sketch arrived on
+     */
+    public void receiveMempoolSketch(MempoolSketch sketch, Responder responder) {
+        ArrayList<Hash256> keysAbsent = new ArrayList<>();
+        ArrayList<Hash256> keysExtra = new ArrayList<>();
+        /* Members only send sketches smaller than their mempools, so a larger one is not worth matching */
+        boolean decoded = sketch.getCells() <= mempool.getMaxTxs();
+        if (decoded) {
+            MempoolSketch ours = new MempoolSketch(sketch.getCells());
+            ours.addAll(mempool.keys());
+            sketch.subtract(ours);
+            decoded = sketch.decode(keysAbsent, keysExtra);
+        }
+        try {
+            if (!decoded) {
+                sketchFallbacks.incrementAndGet();
+                responder.reply(new Message(Message.Request.REQUEST_MEMPOOL));
+                return;
             }
-            try {
-                if (keysAbsent.isEmpty()) {
-                    oout.writeObject(new Message(Message.Request.PING));
-                    oout.flush();
-                } else {
-                    oout.writeObject(new Message(Message.Request.REQUEST_TRANSACTION, keysAbsent));
-                    oout.flush();
-                    ArrayList<Transaction> transactionsReturned = (ArrayList<Transaction>) oin.readObject();
-                    for(Transaction transaction : transactionsReturned){
-                        try {
-                            mempool.put(getSHAString(transaction.getData()), transaction);
-                        } catch (NoSuchAlgorithmException e) {
-                            throw new RuntimeException(e);
-                        }
-                    }
-                }
-            } catch (ClassNotFoundException e) {
-                throw new RuntimeException(e);
-            } catch (IOException e) {
-                System.out.println(e);
-                throw new RuntimeException(e);
+            sketchesDecoded.incrementAndGet();
+            keysAbsent.removeIf(key -> mempool.contains(key));
+            if (keysAbsent.isEmpty()) {
+                responder.reply(new Message(Message.Request.PING));
+                countMempoolRound();
+            } else {
+                responder.reply(new Message(Message.Request.REQUEST_TRANSACTION, keysAbsent));
+            }
+        } catch (IOException e) {
+            System.out.println(e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Replies to a quorum member's mempool keys, requesting any transactions we lack.
+     * The round is only counted once the requested transactions have arrived
+     * @param keys Keys of the sender's mempool
+     * @param responder Link the keys arrived on
+     */
+    public void receiveMempool(Collection<Hash256> keys, Responder responder) {
+        //System.out.println("Node " + myAddress.getPort() + " Received mempool");
+        ArrayList<Hash256> keysAbsent = new ArrayList<>();
+        for (Hash256 key : keys) {
+            if (!mempool.contains(key)) {
+                keysAbsent.add(key);
+            }
+        }
+        try {
+            if (keysAbsent.isEmpty()) {
+                responder.reply(new Message(Message.Request.PING));
+                countMempoolRound();
+            } else {
+                responder.reply(new Message(Message.Request.REQUEST_TRANSACTION, keysAbsent));
+            }
+        } catch (IOException e) {
+            System.out.println(e);
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Adds the transactions a quorum member sent in answer to our REQUEST_TRANSACTION. The
+     * round counts even if a full mempool refused some, and the block is built without them
+     * @param transactionsReturned Transactions that were absent from our mempool
+     */
+    public void receiveMempoolTransactions(Collection<Transaction> transactionsReturned) {
+        int refused = 0;
+        for(Transaction transaction : transactionsReturned){
+            Hash256 key = hash(transaction.getData());
+            Mempool.Admission admission = mempool.add(key, transaction);
+            if(admission == Mempool.Admission.ACCEPTED || admission == Mempool.Admission.DUPLICATE){
+                seenCache.add(key);
+            }else{
+                /* Left unseen, so gossip can offer it again once blocks made room */
+                refused++;
             }
+        }
+        if(refused > 0){
+            System.out.println("Node " + myAddress.getPort() + ": Mempool refused " + refused
+                    + " transactions from a quorum member");
+        }
+        countMempoolRound();
+    }
 
+    /**
+     * Counts a quorum member whose mempool we reconciled with, constructing the block once
+     * all have been. The block is constructed outside memPoolRoundsLock, as proposing takes commitLock
+     */
+    private void countMempoolRound() {
+        List<Address> quorum = getQuorum().getMembers();
+        boolean complete;
+        synchronized (memPoolRoundsLock){
             memPoolRounds++;
-            int i = quorum.size() - 1;
-            if(memPoolRounds == quorum.size() - 1){
+            complete = memPoolRounds == quorum.size() - 1;
+            if(complete){
                 memPoolRounds = 0;
-                constructBlock();
             }
         }
+        if(complete){
+            constructBlock();
+        }
     }
 
     public void constructBlock(){
-        synchronized (memPoolLock){
-            //System.out.println("Node " + myAddress.getPort() + " constructing block");
+        if(broadcastVoting){
+            proposeBlock();
+            return;
+        }
+        //System.out.println("Node " + myAddress.getPort() + " constructing block");
 
-            HashMap<String, Transaction> blockTransactions = deepCloneHashmap(mempool);
-            try {
-                quorumBlock = new Block(blockTransactions,
-                        getBlockHash(blockchain.get(blockchain.size() - 1), 0),
-                                blockchain.size());
-                //sendBlockForVoting(block);
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException(e);
+        HashMap<Hash256, Transaction> blockTransactions = deepCloneHashmap(mempool.copy());
+        quorumBlock = new Block(blockTransactions,
+                getBlockHash(blockchain.get(blockchain.size() - 1), 0),
+                        blockchain.size());
+        //sendBlockForVoting(block);
+    }
+
+    private volatile Block quorumBlock;
+
+    /**
+     * Drops the transactions of a committed block from the mempool, so they do not go into
+     * the next block, whoever proposes it
+     */
+    void removeCommitted(Block block){
+        mempool.removeAll(block.getTxList().keySet());
+    }
+
+    /**
+     * Asks the block trigger whether the transactions no block in flight holds call for a
+     * block yet
+     */
+    private boolean shouldPropose(){
+        return blockTrigger.shouldPropose(mempool.size() - blockPipeline.reservedCount(),
+                mempool.bytes() - blockPipeline.reservedBytes(), System.nanoTime());
+    }
+
+    /**
+     * Runs periodically so that transactions which stopped arriving still get a block once
+     * the oldest has waited BLOCK_MAX_WAIT_MS
+     */
+    private void checkBlockTrigger(){
+        if(shouldPropose()){
+            scheduleProposals();
+        }
+    }
+
+    /**
+     * Proposes the next block if we are its proposer, the pipeline has room and the block
+     * trigger fired. The block extends the newest block in flight, or the tip, and holds
+     * the transactions of our mempool which no block in flight holds, up to the trigger's
+     * target count and byte limit
+     * @return True if a block was proposed
+     */
+    private boolean proposeBlock(){
+        /* Committing moves the tip and empties the pipeline's head together */
+        synchronized (commitLock){
+            Block parent = blockPipeline.last();
+            if(parent == null){
+                parent = blockchain.get(blockchain.size() - 1);
+            }
+            Quorum next = quorumFor(parent.getBlockId() + 1);
+            if(next == null || next.getMyIndex() != 0 || !blockPipeline.hasRoom()){
+                return false;
+            }
+            if(!shouldPropose()){
+                return false;
+            }
+            HashMap<Hash256, Transaction> blockTransactions = new HashMap<>();
+            int targetTxs = blockTrigger.getTargetTxs();
+            long blockBytes = 0;
+            int leftover = 0;
+            for(Hash256 key : mempool.keys()){
+                if(blockPipeline.isReserved(key)){
+                    continue;
+                }
+                /* Transactions are only decoded while the block has room for more */
+                if(blockTransactions.size() >= targetTxs){
+                    leftover++;
+                    continue;
+                }
+                Transaction transaction = mempool.get(key);
+                if(transaction == null){
+                    continue;
+                }
+                int size = BlockTrigger.sizeOf(transaction);
+                if(blockTransactions.isEmpty() || blockBytes + size <= blockTrigger.getMaxBytes()){
+                    blockTransactions.put(key, transaction);
+                    blockBytes += size;
+                }else{
+                    leftover++;
+                }
             }
+            blockTrigger.proposed(blockTransactions.size(), leftover, System.nanoTime());
+            quorumBlock = new Block(blockTransactions, getBlockHash(parent, 0), parent.getBlockId() + 1);
+            sendBlockForVoting(quorumBlock);
+            return true;
+        }
+    }
+
+    /**
+     * Starts proposal rounds on another thread if we propose the next block. Each round
+     * reconciles our mempool with the quorum and then proposes a block. While the pipeline
+     * has room the next round starts straight away, so block N+1 is being prepared while
+     * N is still collecting votes
+     */
+    private void scheduleProposals(){
+        if(!isNextProposer() || !blockPipeline.requestRound()){
+            return;
         }
+        voteRequests.execute(() -> {
+            boolean again;
+            do {
+                sendMempoolHashes();
+                again = proposeBlock() && blockPipeline.hasRoom() || blockPipeline.finishRound();
+            } while(again);
+        });
     }
 
-    private Block quorumBlock;
+    private boolean isNextProposer(){
+        Block parent = blockPipeline.last();
+        if(parent == null){
+            parent = blockchain.get(blockchain.size() - 1);
+        }
+        Quorum next = quorumFor(parent.getBlockId() + 1);
+        return next != null && next.getMyIndex() == 0 && blockPipeline.hasRoom();
+    }
     public void receiveQuorumSignature(String signature){
         synchronized (sigRoundsLock){
             quorumSigs.add(signature);
             //sigRounds++;
-            ArrayList<Address> quorum = deriveQuorum(blockchain.get(blockchain.size() - 1), 0);
+            List<Address> quorum = getQuorum().getMembers();
             if(quorumSigs.size() == quorum.size() - 1){
                 verifyQuorumSigs();
             }
@@ -403,13 +1096,9 @@ public class Node  {
     }
 
     public void verifyQuorumSigs(){
-        ArrayList<Address> quorum = deriveQuorum(blockchain.get(blockchain.size() - 1), 0);
+        List<Address> quorum = getQuorum().getMembers();
         HashMap<String, Integer> sigVotes = new HashMap<>();
-        try {
-            quorumSigs.add(getBlockHash((blockchain.get(blockchain.size() - 1)), 0));
-        } catch (NoSuchAlgorithmException e) {
-            throw new RuntimeException(e);
-        }
+        quorumSigs.add(getBlockHash((blockchain.get(blockchain.size() - 1)), 0).toHex());
         for(String sig : quorumSigs){
             if(sigVotes.containsKey(sig)){
                 int votes = sigVotes.get(sig);
@@ -434,40 +1123,317 @@ public class Node  {
     }
 
     public void sendSkeleton(){
-        BlockSkeleton skeleton = new BlockSkeleton(quorumBlock.getBlockId(),
-                quorumBlock.getTxList().keySet(), quorumSigs);
+        relayBlock(quorumBlock, quorumSigs);
+    }
 
-        for(Address address : localPeers){
-            sendOneWayMessage(address, new Message(Message.Request.RECEIVE_SKELETON, skeleton));
+    /**
+     * Relays a block to every local peer as a skeleton. Each exchange stays on one pooled
+     * link: the peer answers PING once it holds the block, asks for the transactions it
+     * could not find in its mempool, or asks for the full block if reconstruction failed
+     * @param block Block to relay
+     * @param signatures Quorum signatures over the block
+     */
+    public void relayBlock(Block block, ArrayList<String> signatures){
+        ArrayList<Hash256> sortedKeys = new ArrayList<>(block.getTxList().keySet());
+        Collections.sort(sortedKeys);
+        BlockSkeleton skeleton = new BlockSkeleton(block.getBlockId(), block.getPrevBlockHash(),
+                getBlockHash(block, 0), sortedKeys, signatures);
+        ArrayList<Address> peers;
+        synchronized (lock){
+            peers = new ArrayList<>(localPeers);
+        }
+
+        for(Address address : peers){
+            PeerConnection connection = null;
+            try {
+                connection = connectionPool.acquire(address);
+                Message reply = connection.request(new Message(Message.Request.RECEIVE_SKELETON, skeleton));
+                if(reply.getRequest() == Message.Request.GET_BLOCK_TRANSACTIONS){
+                    BlockTransactions requested = (BlockTransactions) reply.getMetadata();
+                    ArrayList<Integer> indexes = new ArrayList<>();
+                    ArrayList<Transaction> transactions = new ArrayList<>();
+                    for(int index : requested.getIndexes()){
+                        if(index >= 0 && index < sortedKeys.size()){
+                            indexes.add(index);
+                            transactions.add(block.getTxList().get(sortedKeys.get(index)));
+                        }
+                    }
+                    reply = connection.request(new Message(Message.Request.BLOCK_TRANSACTIONS,
+                            new BlockTransactions(block.getBlockId(), indexes, transactions)));
+                }
+                if(reply.getRequest() == Message.Request.GET_FULL_BLOCK){
+                    connection.request(new Message(Message.Request.ADD_BLOCK, block));
+                }
+                connectionPool.release(connection);
+            } catch (IOException e) {
+                System.out.println("Received IO Exception from node " + address.getPort());
+                if(connection != null) connectionPool.discard(connection);
+            }
         }
     }
 
-    public Address findQuorumNeighbor(){
-        ArrayList<Address> quorum = deriveQuorum(blockchain.get(blockchain.size() - 1), 0);
-        for(int i = 0; i < quorum.size(); i++){
-            if(myAddress.equals(quorum.get(i))){
-                if(i == quorum.size() - 1){
-                    //System.out.println("Node " + myAddress.getPort() + " neighbor is: " + quorum.get(0).getPort());
-                    return quorum.get(0);
-                }else{
-                    //System.out.println("Node " + myAddress.getPort() + " neighbor is: " + quorum.get(i + 1).getPort());
-                    return quorum.get(i + 1);
+    /**
+     * Rebuilds a relayed block from our mempool by matching the skeleton's short ids
+     * @param skeleton Skeleton of the relayed block
+     * @return PING if the block was added or is not needed, GET_BLOCK_TRANSACTIONS listing
+     * the positions we could not match, or GET_FULL_BLOCK if the short ids are ambiguous
+     */
+    public Message receiveSkeleton(BlockSkeleton skeleton){
+        synchronized (chainLock){
+            if(skeleton.getBlockId() != blockchain.get(blockchain.size() - 1).getBlockId() + 1){
+                if(stateSync != null && skeleton.getBlockId() > blockchain.size()){
+                    stateSync.behind(skeleton.getBlockId());
                 }
+                return new Message(Message.Request.PING);
             }
         }
-        return null;
+        long[] shortIds = skeleton.getShortIds();
+        PartialBlock partialBlock = new PartialBlock(skeleton);
+        ArrayList<Integer> missing = new ArrayList<>();
+        HashMap<Long, Hash256> keysByShortId = new HashMap<>();
+        HashSet<Long> ambiguous = new HashSet<>();
+        for(Hash256 key : mempool.keys()){
+            long shortId = BlockSkeleton.shortId(key);
+            if(keysByShortId.put(shortId, key) != null){
+                ambiguous.add(shortId);
+            }
+        }
+        for(int i = 0; i < shortIds.length; i++){
+            Hash256 key = keysByShortId.get(shortIds[i]);
+            if(ambiguous.contains(shortIds[i])){
+                missing = null;
+                break;
+            }
+            /* A transaction committed since we listed the keys is asked for like a missing one */
+            Transaction transaction = key == null ? null : mempool.get(key);
+            if(transaction == null){
+                missing.add(i);
+            }else{
+                partialBlock.keys[i] = key;
+                partialBlock.transactions[i] = transaction;
+            }
+        }
+        synchronized (partialBlocks){
+            partialBlocks.put(skeleton.getBlockId(), partialBlock);
+        }
+        if(missing == null){
+            return new Message(Message.Request.GET_FULL_BLOCK, skeleton.getBlockId());
+        }
+        if(!missing.isEmpty()){
+            return new Message(Message.Request.GET_BLOCK_TRANSACTIONS,
+                    new BlockTransactions(skeleton.getBlockId(), missing, null));
+        }
+        return completeBlock(partialBlock);
+    }
+
+    /**
+     * Fills in the transactions we lacked for a block being rebuilt from its skeleton
+     * @param blockTransactions Positions and transactions sent by the relaying peer
+     * @return PING if the block was added or is not needed, otherwise GET_FULL_BLOCK
+     */
+    public Message receiveBlockTransactions(BlockTransactions blockTransactions){
+        PartialBlock partialBlock;
+        synchronized (partialBlocks){
+            partialBlock = partialBlocks.get(blockTransactions.getBlockId());
+        }
+        if(partialBlock == null){
+            return new Message(Message.Request.PING);
+        }
+        ArrayList<Integer> indexes = blockTransactions.getIndexes();
+        ArrayList<Transaction> transactions = blockTransactions.getTransactions();
+        for(int i = 0; i < indexes.size() && i < transactions.size(); i++){
+            int index = indexes.get(i);
+            if(index >= 0 && index < partialBlock.transactions.length){
+                partialBlock.transactions[index] = transactions.get(i);
+            }
+        }
+        return completeBlock(partialBlock);
+    }
+
+    /**
+     * Assembles a rebuilt block and adds it if its hash matches the skeleton
+     */
+    private Message completeBlock(PartialBlock partialBlock){
+        BlockSkeleton skeleton = partialBlock.skeleton;
+        HashMap<Hash256, Transaction> txList = new HashMap<>();
+        for(int i = 0; i < partialBlock.transactions.length; i++){
+            Transaction transaction = partialBlock.transactions[i];
+            if(transaction == null){
+                return new Message(Message.Request.GET_FULL_BLOCK, skeleton.getBlockId());
+            }
+            Hash256 key = partialBlock.keys[i] != null ? partialBlock.keys[i] : hash(transaction.getData());
+            txList.put(key, transaction);
+        }
+        Block block = new Block(txList, skeleton.getPrevBlockHash(), skeleton.getBlockId());
+        if(!getBlockHash(block, 0).equals(skeleton.getBlockHash())){
+            return new Message(Message.Request.GET_FULL_BLOCK, skeleton.getBlockId());
+        }
+        addBlock(block);
+        return new Message(Message.Request.PING);
+    }
+
+    /**
+     * A block being rebuilt from its skeleton, with the transactions found so far
+     * at the same positions as the skeleton's short ids
+     */
+    private static class PartialBlock {
+        final BlockSkeleton skeleton;
+        final Hash256[] keys;
+        final Transaction[] transactions;
+
+        PartialBlock(BlockSkeleton skeleton){
+            this.skeleton = skeleton;
+            this.keys = new Hash256[skeleton.getShortIds().length];
+            this.transactions = new Transaction[skeleton.getShortIds().length];
+        }
+    }
+
+    public Address findQuorumNeighbor(){
+        return getQuorum().getNeighbor();
     }
 
     public void sendBlockForVoting(Block block){
         BlockContainer blockContainer = new BlockContainer(block);
         blockContainer.addSignature(String.valueOf(myAddress.getPort()));
+        votingStartedAt = System.nanoTime();
+        if(broadcastVoting){
+            broadcastBlockForVoting(blockContainer);
+            return;
+        }
         sendOneWayMessage(findQuorumNeighbor(), new Message(Message.Request.VOTE_BLOCK, blockContainer));
         //System.out.println("Node " + myAddress.getPort() + " sent out block for voting");
     }
 
+    /**
+     * Sends a proposed block to every other quorum member at once, each request on its own
+     * pooled link, and commits the block as soon as the threshold of members signed it.
+     * Commit latency is then one round trip to the threshold-th fastest member, however
+     * large the quorum
+     */
+    private void broadcastBlockForVoting(BlockContainer blockContainer){
+        Block block = blockContainer.getBlock();
+        Quorum quorum = quorumFor(block.getBlockId());
+        if(quorum == null){
+            quorum = getQuorum();
+        }
+        int threshold = (quorum.size() * voteThresholdPercent + 99) / 100;
+        BlockVotes votes = new BlockVotes(block, threshold, quorum.size(), blockContainer.getSignatures().get(0));
+        synchronized (chainLock){
+            votedBlock = block;
+        }
+        blockPipeline.add(votes);
+        if(votes.isAccepted()){
+            commitAcceptedBlocks();
+            return;
+        }
+        Message message = new Message(Message.Request.VOTE_BLOCK, blockContainer);
+        for(Address member : quorum.getMembers()){
+            if(!myAddress.equals(member)){
+                voteRequests.execute(() -> requestVote(member, message, votes));
+            }
+        }
+    }
+
+    private void requestVote(Address member, Message message, BlockVotes votes){
+        PeerConnection connection = null;
+        Message reply = null;
+        try {
+            connection = connectionPool.acquire(member);
+            connection.setTimeout(voteTimeout);
+            reply = connection.request(message);
+            connection.setTimeout(0);
+            connectionPool.release(connection);
+        } catch (IOException e) {
+            System.out.println("Received IO Exception from node " + member.getPort());
+            if(connection != null) connectionPool.discard(connection);
+        }
+        if(reply != null && reply.getRequest() == Message.Request.BLOCK_VOTE){
+            if(votes.add((String) reply.getMetadata())){
+                commitAcceptedBlocks();
+            }
+        }else if(votes.refuse()){
+            abandonBlock(votes);
+        }
+    }
+
+    /**
+     * Commits the accepted blocks at the head of the pipeline in height order, after which
+     * their transactions are out of our mempool and no longer reserved. A block which ends a quorum window is also
+     * handed straight to the next window's quorum, so that its proposer can start
+     */
+    private void commitAcceptedBlocks(){
+        synchronized (commitLock){
+            for(BlockVotes votes : blockPipeline.pollAccepted()){
+                Block block = votes.getBlock();
+                voteLatency = votes.elapsed();
+                System.out.println("Node " + myAddress.getPort() + ": Committed block " + block.getBlockId()
+                        + ". Signatures: " + votes.getSignatures());
+                addBlock(block, votes.getSignatures());
+                blockPipeline.release(block);
+                Quorum next = quorumFor(block.getBlockId() + 1);
+                if(block.getBlockId() % blockPipeline.getDepth() == 0 && next != null){
+                    Message message = new Message(Message.Request.ADD_BLOCK, block);
+                    for(Address member : next.getMembers()){
+                        if(!myAddress.equals(member)){
+                            voteRequests.execute(() -> sendTwoWayMessage(member, message));
+                        }
+                    }
+                }
+            }
+        }
+        scheduleProposals();
+    }
+
+    /**
+     * Gives up on a block the quorum refused, along with the blocks built on it
+     */
+    private void abandonBlock(BlockVotes votes){
+        ArrayList<Block> dropped;
+        synchronized (commitLock){
+            dropped = blockPipeline.abandon(votes);
+            synchronized (chainLock){
+                if(dropped.contains(votedBlock)){
+                    votedBlock = null;
+                }
+            }
+        }
+        System.out.println("Node " + myAddress.getPort() + ": Block " + votes.getBlock().getBlockId()
+                + " was refused by the quorum");
+    }
+
+    /**
+     * Signs a block broadcast by its proposer if it extends our chain, or the block we
+     * signed last while that one is still in flight, and we have not signed another block
+     * at its height
+     * @return BLOCK_VOTE carrying our signature, otherwise PING
+     */
+    public Message voteOnBlock(BlockContainer blockContainer){
+        Block block = blockContainer.getBlock();
+        synchronized (chainLock){
+            Block lastBlock = blockchain.get(blockchain.size() - 1);
+            Block parent = null;
+            if(block.getBlockId() == lastBlock.getBlockId() + 1){
+                parent = lastBlock;
+            }else if(votedBlock != null && votedBlock.getBlockId() > lastBlock.getBlockId()
+                    && block.getBlockId() == votedBlock.getBlockId() + 1){
+                parent = votedBlock;
+            }
+            if(parent == null && stateSync != null && block.getBlockId() > blockchain.size()){
+                stateSync.behind(block.getBlockId());
+            }
+            if(parent == null || (votedBlock != null && block.getBlockId() <= votedBlock.getBlockId())
+                    || !getBlockHash(parent, 0).equals(block.getPrevBlockHash())){
+                return new Message(Message.Request.PING);
+            }
+            votedBlock = block;
+        }
+        return new Message(Message.Request.BLOCK_VOTE, String.valueOf(myAddress.getPort()));
+    }
+
     public void receiveBlockForVoting(BlockContainer blockContainer){
         /* If this block is mine, since I was the first to sign it */
         if(blockContainer.getSignatures().get(0).equals(String.valueOf(myAddress.getPort()))){
+            voteLatency = System.nanoTime() - votingStartedAt;
             // call next method
             System.out.println("Node " + myAddress.getPort() + " Got my block back. " + blockContainer.getSignatures() + ". Transactions: " + blockContainer.getBlock().getTxList().values());
         }else{
@@ -482,41 +1448,93 @@ public class Node  {
      * @param block Block to add
      */
     public void addBlock(Block block){
-        Block lastBlock = blockchain.get(blockchain.size() - 1);
+        addBlock(block, null);
+    }
+
+    /**
+     * Adds a block and relays it with the given quorum signatures
+     * @param signatures Signatures to relay, or null to keep those of the skeleton it arrived with
+     */
+    public void addBlock(Block block, ArrayList<String> signatures){
+        addBlock(block, signatures, true);
+    }
+
+    /**
+     * Adds a block fetched while catching up, without relaying it, as our peers already hold it
+     * @return True if the block extended our chain
+     */
+    boolean appendBlock(Block block){
+        return addBlock(block, null, false);
+    }
 
-        /* Verify block signatures */
-        // Avoiding a memory fill attack
+    private boolean addBlock(Block block, ArrayList<String> signatures, boolean relay){
+        boolean added = false;
+        synchronized (chainLock){
+            Block lastBlock = blockchain.get(blockchain.size() - 1);
 
-        /* Is the block newer than our chain */
-        if(block.getBlockId() > lastBlock.getBlockId()){ //
+            /* Verify block signatures */
+            // Avoiding a memory fill attack
 
-            /* Is the block ahead of our expectation */
-            if(block.getBlockId() > lastBlock.getBlockId() + 1){
-                // Add to memory, seek or wait for the expected block
+            /* Is the block newer than our chain */
+            if(block.getBlockId() > lastBlock.getBlockId()){ //
 
-            }else{ // It is the block we expect
-                // add block
-                // gossip block
+                /* Is the block ahead of our expectation */
+                if(block.getBlockId() > lastBlock.getBlockId() + 1){
+                    /* Fetch the blocks in between, or a snapshot if far behind */
+                    if(stateSync != null){
+                        stateSync.behind(block.getBlockId());
+                    }
+                }else{ // It is the block we expect
+                    if(!getBlockHash(lastBlock, 0).equals(block.getPrevBlockHash())){
+                        return false;
+                    }
+                    blockchain.add(block);
+                    getQuorum();
+                    added = true;
+
+                    /* Gossip block, keeping the signatures of the skeleton it arrived with */
+                    PartialBlock partialBlock;
+                    synchronized (partialBlocks){
+                        partialBlock = partialBlocks.remove(block.getBlockId());
+                        /* Skeletons the chain has passed, whose block failed to rebuild or lost to another */
+                        partialBlocks.keySet().removeIf(height -> height < block.getBlockId());
+                    }
+                    ArrayList<String> relayed = signatures != null ? signatures
+                            : partialBlock != null ? partialBlock.skeleton.getSignatures() : new ArrayList<>();
+                    if(relay){
+                        blockRelay.execute(() -> relayBlock(block, relayed));
+                    }
+                }
+            }else{
+                // Do not add block
             }
-        }else{
-            // Do not add block
         }
+        if(added){
+            removeCommitted(block);
+            if(stateSync != null){
+                stateSync.committed(block);
+            }
+            if(broadcastVoting && shardedConsensus == null){
+                scheduleProposals();
+            }
+        }
+        return added;
     }
 
     public void shareMempool(){
         // send mempool to each node in quorum
         // expect to receive all members in quorum's mempool
-        ArrayList<Address> quorum = deriveQuorum(blockchain.get(blockchain.size() - 1), 0);
+        List<Address> quorum = getQuorum().getMembers();
 
         for (Address quorumAddress : quorum) {
             if (!myAddress.equals(quorumAddress)) {
-                sendOneWayMessage(quorumAddress, new Message(Message.Request.RECEIVE_MEMPOOL, getMempool()));
+                sendOneWayMessage(quorumAddress, new Message(Message.Request.RECEIVE_MEMPOOL, new HashSet<>(mempool.keys())));
             }
         }
     }
 
     public void sendOneWayMessageQuorum(Message message){
-        ArrayList<Address> quorum = deriveQuorum(blockchain.get(blockchain.size() - 1), 0);
+        List<Address> quorum = getQuorum().getMembers();
         for(Address quorumAddress : quorum){
             if(!myAddress.equals(quorumAddress)) {
                 sendOneWayMessage(quorumAddress, message);
@@ -525,21 +1543,11 @@ public class Node  {
     }
 
     public boolean inQuorum(){
-        synchronized (quorumLock){
-            ArrayList<Address> quorum = deriveQuorum(blockchain.get(blockchain.size() - 1), 0);
-            //System.out.println("Node " + myAddress.getPort() + " quorum: " + quorum);
-            Boolean quorumMember = false;
-            for(Address quorumAddress : quorum){
-                if(myAddress.equals(quorumAddress)) {
-                    quorumMember = true;
-                }
-            }
-            return quorumMember;
-        }
+        return getQuorum().getMyIndex() >= 0;
     }
 
     public void establishQuorumPeers(){
-        ArrayList<Address> quorum = deriveQuorum(blockchain.get(blockchain.size() - 1), 0);
+        List<Address> quorum = getQuorum().getMembers();
         for(Address quorumAddress : quorum){
             if(!myAddress.equals(quorumAddress)) {
                 if(!containsAddress(quorumPeers, quorumAddress)){
@@ -550,39 +1558,150 @@ public class Node  {
     }
 
     public ArrayList<Address> deriveQuorum(Block block, int nonce){
-        String blockHash;
-        if(block != null && block.getPrevBlockHash() != null){
-            try {
-                ArrayList<Address> quorum = new ArrayList<>();
-                ArrayList<Integer> portsAdded = new ArrayList<>();
-
-                blockHash = Hashing.getBlockHash(block, nonce);
-                BigInteger bigInt = new BigInteger(blockHash, 16);
-                bigInt = bigInt.mod(BigInteger.valueOf(NUM_NODES));
-                int seed = bigInt.intValue();
-                Random random = new Random(seed);
-                for(int i = 0; i < QUORUM_SIZE; i++){
-                    int port = STARTING_PORT + random.nextInt(NUM_NODES);
-                    while(portsAdded.contains(port)){
-                        port = STARTING_PORT + random.nextInt(NUM_NODES);
-                    }
-                    portsAdded.add(port);
-                    quorum.add(new Address(port, "localhost"));
+        return Quorum.derive(block, nonce, NUM_NODES, QUORUM_SIZE, STARTING_PORT);
+    }
+
+    /**
+     * @return The committed block at a height, or null if the chain is not that long yet
+     */
+    public Block getBlock(int height){
+        synchronized (chainLock){
+            return height >= blockchain.base() && height < blockchain.size() ? blockchain.get(height) : null;
+        }
+    }
+
+    /**
+     * Where a transaction stands, answered to QUERY_TRANSACTION. Committed transactions
+     * are found through the block store's index without reading any block
+     * @param key SHA-256 hash of the transaction's data
+     * @return height and position of the block holding it, mempool if it is still pending,
+     *         or nothing if this node has not seen it
+     */
+    public LinkedHashMap<String, Long> findTransaction(Hash256 key){
+        LinkedHashMap<String, Long> status = new LinkedHashMap<>();
+        int[] location = blockchain.findTransaction(key);
+        if (location != null) {
+            status.put("height", (long) location[0]);
+            status.put("position", (long) location[1]);
+            return status;
+        }
+        if (mempool.contains(key)) {
+            status.put("mempool", 1L);
+        }
+        return status;
+    }
+
+    /**
+     * @return The committed block with a hash, or null if the chain holds none
+     */
+    public Block findBlock(Hash256 blockHash){
+        int height = blockchain.findBlock(blockHash);
+        return height < 0 ? null : getBlock(height);
+    }
+
+    /**
+     * @return Height of the next block, the length of the chain
+     */
+    public int getChainHeight(){
+        synchronized (chainLock){
+            return blockchain.size();
+        }
+    }
+
+    /**
+     * The blocks a snapshot at a height keeps, from the one choosing the quorum of the next
+     * height up to that height, so a node starting from the snapshot knows the next quorums
+     * @return The blocks, or null if the chain no longer holds them
+     */
+    List<Block> getSnapshotBlocks(int height){
+        synchronized (chainLock){
+            int anchorHeight = height / blockPipeline.getDepth() * blockPipeline.getDepth();
+            if(height >= blockchain.size() || anchorHeight < blockchain.base()){
+                return null;
+            }
+            ArrayList<Block> blocks = new ArrayList<>();
+            for(int i = anchorHeight; i <= height; i++){
+                blocks.add(blockchain.get(i));
+            }
+            return blocks;
+        }
+    }
+
+    ArrayList<Transaction> copyMempoolTransactions(){
+        return new ArrayList<>(mempool.values());
+    }
+
+    /**
+     * Restarts our chain from a snapshot's blocks, if it is still ahead of us, and takes the
+     * snapshot's mempool in place of ours, which may hold transactions the skipped blocks committed
+     * @param blocks Consecutive blocks ending at the snapshot's tip
+     */
+    void installSnapshot(List<Block> blocks, List<Transaction> transactions){
+        synchronized (commitLock){
+            synchronized (chainLock){
+                if(blocks.get(blocks.size() - 1).getBlockId() < blockchain.size()){
+                    return;
                 }
-                return quorum;
-            } catch (NoSuchAlgorithmException e) {
-                throw new RuntimeException(e);
+                blockchain.restart(blocks);
+                votedBlock = null;
             }
+            synchronized (partialBlocks){
+                partialBlocks.clear();
+            }
+            mempool.clear();
+            for(Transaction transaction : transactions){
+                Hash256 key = hash(transaction.getData());
+                if(blockchain.findTransaction(key) == null && mempool.add(key, transaction) == Mempool.Admission.ACCEPTED){
+                    seenCache.add(key);
+                }
+            }
+            mempool.compactLog();
         }
-        return null;
+    }
+
+    /**
+     * @return The quorum for the height we are working on, which follows the block we last
+     * voted for while that block is in flight and otherwise follows the tip
+     */
+    public Quorum getQuorum(){
+        int height;
+        synchronized (chainLock){
+            height = blockchain.size();
+            if(votedBlock != null && votedBlock.getBlockId() >= height){
+                height = votedBlock.getBlockId() + 1;
+            }
+        }
+        Quorum working = quorumFor(height);
+        return working != null ? working : quorumFor(blockchain.size());
+    }
+
+    /**
+     * Heights are grouped in windows of PIPELINE_DEPTH blocks sharing the quorum chosen by
+     * the block before the window, so the quorum of every block in a window is known while
+     * the window's earlier blocks are still being voted on. With a depth of 1 each block's
+     * quorum is chosen by its parent. The quorum is derived again only when that block changes
+     * @return The quorum for the height, or null while the block choosing it is not in our chain
+     */
+    public Quorum quorumFor(int height){
+        int anchorHeight = (height - 1) / blockPipeline.getDepth() * blockPipeline.getDepth();
+        if(anchorHeight >= blockchain.size() || anchorHeight < blockchain.base()){
+            return null;
+        }
+        Block anchor = blockchain.get(anchorHeight);
+        Quorum cached = quorum;
+        if(cached == null || cached.getTip() != anchor){
+            cached = new Quorum(anchor, deriveQuorum(anchor, 0), myAddress);
+            quorum = cached;
+        }
+        return cached;
     }
 
 
     /**
      * Acceptor is a thread responsible for maintaining the server socket by
      * accepting incoming connection requests, and starting a new ServerConnection
-     * thread for each request. Requests terminate in a finite amount of steps, so
-     * threads return upon completion.
+     * thread for each link. Peers keep their links open, so a thread returns once the
+     * other side hangs up. Used when TRANSPORT is BLOCKING, see NioServer otherwise.
      */
     class Acceptor extends Thread {
         Node node;
@@ -604,57 +1723,4 @@ public class Node  {
             }
         }
     }
-
-    /**
-     * HeartBeatMonitor is a thread which will periodically 'ping' nodes which this node is connected to.
-     * It expects a 'ping' back. Upon receiving the expected reply the other node is deemed healthy.
-     *
-     */
-    class HeartBeatMonitor extends Thread {
-        Node node;
-
-        HeartBeatMonitor(Node node){
-            this.node = node;
-        }
-
-        public void run() {
-            while (true) {
-                for(Address address : localPeers){
-                    try {
-                        Thread.sleep(30000);
-                        Socket s = new Socket(address.getHost(), address.getPort());
-                        InputStream in = s.getInputStream();
-                        ObjectInputStream oin = new ObjectInputStream(in);
-                        OutputStream out = s.getOutputStream();
-                        ObjectOutputStream oout = new ObjectOutputStream(out);
-                        Message message = new Message(Message.Request.PING);
-                        oout.writeObject(message);
-                        oout.flush();
-                        Message messageReceived = (Message) oin.readObject();
-//                        if(messageReceived.getRequest().name().equals("PING")){
-//                            System.out.println("Node " + node.getAddress().getPort() + ": Node " + localPeers.get(0).getPort() + " pinged back");
-//                        }else{
-//                            System.out.println("Node " + node.getAddress().getPort() + ": Node " + localPeers.get(0).getPort() + " idk :(");
-//                        }
-                        s.close();
-                        System.out.println("Node " + node.getAddress().getPort() + ": Node " + localPeers.get(0).getPort() + " mempool: " + mempool.values());
-                    } catch (IOException e) {
-                        System.out.println("Received IO Exception from node " + address.getPort());
-                        //removeAddress(address);
-                        System.out.println("Removing address");
-                        System.out.println(e);
-                        break;
-                    } catch (ClassNotFoundException e) {
-                        throw new RuntimeException(e);
-                    } catch (InterruptedException e) {
-                        System.out.println("Received Interrupted Exception from node " + address.getPort());
-                        throw new RuntimeException(e);
-                    } catch (ConcurrentModificationException e){
-                        break;
-                    }
-                }
-            }
-        }
-    }
 }
-
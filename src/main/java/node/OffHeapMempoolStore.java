@@ -0,0 +1,409 @@
+package node;
+
+import node.blockchain.Transaction;
+import node.communication.utils.Hash256;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Mempool store outside the heap, for mempools of hundreds of thousands of transactions,
+ * where each key, transaction and map entry on the heap is several objects which every
+ * garbage collection traces.
+ *
+ * Keys are spread over STRIPES stripes by their last byte, each with its own lock. A
+ * stripe holds an open-addressing table in a direct buffer, whose slots are the 32 raw
+ * bytes of a key and a handle to its record, and direct slabs its records are appended
+ * to in arrival order. A record is
+ *   [int data bytes, or its complement once removed][int data chars][long arrivedAt][32 byte key][UTF-8 data]
+ * padded to 8 bytes. The oldest transaction of a stripe is at the read position of its
+ * first slab, which moves past removed records, and a slab is recycled once all its
+ * records were removed. Transactions are only decoded into objects when asked for, as
+ * a block is built or a peer requests them.
+ */
+class OffHeapMempoolStore implements MempoolStore {
+    private static final int STRIPES = 16, KEY_BYTES = 32, SLOT_BYTES = KEY_BYTES + 8, HEADER_BYTES = 16 + KEY_BYTES;
+    private static final int INITIAL_CAPACITY = 1 << 10;
+
+    private static final class Slab {
+        private final int id;
+        private final ByteBuffer buffer;
+        private int read, write, live;
+
+        private Slab(int id, ByteBuffer buffer) {
+            this.id = id;
+            this.buffer = buffer;
+        }
+    }
+
+    private final class Stripe {
+        private ByteBuffer table;
+        private int capacity, count;
+        private final ArrayDeque<Slab> slabs = new ArrayDeque<>();
+        private Slab[] slabsById = new Slab[4];
+        private ByteBuffer spare;
+
+        private Stripe() {
+            table = allocate(INITIAL_CAPACITY * SLOT_BYTES);
+            capacity = INITIAL_CAPACITY;
+        }
+
+        /**
+         * @return The slot holding the key, or else the empty slot where it would go
+         */
+        private int find(ByteBuffer table, int capacity, Hash256 key) {
+            int slot = (int) (key.getWord(0) & (capacity - 1));
+            while (true) {
+                int offset = slot * SLOT_BYTES;
+                if (table.getLong(offset + KEY_BYTES) == 0) {
+                    return slot;
+                }
+                if (table.getLong(offset) == key.getWord(0) && table.getLong(offset + 8) == key.getWord(1)
+                        && table.getLong(offset + 16) == key.getWord(2) && table.getLong(offset + 24) == key.getWord(3)) {
+                    return slot;
+                }
+                slot = (slot + 1) & (capacity - 1);
+            }
+        }
+
+        private long handle(int slot) {
+            return table.getLong(slot * SLOT_BYTES + KEY_BYTES);
+        }
+
+        private Slab slab(long handle) {
+            return slabsById[(int) (handle >>> 32) - 1];
+        }
+
+        private boolean put(Hash256 key, byte[] data, int chars, long arrivedAt) {
+            if ((count + 1) * 10L > capacity * 7L) {
+                grow();
+            }
+            int slot = find(table, capacity, key);
+            if (handle(slot) != 0) {
+                return false;
+            }
+            int recordBytes = align(HEADER_BYTES + data.length);
+            Slab slab = slabs.peekLast();
+            if (slab == null || slab.write + recordBytes > slab.buffer.capacity()) {
+                slab = newSlab(recordBytes);
+            }
+            int offset = slab.write;
+            ByteBuffer buffer = slab.buffer;
+            buffer.putInt(offset, data.length).putInt(offset + 4, chars).putLong(offset + 8, arrivedAt);
+            for (int i = 0; i < 4; i++) {
+                buffer.putLong(offset + 16 + 8 * i, key.getWord(i));
+            }
+            buffer.position(offset + HEADER_BYTES);
+            buffer.put(data);
+            slab.write += recordBytes;
+            slab.live++;
+            writeSlot(table, slot, key, ((long) (slab.id + 1) << 32) | offset);
+            count++;
+            return true;
+        }
+
+        private byte[] data(long handle) {
+            Slab slab = slab(handle);
+            int offset = (int) handle;
+            byte[] data = new byte[slab.buffer.getInt(offset)];
+            slab.buffer.position(offset + HEADER_BYTES);
+            slab.buffer.get(data);
+            return data;
+        }
+
+        private int remove(Hash256 key) {
+            int slot = find(table, capacity, key);
+            long handle = handle(slot);
+            if (handle == 0) {
+                return -1;
+            }
+            Slab slab = slab(handle);
+            int offset = (int) handle;
+            int chars = slab.buffer.getInt(offset + 4);
+            slab.buffer.putInt(offset, ~slab.buffer.getInt(offset));
+            slab.live--;
+            if (slab.live == 0) {
+                if (slab == slabs.peekLast()) {
+                    slab.read = 0;
+                    slab.write = 0;
+                } else {
+                    release(slab);
+                }
+            }
+            deleteSlot(slot);
+            count--;
+            return chars;
+        }
+
+        /**
+         * Closes the gap a removed slot leaves by moving back the slots after it which
+         * probed past it, so lookups never need markers for removed keys
+         */
+        private void deleteSlot(int hole) {
+            int mask = capacity - 1;
+            int next = (hole + 1) & mask;
+            while (handle(next) != 0) {
+                int home = (int) (table.getLong(next * SLOT_BYTES) & mask);
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    for (int i = 0; i < SLOT_BYTES; i += 8) {
+                        table.putLong(hole * SLOT_BYTES + i, table.getLong(next * SLOT_BYTES + i));
+                    }
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            table.putLong(hole * SLOT_BYTES + KEY_BYTES, 0);
+        }
+
+        /**
+         * Moves the read position of the first slab to its oldest live record, recycling
+         * slabs it finds empty
+         * @return The first slab, positioned at its oldest live record, or null if there is none
+         */
+        private Slab head() {
+            Slab first;
+            while ((first = slabs.peekFirst()) != null) {
+                while (first.read < first.write) {
+                    int length = first.buffer.getInt(first.read);
+                    if (length >= 0) {
+                        return first;
+                    }
+                    first.read += align(HEADER_BYTES + ~length);
+                }
+                if (first == slabs.peekLast()) {
+                    return null;
+                }
+                release(first);
+            }
+            return null;
+        }
+
+        private Slab newSlab(int recordBytes) {
+            ByteBuffer buffer;
+            if (spare != null && recordBytes <= spare.capacity()) {
+                buffer = spare;
+                spare = null;
+            } else {
+                buffer = allocate(Math.max(slabBytes, recordBytes));
+            }
+            int id = 0;
+            while (id < slabsById.length && slabsById[id] != null) {
+                id++;
+            }
+            if (id == slabsById.length) {
+                Slab[] grown = new Slab[slabsById.length * 2];
+                System.arraycopy(slabsById, 0, grown, 0, slabsById.length);
+                slabsById = grown;
+            }
+            Slab slab = new Slab(id, buffer);
+            slabsById[id] = slab;
+            slabs.addLast(slab);
+            return slab;
+        }
+
+        /* One emptied slab of the usual size is kept for the next, the rest are left to the collector */
+        private void release(Slab slab) {
+            slabs.remove(slab);
+            slabsById[slab.id] = null;
+            if (spare == null && slab.buffer.capacity() == slabBytes) {
+                spare = slab.buffer;
+            } else {
+                reserved.addAndGet(-slab.buffer.capacity());
+            }
+        }
+
+        private void grow() {
+            int grownCapacity = capacity * 2;
+            ByteBuffer grown = allocate(grownCapacity * SLOT_BYTES);
+            for (int slot = 0; slot < capacity; slot++) {
+                long handle = handle(slot);
+                if (handle != 0) {
+                    Hash256 key = key(table, slot * SLOT_BYTES);
+                    writeSlot(grown, find(grown, grownCapacity, key), key, handle);
+                }
+            }
+            reserved.addAndGet(-table.capacity());
+            table = grown;
+            capacity = grownCapacity;
+        }
+    }
+
+    private final Stripe[] stripes;
+    private final int slabBytes;
+    private final AtomicInteger size;
+    private final AtomicLong reserved;
+
+    /**
+     * @param slabBytes Size of the slabs records are appended to. Larger records get a slab of their own
+     */
+    OffHeapMempoolStore(int slabBytes) {
+        this.slabBytes = slabBytes;
+        this.size = new AtomicInteger();
+        this.reserved = new AtomicLong();
+        this.stripes = new Stripe[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    private ByteBuffer allocate(int bytes) {
+        reserved.addAndGet(bytes);
+        return ByteBuffer.allocateDirect(bytes);
+    }
+
+    private static int align(int bytes) {
+        return (bytes + 7) & ~7;
+    }
+
+    private static void writeSlot(ByteBuffer table, int slot, Hash256 key, long handle) {
+        int offset = slot * SLOT_BYTES;
+        for (int i = 0; i < 4; i++) {
+            table.putLong(offset + 8 * i, key.getWord(i));
+        }
+        table.putLong(offset + KEY_BYTES, handle);
+    }
+
+    private static Hash256 key(ByteBuffer buffer, int offset) {
+        return Hash256.of(buffer.getLong(offset), buffer.getLong(offset + 8),
+                buffer.getLong(offset + 16), buffer.getLong(offset + 24));
+    }
+
+    private Stripe stripe(Hash256 key) {
+        return stripes[(int) (key.getWord(3) & (STRIPES - 1))];
+    }
+
+    @Override
+    public boolean putIfAbsent(Hash256 key, Transaction transaction, long arrivedAt) {
+        byte[] data = transaction.getData().getBytes(StandardCharsets.UTF_8);
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            if (!stripe.put(key, data, transaction.getData().length(), arrivedAt)) {
+                return false;
+            }
+        }
+        size.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public Transaction get(Hash256 key) {
+        Stripe stripe = stripe(key);
+        byte[] data;
+        synchronized (stripe) {
+            long handle = stripe.handle(stripe.find(stripe.table, stripe.capacity, key));
+            if (handle == 0) {
+                return null;
+            }
+            data = stripe.data(handle);
+        }
+        return new Transaction(new String(data, StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public boolean contains(Hash256 key) {
+        Stripe stripe = stripe(key);
+        synchronized (stripe) {
+            return stripe.handle(stripe.find(stripe.table, stripe.capacity, key)) != 0;
+        }
+    }
+
+    @Override
+    public int remove(Hash256 key) {
+        Stripe stripe = stripe(key);
+        int chars;
+        synchronized (stripe) {
+            chars = stripe.remove(key);
+        }
+        if (chars >= 0) {
+            size.decrementAndGet();
+        }
+        return chars;
+    }
+
+    @Override
+    public Hash256 oldest(long arrivedBefore) {
+        Hash256 oldestKey = null;
+        long oldestArrival = arrivedBefore;
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                Slab head = stripe.head();
+                if (head != null) {
+                    long arrivedAt = head.buffer.getLong(head.read + 8);
+                    if (arrivedAt < oldestArrival) {
+                        oldestArrival = arrivedAt;
+                        oldestKey = key(head.buffer, head.read + 16);
+                    }
+                }
+            }
+        }
+        return oldestKey;
+    }
+
+    @Override
+    public int size() {
+        return size.get();
+    }
+
+    @Override
+    public Collection<Hash256> keys() {
+        ArrayList<Hash256> keys = new ArrayList<>(size.get());
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                for (int slot = 0; slot < stripe.capacity; slot++) {
+                    if (stripe.handle(slot) != 0) {
+                        keys.add(key(stripe.table, slot * SLOT_BYTES));
+                    }
+                }
+            }
+        }
+        return keys;
+    }
+
+    /**
+     * Decodes every transaction, a stripe at a time, calling the action outside the stripe's lock
+     */
+    @Override
+    public void forEach(BiConsumer<Hash256, Transaction> action) {
+        ArrayList<Hash256> keys = new ArrayList<>();
+        ArrayList<byte[]> data = new ArrayList<>();
+        for (Stripe stripe : stripes) {
+            keys.clear();
+            data.clear();
+            synchronized (stripe) {
+                for (int slot = 0; slot < stripe.capacity; slot++) {
+                    long handle = stripe.handle(slot);
+                    if (handle != 0) {
+                        keys.add(key(stripe.table, slot * SLOT_BYTES));
+                        data.add(stripe.data(handle));
+                    }
+                }
+            }
+            for (int i = 0; i < keys.size(); i++) {
+                action.accept(keys.get(i), new Transaction(new String(data.get(i), StandardCharsets.UTF_8)));
+            }
+        }
+    }
+
+    /**
+     * Recycles slabs at the head of each stripe whose records were all removed
+     */
+    @Override
+    public void purge() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.head();
+            }
+        }
+    }
+
+    @Override
+    public long offHeapBytes() {
+        return reserved.get();
+    }
+}
@@ -0,0 +1,50 @@
+package node;
+
+import node.communication.Address;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Smoothed round trip times to other nodes, as measured by connection handshakes, peer
+ * probes and heartbeat pings. Peers are forgotten when dropped, and probed nodes which never
+ * became peers are forgotten least recently used first once capacity is reached
+ */
+public class PeerLatencies {
+    private static final double ALPHA = 0.2;
+    private final LinkedHashMap<Address, Long> rtts;
+
+    /**
+     * @param capacity Most nodes whose round trip times are kept
+     */
+    PeerLatencies(int capacity) {
+        this.rtts = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Address, Long> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    /**
+     * @param rttNanos A fresh round trip measurement
+     */
+    public synchronized void record(Address address, long rttNanos) {
+        rtts.merge(address, rttNanos, (smoothed, sample) -> Math.round(smoothed + ALPHA * (sample - smoothed)));
+    }
+
+    /**
+     * @return Smoothed round trip time in nanoseconds, or -1 if never measured
+     */
+    public synchronized long get(Address address) {
+        return rtts.getOrDefault(address, -1L);
+    }
+
+    public synchronized void remove(Address address) {
+        rtts.remove(address);
+    }
+
+    public synchronized int size() {
+        return rtts.size();
+    }
+}
@@ -0,0 +1,92 @@
+package node;
+
+import node.blockchain.Block;
+import node.communication.Address;
+import node.communication.utils.Hashing;
+
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The quorum chosen by a block of the chain, normally the tip, derived once when that
+ * block changes rather than on every consensus message. Deriving it hashes the whole
+ * block, so the members are kept in order along with a set for membership tests and
+ * this node's own position.
+ */
+public class Quorum {
+    private final Block tip;
+    private final List<Address> members;
+    private final HashSet<Address> memberSet;
+    private final int myIndex;
+
+    /**
+     * @param tip Block of the chain which chooses the quorum
+     * @param members Members in the order derive returns them
+     * @param myAddress This node's address
+     */
+    public Quorum(Block tip, List<Address> members, Address myAddress) {
+        this.tip = tip;
+        this.members = Collections.unmodifiableList(new ArrayList<>(members));
+        this.memberSet = new HashSet<>(members);
+        this.myIndex = members.indexOf(myAddress);
+    }
+
+    /**
+     * Picks quorumSize distinct nodes, seeded by the hash of the block and nonce
+     * @return The quorum's members, or null without a block
+     */
+    public static ArrayList<Address> derive(Block block, int nonce, int numNodes, int quorumSize, int startingPort) {
+        if (block == null) {
+            return null;
+        }
+        ArrayList<Address> quorum = new ArrayList<>();
+        HashSet<Integer> portsAdded = new HashSet<>();
+
+        BigInteger bigInt = new BigInteger(1, Hashing.getBlockHash(block, nonce).toBytes());
+        bigInt = bigInt.mod(BigInteger.valueOf(numNodes));
+        int seed = bigInt.intValue();
+        Random random = new Random(seed);
+        for (int i = 0; i < quorumSize; i++) {
+            int port = startingPort + random.nextInt(numNodes);
+            while (!portsAdded.add(port)) {
+                port = startingPort + random.nextInt(numNodes);
+            }
+            quorum.add(new Address(port, "localhost"));
+        }
+        return quorum;
+    }
+
+    public Block getTip() {
+        return tip;
+    }
+
+    public List<Address> getMembers() {
+        return members;
+    }
+
+    public int size() {
+        return members.size();
+    }
+
+    public boolean contains(Address address) {
+        return memberSet.contains(address);
+    }
+
+    /**
+     * @return This node's position among the members, or -1 if it is not one
+     */
+    public int getMyIndex() {
+        return myIndex;
+    }
+
+    /**
+     * @return The member after this node, wrapping around, or null if it is not a member
+     */
+    public Address getNeighbor() {
+        return myIndex < 0 ? null : members.get((myIndex + 1) % members.size());
+    }
+}
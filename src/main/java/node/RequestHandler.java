@@ -0,0 +1,221 @@
+package node;
+
+import node.blockchain.Block;
+import node.blockchain.BlockContainer;
+import node.blockchain.BlockSkeleton;
+import node.blockchain.BlockTransactions;
+import node.blockchain.ShardBlock;
+import node.blockchain.SnapshotChunk;
+import node.blockchain.Transaction;
+import node.communication.*;
+import node.communication.utils.Hash256;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+
+import static node.communication.utils.Hashing.hash;
+
+/**
+ * Implements the nodes protocol for a single incoming message, independent of
+ * whether it arrived on a ServerConnection thread or the NIO event loops
+ */
+public class RequestHandler {
+    private final Node node;
+
+    RequestHandler(Node node) {
+        this.node = node;
+    }
+
+    public void handleRequest(Message incomingMessage, Responder responder) throws IOException {
+        /* Whatever a node sends us shows it is alive, so busy peers need no pings */
+        Address sender = senderOf(incomingMessage);
+        if (sender != null) {
+            responder.setPeer(sender);
+        } else {
+            sender = responder.getPeer();
+        }
+        if (sender != null) {
+            node.heardFrom(sender);
+        }
+        Message outgoingMessage;
+        switch(incomingMessage.getRequest()){
+            case REQUEST_CONNECTION:
+                Handshake handshake = Handshake.of(incomingMessage.getMetadata());
+                Address address = handshake.getAddress();
+                if (node.eligibleConnection(address, true)) {
+                    node.negotiateCompression(address, handshake.getCompressions());
+                    /* Older nodes sent a bare address and expect one back */
+                    outgoingMessage = new Message(Message.Request.ACCEPT_CONNECTION, handshake.getCompressions() == null
+                            ? node.getAddress() : new Handshake(node.getAddress(), FrameCompression.SUPPORTED));
+                    responder.reply(outgoingMessage);
+                    return;
+                }
+                outgoingMessage = new Message(Message.Request.REJECT_CONNECTION, node.getAddress());
+                responder.reply(outgoingMessage);
+                break;
+            case HANDSHAKE:
+                Handshake offer = Handshake.of(incomingMessage.getMetadata());
+                node.negotiateCompression(offer.getAddress(), offer.getCompressions());
+                responder.reply(new Message(Message.Request.HANDSHAKE, new Handshake(node.getAddress(), FrameCompression.SUPPORTED)));
+                break;
+            case DISCONNECT:
+                node.receiveDisconnect((Address) incomingMessage.getMetadata());
+                break;
+            case QUERY_STATS:
+                responder.reply(new Message(node.getStats()));
+                break;
+            case QUERY_TRANSACTION:
+                /* Clients name transactions and blocks by their hex hash */
+                String hex = (String) incomingMessage.getMetadata();
+                responder.reply(new Message(Hash256.isHex(hex) ? node.findTransaction(Hash256.fromHex(hex)) : new LinkedHashMap<>()));
+                break;
+            case SNAPSHOT_MANIFEST:
+                responder.reply(node.getStateSync() == null ? new Message(Message.Request.PING) : node.getStateSync().getManifest());
+                break;
+            case SNAPSHOT_CHUNK:
+                responder.reply(node.getStateSync() == null ? new Message(Message.Request.PING)
+                        : node.getStateSync().getChunk((SnapshotChunk) incomingMessage.getMetadata()));
+                break;
+            case QUERY_BLOCK:
+                Object blockId = incomingMessage.getMetadata();
+                responder.reply(new Message(blockId instanceof Integer ? node.getBlock((Integer) blockId)
+                        : Hash256.isHex((String) blockId) ? node.findBlock(Hash256.fromHex((String) blockId)) : null));
+                break;
+            case QUERY_PEERS:
+                if (incomingMessage.getMetadata() instanceof Address) {
+                    /* Discovery query from another node */
+                    responder.reply(new Message(node.samplePeers((Address) incomingMessage.getMetadata())));
+                    break;
+                }
+                System.out.println("Node " + node.getAddress().getPort() + ": Received: Query request.");
+                outgoingMessage = new Message(node.copyLocalPeers());
+                responder.reply(outgoingMessage);
+                break;
+            case REQUEST_BLOCK:
+            case ADD_BLOCK:
+                Block proposedBlock = (Block) incomingMessage.getMetadata();
+                node.addBlock(proposedBlock);
+            case PING:
+                //System.out.println("Node " + node.getAddress().getPort() + ": Received: Ping.");
+                outgoingMessage = new Message(Message.Request.PING);
+                responder.reply(outgoingMessage);
+                break;
+            case REQUEST_QUORUM_CONNECTION:
+                break;
+            case ADD_TRANSACTION:
+                Transaction transaction = (Transaction) incomingMessage.getMetadata();
+                addUnseenTransaction(transaction);
+                break;
+            case SUBMIT_TRANSACTION:
+                responder.reply(new Message(node.submitTransaction((Transaction) incomingMessage.getMetadata())));
+                break;
+            case TX_BATCH:
+                for (Transaction batchedTransaction : collectionOf(incomingMessage.getMetadata(), Transaction.class)) {
+                    addUnseenTransaction(batchedTransaction);
+                }
+                break;
+            case INV:
+                Inventory inventory = (Inventory) incomingMessage.getMetadata();
+                ArrayList<Hash256> unseenKeys = new ArrayList<>();
+                for (Hash256 key : inventory.getKeys()) {
+                    if (!node.getSeenCache().contains(key)) {
+                        unseenKeys.add(key);
+                    }
+                }
+                if (!unseenKeys.isEmpty()) {
+                    node.receiveInventory(new Inventory(inventory.getAddress(), unseenKeys));
+                }
+                break;
+            case GETDATA:
+                node.receiveDataRequest((Inventory) incomingMessage.getMetadata());
+                break;
+            case RECEIVE_MEMPOOL:
+                node.receiveMempool(collectionOf(incomingMessage.getMetadata(), Hash256.class), responder);
+                break;
+            case RECEIVE_MEMPOOL_SKETCH:
+                node.receiveMempoolSketch((MempoolSketch) incomingMessage.getMetadata(), responder);
+                break;
+            case RECEIVE_TRANSACTIONS:
+                node.receiveMempoolTransactions(collectionOf(incomingMessage.getMetadata(), Transaction.class));
+                break;
+            case RECEIVE_SKELETON:
+                responder.reply(node.receiveSkeleton((BlockSkeleton) incomingMessage.getMetadata()));
+                break;
+            case BLOCK_TRANSACTIONS:
+                responder.reply(node.receiveBlockTransactions((BlockTransactions) incomingMessage.getMetadata()));
+                break;
+            case QUORUM_READY:
+                node.receiveQuorumReady();
+                break;
+            case VOTE_BLOCK:
+                BlockContainer blockContainer = (BlockContainer) incomingMessage.getMetadata();
+                if (node.isBroadcastVoting()) {
+                    responder.reply(node.voteOnBlock(blockContainer));
+                    break;
+                }
+                node.receiveBlockForVoting(blockContainer);
+                break;
+            case SHARD_VOTE_BLOCK:
+            case SHARD_ADD_BLOCK:
+                ShardedConsensus shardedConsensus = node.getShardedConsensus();
+                ShardBlock shardBlock = (ShardBlock) incomingMessage.getMetadata();
+                if (shardedConsensus == null) {
+                    responder.reply(new Message(Message.Request.PING));
+                } else if (incomingMessage.getRequest() == Message.Request.SHARD_VOTE_BLOCK) {
+                    responder.reply(shardedConsensus.voteOnBlock(shardBlock));
+                } else {
+                    responder.reply(shardedConsensus.receiveBlock(shardBlock));
+                }
+                break;
+        }
+    }
+
+    /**
+     * @return The node which sent a message naming itself, or null for other messages
+     */
+    private static Address senderOf(Message message) {
+        Object metadata = message.getMetadata();
+        switch (message.getRequest()) {
+            case REQUEST_CONNECTION:
+            case HANDSHAKE:
+            case DISCONNECT:
+            case QUERY_PEERS:
+                return metadata instanceof Address || metadata instanceof Handshake ? Handshake.of(metadata).getAddress() : null;
+            case INV:
+            case GETDATA:
+                return metadata instanceof Inventory ? ((Inventory) metadata).getAddress() : null;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Metadata arrives as whatever collection the sender's codec produced, so each element
+     * is checked before the collection is used as one of the type
+     * @throws IOException If the metadata is not a collection of the type
+     */
+    private static <T> Collection<T> collectionOf(Object metadata, Class<T> type) throws IOException {
+        if (!(metadata instanceof Collection)) {
+            throw new IOException("Expected a collection of " + type.getSimpleName());
+        }
+        for (Object element : (Collection<?>) metadata) {
+            if (!type.isInstance(element)) {
+                throw new IOException("Expected a collection of " + type.getSimpleName());
+            }
+        }
+        @SuppressWarnings("unchecked") // Every element was checked above
+        Collection<T> collection = (Collection<T>) metadata;
+        return collection;
+    }
+
+    /**
+     * Drops transactions seen recently before they reach the mempool
+     */
+    private void addUnseenTransaction(Transaction transaction) {
+        Hash256 key = hash(transaction.getData());
+        if (!node.getSeenCache().contains(key)) {
+            node.addTransaction(key, transaction);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package node;
+
+import node.communication.utils.Hash256;
+
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Remembers the keys of recently accepted transactions so duplicates arriving through
+ * gossip can be dropped before they reach the mempool.
+ *
+ * Keys are held in two generations. New keys go into the current generation, lookups
+ * consult both, and the current generation becomes the previous one once it holds
+ * capacity keys or is windowMillis old. A key is therefore remembered for at least one
+ * window and memory stays bounded by two generations. Each generation is either an
+ * exact set or, for very high rates, a Bloom filter which uses a few bits per key at
+ * the cost of roughly one false positive in a hundred lookups.
+ */
+public class SeenCache {
+    private final boolean bloom;
+    private final int capacity;
+    private final long windowMillis;
+    private final AtomicLong hits, misses;
+    private Generation current, previous;
+    private long rotatedAt;
+
+    /**
+     * @param bloom        True to store generations as Bloom filters rather than exact sets
+     * @param capacity     Keys per generation before it is rotated early
+     * @param windowMillis Age at which a generation is rotated
+     */
+    SeenCache(boolean bloom, int capacity, long windowMillis) {
+        this.bloom = bloom;
+        this.capacity = capacity;
+        this.windowMillis = windowMillis;
+        this.hits = new AtomicLong();
+        this.misses = new AtomicLong();
+        this.current = newGeneration();
+        this.previous = newGeneration();
+        this.rotatedAt = System.currentTimeMillis();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Looks a key up, counting the outcome
+     * @param key Transaction key
+     * @return True if the key was seen within the window
+     */
+    public synchronized boolean contains(Hash256 key) {
+        rotateIfDue();
+        if (current.contains(key) || previous.contains(key)) {
+            hits.incrementAndGet();
+            return true;
+        }
+        misses.incrementAndGet();
+        return false;
+    }
+
+    public synchronized void add(Hash256 key) {
+        rotateIfDue();
+        current.add(key);
+    }
+
+    private void rotateIfDue() {
+        long now = System.currentTimeMillis();
+        if (current.size() >= capacity || now - rotatedAt >= windowMillis) {
+            previous = current;
+            current = newGeneration();
+            rotatedAt = now;
+        }
+    }
+
+    private Generation newGeneration() {
+        return bloom ? new BloomGeneration(capacity) : new ExactGeneration();
+    }
+
+    private interface Generation {
+        boolean contains(Hash256 key);
+
+        void add(Hash256 key);
+
+        int size();
+    }
+
+    private static class ExactGeneration implements Generation {
+        private final HashSet<Hash256> keys = new HashSet<>();
+
+        public boolean contains(Hash256 key) {
+            return keys.contains(key);
+        }
+
+        public void add(Hash256 key) {
+            keys.add(key);
+        }
+
+        public int size() {
+            return keys.size();
+        }
+    }
+
+    /**
+     * Bloom filter sized for a 1% false positive rate at the expected amount of keys,
+     * with the bit positions derived from two words of the key, which as parts of a
+     * SHA-256 hash are independent and uniform already
+     */
+    private static class BloomGeneration implements Generation {
+        private static final double FALSE_POSITIVE_RATE = 0.01;
+        private final long[] bits;
+        private final int numBits, numHashes;
+        private int size;
+
+        BloomGeneration(int expectedKeys) {
+            double ln2 = Math.log(2);
+            numBits = Math.max(64, (int) Math.ceil(-expectedKeys * Math.log(FALSE_POSITIVE_RATE) / (ln2 * ln2)));
+            numHashes = Math.max(1, (int) Math.round((double) numBits / expectedKeys * ln2));
+            bits = new long[(numBits + 63) / 64];
+        }
+
+        public boolean contains(Hash256 key) {
+            long h1 = key.getWord(0), h2 = key.getWord(1) | 1;
+            for (int i = 0; i < numHashes; i++) {
+                int bit = (int) Math.floorMod(h1 + i * h2, (long) numBits);
+                if ((bits[bit >>> 6] & (1L << bit)) == 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public void add(Hash256 key) {
+            long h1 = key.getWord(0), h2 = key.getWord(1) | 1;
+            for (int i = 0; i < numHashes; i++) {
+                int bit = (int) Math.floorMod(h1 + i * h2, (long) numBits);
+                bits[bit >>> 6] |= 1L << bit;
+            }
+            size++;
+        }
+
+        public int size() {
+            return size;
+        }
+    }
+}
@@ -1,93 +1,129 @@
 package node;
 
-import node.blockchain.Block;
-import node.blockchain.BlockContainer;
-import node.blockchain.Transaction;
 import node.communication.*;
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
-import java.util.ArrayList;
-import java.util.HashSet;
-import java.util.Set;
 
 /**
- * Deterministic thread which implements the nodes protocol
+ * Thread which serves every request arriving on one accepted link. Framed peers keep
+ * their link open across many requests, while legacy object stream clients are
+ * recognised by their stream header and served as before.
  */
 public class ServerConnection extends Thread {
     private final Socket client;
     private final Node node;
+    private final RequestHandler requestHandler;
+    private final byte[] buffered;
 
     ServerConnection(Socket client, Node node) throws SocketException {
+        this(client, node, null);
+    }
+
+    /**
+     * Serves a legacy client handed over by the NIO transport, after both stream headers were exchanged
+     * @param buffered Bytes the NIO transport already read past the client's stream header,
+     *                 or null for a freshly accepted link
+     */
+    ServerConnection(Socket client, Node node, byte[] buffered) throws SocketException {
         this.client = client;
         this.node = node;
+        this.requestHandler = new RequestHandler(node);
+        this.buffered = buffered;
         setPriority(NORM_PRIORITY - 1);
     }
 
     public void run() {
         try {
             OutputStream out = client.getOutputStream();
-            InputStream in = client.getInputStream();
-            ObjectOutputStream oout = new ObjectOutputStream(out);
-            ObjectInputStream oin = new ObjectInputStream(in);
-            Message incomingMessage = (Message) oin.readObject();
-            handleRequest(incomingMessage, oout, oin);
-            client.close();
+            InputStream in = new BufferedInputStream(client.getInputStream());
+            if (buffered != null) {
+                serveLegacy(out, new SequenceInputStream(new ByteArrayInputStream(buffered), in));
+                return;
+            }
+            out.write(Framing.STREAM_HEADER);
+            out.flush();
+            byte[] firstBytes = new byte[Framing.HEADER_LENGTH];
+            new DataInputStream(in).readFully(firstBytes);
+            if (Framing.isPreface(firstBytes)) {
+                int codecId = in.read();
+                if (codecId < 0) {
+                    throw new EOFException();
+                }
+                serveFramed(out, in, Framing.codecFor(codecId));
+            } else {
+                serveLegacy(out, in);
+            }
+        } catch (EOFException e) {
+            // Link closed by the other side
         } catch (IOException e) {
             System.out.println("I/O error " + e);
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException(e);
+        } finally {
+            try {
+                client.close();
+            } catch (IOException ignored) {
+            }
         }
     }
 
-    public void handleRequest(Message incomingMessage, ObjectOutputStream oout, ObjectInputStream oin) throws IOException {
-        Message outgoingMessage;
-        switch(incomingMessage.getRequest()){
-            case REQUEST_CONNECTION:
-                Address address = (Address) incomingMessage.getMetadata();
-                if (node.eligibleConnection(address, true)) {
-                    outgoingMessage = new Message(Message.Request.ACCEPT_CONNECTION, node.getAddress());
-                    oout.writeObject(outgoingMessage);
-                    oout.flush();
-                    return;
-                }
-                outgoingMessage = new Message(Message.Request.REJECT_CONNECTION, node.getAddress());
-                oout.writeObject(outgoingMessage);
-                oout.flush();
-                break;
-            case QUERY_PEERS:
-                System.out.println("Node " + node.getAddress().getPort() + ": Received: Query request.");
-                outgoingMessage = new Message(node.getLocalPeers());
-                oout.writeObject(outgoingMessage);
-                oout.flush();
-                break;
-            case REQUEST_BLOCK:
-            case ADD_BLOCK:
-                Block proposedBlock = (Block) incomingMessage.getMetadata();
-                node.addBlock(proposedBlock);
-            case PING:
-                //System.out.println("Node " + node.getAddress().getPort() + ": Received: Ping.");
-                outgoingMessage = new Message(Message.Request.PING);
-                oout.writeObject(outgoingMessage);
-                oout.flush();
-                break;
-            case REQUEST_QUORUM_CONNECTION:
-                break;
-            case ADD_TRANSACTION:
-                Transaction transaction = (Transaction) incomingMessage.getMetadata();
-                node.addTransaction(transaction);
-                break;
-            case RECEIVE_MEMPOOL:
-                Set<String> memPoolHashes = (HashSet<String>) incomingMessage.getMetadata();
-                node.receiveMempool(memPoolHashes, oout, oin);
-                break;
-            case QUORUM_READY:
-                node.receiveQuorumReady();
-                break;
-            case VOTE_BLOCK:
-                BlockContainer blockContainer = (BlockContainer) incomingMessage.getMetadata();
-                node.receiveBlockForVoting(blockContainer);
-                break;
+    /* Peers keep their links open, so keep serving requests until the other side hangs up */
+    private void serveFramed(OutputStream out, InputStream in, MessageCodec codec) throws IOException {
+        DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(out));
+        DataInputStream din = new DataInputStream(in);
+        FrameCompression[] replyCompression = new FrameCompression[1];
+        Responder responder = new Responder() {
+            private Address peer;
+
+            @Override
+            public void reply(Message message) throws IOException {
+                Framing.writeFrame(dout, codec, replyCompression[0], message);
+            }
+
+            @Override
+            public Address getPeer() {
+                return peer;
+            }
+
+            @Override
+            public void setPeer(Address peer) {
+                this.peer = peer;
+            }
+        };
+        while (true) {
+            int header = din.readInt();
+            byte[] payload = new byte[Framing.payloadLength(header)];
+            din.readFully(payload);
+            /* A peer which sends compressed frames can inflate our replies too */
+            if (Framing.isCompressed(header)) {
+                replyCompression[0] = node.getFrameCompression();
+            }
+            requestHandler.handleRequest(Framing.decode(codec, header, payload, 0, payload.length), responder);
+        }
+    }
+
+    /* Both stream headers have been consumed at this point, so neither side may write or expect another */
+    private void serveLegacy(OutputStream out, InputStream in) throws IOException {
+        ObjectOutputStream oout = new ObjectOutputStream(out) {
+            @Override
+            protected void writeStreamHeader() {
+            }
+        };
+        ObjectInputStream oin = new ObjectInputStream(in) {
+            @Override
+            protected void readStreamHeader() {
+            }
+        };
+        Responder responder = message -> {
+            oout.writeObject(message);
+            oout.reset();
+            oout.flush();
+        };
+        while (true) {
+            try {
+                requestHandler.handleRequest((Message) oin.readObject(), responder);
+            } catch (ClassNotFoundException e) {
+                throw new RuntimeException(e);
+            }
         }
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,256 @@
+package node;
+
+import node.blockchain.Block;
+import node.blockchain.ShardBlock;
+import node.blockchain.Transaction;
+import node.communication.Address;
+import node.communication.utils.Hash256;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiPredicate;
+import java.util.function.Consumer;
+
+import static node.communication.utils.Hashing.getBlockHash;
+
+/**
+ * One chain run by its own quorum, either a shard's chain of the blocks holding the
+ * transactions whose keys fall in the shard, or the beacon chain. Keeps for it what Node
+ * keeps for its single chain under broadcast voting: the blocks, the pipeline of blocks in
+ * flight, the block trigger, the block last voted for and the quorum of the current window.
+ * Blocks relayed ahead of their parent are held until the parent arrives.
+ *
+ * Each chain seeds its quorums with its own nonce, so the shards and the beacon pick
+ * different quorums from the same genesis block.
+ *
+ * A proposal can reach a member before the block it extends does, as committed blocks are
+ * flooded while the next proposer starts straight away, so a member waits a little for the
+ * parent before refusing. A vote lapses after the vote timeout if its block never made it
+ * into the chain, so a refused block does not leave its height unable to gather votes.
+ */
+public class Shard {
+    private static final int MAX_EARLY_BLOCKS = 64;
+
+    private final int index;
+    private final ArrayList<Block> chain;
+    private final BlockPipeline pipeline;
+    private final BlockTrigger trigger;
+    private final HashMap<Integer, Block> earlyBlocks;
+    private final Object commitLock;
+    private final long voteTimeoutNanos;
+    private Block votedBlock;
+    private long votedAt;
+    private Hash256 tipHash, votedHash;
+    private volatile Quorum quorum;
+    private int pending;
+    private long pendingBytes;
+
+    /**
+     * @param index Index of the shard, or ShardBlock.BEACON
+     * @param voteTimeoutMillis How long proposers wait for a vote
+     */
+    Shard(int index, BlockPipeline pipeline, BlockTrigger trigger, long voteTimeoutMillis) {
+        this.index = index;
+        this.chain = new ArrayList<>();
+        this.chain.add(new Block(new HashMap<Hash256, Transaction>(), null, 0));
+        this.tipHash = hash(tip());
+        this.pipeline = pipeline;
+        this.trigger = trigger;
+        this.earlyBlocks = new HashMap<>();
+        this.commitLock = new Object();
+        this.voteTimeoutNanos = voteTimeoutMillis * 1_000_000L;
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public boolean isBeacon() {
+        return index == ShardBlock.BEACON;
+    }
+
+    public BlockPipeline getPipeline() {
+        return pipeline;
+    }
+
+    public BlockTrigger getTrigger() {
+        return trigger;
+    }
+
+    /**
+     * Held while proposing or committing, so the pipeline's head and the tip move together
+     */
+    public Object getCommitLock() {
+        return commitLock;
+    }
+
+    public synchronized int height() {
+        return chain.size();
+    }
+
+    public synchronized Block tip() {
+        return chain.get(chain.size() - 1);
+    }
+
+    /**
+     * @return The block at a height, or null if the chain is not that long yet
+     */
+    public synchronized Block get(int height) {
+        return height < chain.size() ? chain.get(height) : null;
+    }
+
+    /**
+     * @return The block the next proposal extends, the newest in flight or else the tip
+     */
+    public synchronized Block workingParent() {
+        Block last = pipeline.last();
+        return last != null ? last : tip();
+    }
+
+    /**
+     * @return Hash of the block the next proposal extends
+     */
+    public synchronized Hash256 workingParentHash() {
+        Block last = pipeline.last();
+        return last == null ? tipHash : last == votedBlock ? votedHash : hash(last);
+    }
+
+    /**
+     * Like Node.quorumFor, heights are grouped in windows of the pipeline's depth sharing
+     * the quorum chosen by the block before the window
+     * @return The quorum for the height, or null while the block choosing it is not in the chain
+     */
+    public Quorum quorumFor(int height, int numNodes, int quorumSize, int startingPort, Address myAddress) {
+        int anchorHeight = (height - 1) / pipeline.getDepth() * pipeline.getDepth();
+        Block anchor = get(anchorHeight);
+        if (anchor == null) {
+            return null;
+        }
+        Quorum cached = quorum;
+        if (cached == null || cached.getTip() != anchor) {
+            cached = new Quorum(anchor, Quorum.derive(anchor, index + 1, numNodes, quorumSize, startingPort), myAddress);
+            quorum = cached;
+        }
+        return cached;
+    }
+
+    /**
+     * Appends a block if it extends the tip, followed by any held blocks which then extend
+     * it in turn. A block further ahead is held for later
+     * @param onAppend Called for each appended block while the chain is still locked
+     * @return The blocks appended, in height order
+     */
+    public synchronized ArrayList<Block> append(Block block, Consumer<Block> onAppend) {
+        ArrayList<Block> appended = new ArrayList<>();
+        if (block.getBlockId() > chain.size() && earlyBlocks.size() < MAX_EARLY_BLOCKS) {
+            earlyBlocks.put(block.getBlockId(), block);
+        }
+        Block next = block;
+        while (next != null && next.getBlockId() == chain.size() && tipHash.equals(next.getPrevBlockHash())) {
+            chain.add(next);
+            tipHash = hash(next);
+            onAppend.accept(next);
+            appended.add(next);
+            next = earlyBlocks.remove(chain.size());
+        }
+        earlyBlocks.keySet().removeIf(height -> height < chain.size());
+        if (!appended.isEmpty()) {
+            notifyAll();
+        }
+        return appended;
+    }
+
+    /**
+     * Agrees to sign a block if it extends the tip, or the block voted for last while that
+     * one is still in flight, and no other block at its height was voted for
+     * @param valid Further check of the block against its parent, made while the chain is locked
+     * @return True if the block is signed
+     */
+    public synchronized boolean vote(Block block, BiPredicate<Block, Block> valid) {
+        long now = System.nanoTime();
+        long deadline = now + voteTimeoutNanos / 2;
+        while (block.getBlockId() > chain.size() && now < deadline
+                && (votedBlock == null || block.getBlockId() != votedBlock.getBlockId() + 1)) {
+            try {
+                TimeUnit.NANOSECONDS.timedWait(this, deadline - now);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+            now = System.nanoTime();
+        }
+        Block lastBlock = tip();
+        if (votedBlock != null && votedBlock.getBlockId() > lastBlock.getBlockId()
+                && now - votedAt > voteTimeoutNanos) {
+            votedBlock = null;
+            votedHash = null;
+        }
+        Block parent = null;
+        Hash256 parentHash = null;
+        if (block.getBlockId() == lastBlock.getBlockId() + 1) {
+            parent = lastBlock;
+            parentHash = tipHash;
+        } else if (votedBlock != null && votedBlock.getBlockId() > lastBlock.getBlockId()
+                && block.getBlockId() == votedBlock.getBlockId() + 1) {
+            parent = votedBlock;
+            parentHash = votedHash;
+        }
+        if (parent == null || (votedBlock != null && block.getBlockId() <= votedBlock.getBlockId())
+                || !parentHash.equals(block.getPrevBlockHash()) || !valid.test(parent, block)) {
+            return false;
+        }
+        proposed(block);
+        return true;
+    }
+
+    /**
+     * Records a block this node proposed, which it votes for by proposing
+     */
+    public synchronized void proposed(Block block) {
+        votedBlock = block;
+        votedHash = hash(block);
+        votedAt = System.nanoTime();
+    }
+
+    /**
+     * Forgets the block voted for if the quorum refused it
+     */
+    public synchronized void abandoned(ArrayList<Block> dropped) {
+        if (dropped.contains(votedBlock)) {
+            votedBlock = null;
+            votedHash = null;
+        }
+    }
+
+    /**
+     * Counts a mempool transaction whose key falls in this shard
+     */
+    public synchronized void added(int size) {
+        pending++;
+        pendingBytes += size;
+    }
+
+    /**
+     * Uncounts a transaction which left the mempool
+     */
+    public synchronized void removed(int size) {
+        pending--;
+        pendingBytes -= size;
+    }
+
+    /**
+     * @return Transactions of this shard in the mempool which no block in flight holds
+     */
+    public synchronized int pendingCount() {
+        return pending - pipeline.reservedCount();
+    }
+
+    public synchronized long pendingBytes() {
+        return pendingBytes - pipeline.reservedBytes();
+    }
+
+    static Hash256 hash(Block block) {
+        return getBlockHash(block, 0);
+    }
+}
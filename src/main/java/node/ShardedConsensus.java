@@ -0,0 +1,527 @@
+package node;
+
+import node.blockchain.Block;
+import node.blockchain.BlockContainer;
+import node.blockchain.ShardBlock;
+import node.blockchain.Transaction;
+import node.communication.Address;
+import node.communication.Message;
+import node.communication.PeerConnection;
+import node.communication.utils.Hash256;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import static node.communication.utils.Hashing.hash;
+import static node.communication.utils.Utils.getIntProperty;
+
+/**
+ * Runs consensus as SHARDS independent chains, one per slice of the transaction key space,
+ * each with its own quorum proposing and voting on its blocks concurrently with the others,
+ * so throughput grows with the number of shards rather than being capped by one quorum.
+ * Each shard votes by broadcast as Node does with VOTING=BROADCAST.
+ *
+ * A beacon chain, run by a quorum of its own, orders the shard blocks. Each beacon block
+ * lists the shard blocks committed since the previous one by shard, height and hash, and
+ * its quorum only signs it if every shard's heights carry on from the beacon's last entry
+ * for that shard and match the shard blocks the member holds.
+ *
+ * Committed blocks of every chain are flooded to all nodes, so every node holds every
+ * chain and drops committed transactions from its mempool.
+ */
+public class ShardedConsensus {
+    private final Node node;
+    private final Shard[] shards;
+    private final Shard beacon;
+    private final int[] ordered;
+    private final int numNodes, quorumSize, startingPort, voteThresholdPercent, voteTimeout;
+    private final ExecutorService voteRequests, blockRelay;
+
+    /**
+     * @param numShards Number of shards the key space is split into
+     * @param config Loaded config.properties, settings missing from it use their defaults
+     * @param voteRequests Runs proposal rounds and vote requests, shared with the node's own
+     * @param blockRelay Floods committed blocks in order, shared with the node's own
+     * @param scheduler Runs the trigger checks, shared with the node's other timers
+     */
+    ShardedConsensus(Node node, int numShards, int numNodes, int quorumSize, int startingPort,
+                     int minTransactionsPerBlock, Properties config, ExecutorService voteRequests,
+                     ExecutorService blockRelay, ScheduledExecutorService scheduler) {
+        this.node = node;
+        this.numNodes = numNodes;
+        this.quorumSize = quorumSize;
+        this.startingPort = startingPort;
+        this.voteThresholdPercent = getIntProperty(config, "VOTE_THRESHOLD_PERCENT", 67);
+        this.voteTimeout = getIntProperty(config, "VOTE_TIMEOUT_MS", 5000);
+        this.voteRequests = voteRequests;
+        this.blockRelay = blockRelay;
+        int depth = getIntProperty(config, "PIPELINE_DEPTH", 1);
+        boolean adaptive = !config.getProperty("BLOCK_SIZE", "ADAPTIVE").trim().equalsIgnoreCase("FIXED");
+        shards = new Shard[numShards];
+        for (int i = 0; i < numShards; i++) {
+            shards[i] = new Shard(i, new BlockPipeline(depth), new BlockTrigger(minTransactionsPerBlock,
+                    getIntProperty(config, "BLOCK_MAX_TXS", 1000),
+                    getIntProperty(config, "BLOCK_MAX_BYTES", 1048576),
+                    getIntProperty(config, "BLOCK_MAX_WAIT_MS", 500), adaptive), voteTimeout);
+        }
+        /* A beacon block is due once a shard block waited BEACON_INTERVAL_MS, or enough piled up */
+        beacon = new Shard(ShardBlock.BEACON, new BlockPipeline(1), new BlockTrigger(1,
+                getIntProperty(config, "BEACON_MAX_ENTRIES", 1000), Integer.MAX_VALUE,
+                getIntProperty(config, "BEACON_INTERVAL_MS", 200), false), voteTimeout);
+        ordered = new int[numShards];
+
+        long checkInterval = Long.MAX_VALUE;
+        for (Shard shard : shards) {
+            checkInterval = Math.min(checkInterval, shard.getTrigger().getCheckIntervalNanos());
+        }
+        checkInterval = Math.min(checkInterval, beacon.getTrigger().getCheckIntervalNanos());
+        scheduler.scheduleWithFixedDelay(this::checkTriggers,
+                checkInterval, checkInterval, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Shard a transaction key falls in, from the leading bits of the key's hash
+     */
+    public static int shardOf(Hash256 key, int numShards) {
+        return Integer.remainderUnsigned((int) key.leadingBytes(4), numShards);
+    }
+
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @return The chain of a shard, or the beacon chain for ShardBlock.BEACON, or null
+     */
+    public Shard getShard(int index) {
+        if (index == ShardBlock.BEACON) {
+            return beacon;
+        }
+        return index >= 0 && index < shards.length ? shards[index] : null;
+    }
+
+    /**
+     * Counts a transaction which entered the mempool and proposes its shard's next block
+     * if that is now due
+     */
+    public void transactionAdded(Hash256 key, int size) {
+        Shard shard = shards[shardOf(key, shards.length)];
+        shard.added(size);
+        if (shouldPropose(shard)) {
+            scheduleProposals(shard);
+        }
+    }
+
+    /**
+     * Uncounts a transaction which left the mempool
+     */
+    public void transactionRemoved(Hash256 key, int size) {
+        shards[shardOf(key, shards.length)].removed(size);
+    }
+
+    private boolean shouldPropose(Shard shard) {
+        if (shard.isBeacon()) {
+            return beacon.getTrigger().shouldPropose(unorderedBlocks(), 0, System.nanoTime());
+        }
+        return shard.getTrigger().shouldPropose(shard.pendingCount(), shard.pendingBytes(), System.nanoTime());
+    }
+
+    /**
+     * Runs periodically so that transactions, and shard blocks waiting for the beacon,
+     * which stopped arriving still get their block once they waited long enough
+     */
+    private void checkTriggers() {
+        for (Shard shard : shards) {
+            if (shouldPropose(shard)) {
+                scheduleProposals(shard);
+            }
+        }
+        if (shouldPropose(beacon)) {
+            scheduleProposals(beacon);
+        }
+    }
+
+    /**
+     * Starts proposal rounds for a chain on another thread if we propose its next block,
+     * running the next round straight away while the pipeline has room
+     */
+    private void scheduleProposals(Shard shard) {
+        if (!isNextProposer(shard) || !shard.getPipeline().requestRound()) {
+            return;
+        }
+        voteRequests.execute(() -> {
+            boolean again;
+            do {
+                again = propose(shard) && shard.getPipeline().hasRoom() || shard.getPipeline().finishRound();
+            } while (again);
+        });
+    }
+
+    private boolean isNextProposer(Shard shard) {
+        Quorum next = shard.quorumFor(shard.workingParent().getBlockId() + 1, numNodes, quorumSize, startingPort,
+                node.getAddress());
+        return next != null && next.getMyIndex() == 0 && shard.getPipeline().hasRoom();
+    }
+
+    /**
+     * Proposes a chain's next block if we are its proposer, the pipeline has room and the
+     * block trigger fired. A shard block holds the shard's transactions of our mempool which
+     * no block in flight holds, a beacon block the shard blocks not yet ordered
+     * @return True if a block was proposed
+     */
+    private boolean propose(Shard shard) {
+        synchronized (shard.getCommitLock()) {
+            Block parent = shard.workingParent();
+            Quorum next = shard.quorumFor(parent.getBlockId() + 1, numNodes, quorumSize, startingPort, node.getAddress());
+            if (next == null || next.getMyIndex() != 0 || !shard.getPipeline().hasRoom()) {
+                return false;
+            }
+            HashMap<Hash256, Transaction> blockTransactions = shard.isBeacon()
+                    ? beaconEntries() : shardTransactions(shard);
+            if (blockTransactions == null) {
+                return false;
+            }
+            Block block = new Block(blockTransactions, shard.workingParentHash(), parent.getBlockId() + 1);
+            shard.proposed(block);
+            broadcastBlockForVoting(shard, block);
+        }
+        return true;
+    }
+
+    /**
+     * Picks the transactions for a shard's next block, up to the trigger's target count
+     * and byte limit
+     * @return The transactions, or null if no block is due
+     */
+    private HashMap<Hash256, Transaction> shardTransactions(Shard shard) {
+        if (!shouldPropose(shard)) {
+            return null;
+        }
+        BlockTrigger trigger = shard.getTrigger();
+        BlockPipeline pipeline = shard.getPipeline();
+        HashMap<Hash256, Transaction> blockTransactions = new HashMap<>();
+        int targetTxs = trigger.getTargetTxs();
+        long blockBytes = 0;
+        int leftover = 0;
+        Mempool mempool = node.getMempool();
+        for (Hash256 key : mempool.keys()) {
+            if (shardOf(key, shards.length) != shard.getIndex() || pipeline.isReserved(key)) {
+                continue;
+            }
+            /* Transactions are only decoded while the block has room for more */
+            if (blockTransactions.size() >= targetTxs) {
+                leftover++;
+                continue;
+            }
+            Transaction transaction = mempool.get(key);
+            if (transaction == null) {
+                continue;
+            }
+            int size = BlockTrigger.sizeOf(transaction);
+            if (blockTransactions.isEmpty() || blockBytes + size <= trigger.getMaxBytes()) {
+                blockTransactions.put(key, transaction);
+                blockBytes += size;
+            } else {
+                leftover++;
+            }
+        }
+        trigger.proposed(blockTransactions.size(), leftover, System.nanoTime());
+        return blockTransactions;
+    }
+
+    /**
+     * Lists the shard blocks committed since the beacon tip, oldest first in each shard,
+     * up to the trigger's target count
+     * @return The entries keyed by the hash of their text, or null if no block is due
+     */
+    private HashMap<Hash256, Transaction> beaconEntries() {
+        synchronized (beacon) {
+            if (!shouldPropose(beacon)) {
+                return null;
+            }
+            HashMap<Hash256, Transaction> entries = new HashMap<>();
+            int targetEntries = beacon.getTrigger().getTargetTxs();
+            int leftover = 0;
+            for (int i = 0; i < shards.length; i++) {
+                for (int height = ordered[i] + 1; height < shards[i].height(); height++) {
+                    if (entries.size() >= targetEntries) {
+                        leftover++;
+                        continue;
+                    }
+                    Transaction entry = new Transaction(i + ":" + height + ":" + Shard.hash(shards[i].get(height)));
+                    entries.put(hash(entry.getData()), entry);
+                }
+            }
+            beacon.getTrigger().proposed(entries.size(), leftover, System.nanoTime());
+            return entries;
+        }
+    }
+
+    /**
+     * @return Shard blocks our chains hold which the beacon has not ordered yet
+     */
+    private int unorderedBlocks() {
+        synchronized (beacon) {
+            int unordered = 0;
+            for (int i = 0; i < shards.length; i++) {
+                unordered += shards[i].height() - 1 - ordered[i];
+            }
+            return unordered;
+        }
+    }
+
+    /**
+     * Sends a proposed block to every other member of the chain's quorum at once and
+     * commits it as soon as the threshold of members signed it
+     */
+    private void broadcastBlockForVoting(Shard shard, Block block) {
+        Quorum quorum = shard.quorumFor(block.getBlockId(), numNodes, quorumSize, startingPort, node.getAddress());
+        BlockContainer blockContainer = new BlockContainer(block);
+        blockContainer.addSignature(String.valueOf(node.getAddress().getPort()));
+        int threshold = (quorum.size() * voteThresholdPercent + 99) / 100;
+        BlockVotes votes = new BlockVotes(block, threshold, quorum.size(), blockContainer.getSignatures().get(0));
+        shard.getPipeline().add(votes);
+        if (votes.isAccepted()) {
+            voteRequests.execute(() -> commitAcceptedBlocks(shard));
+            return;
+        }
+        Message message = new Message(Message.Request.SHARD_VOTE_BLOCK, new ShardBlock(shard.getIndex(), blockContainer));
+        for (Address member : quorum.getMembers()) {
+            if (!node.getAddress().equals(member)) {
+                voteRequests.execute(() -> requestVote(shard, member, message, votes));
+            }
+        }
+    }
+
+    private void requestVote(Shard shard, Address member, Message message, BlockVotes votes) {
+        PeerConnection connection = null;
+        Message reply = null;
+        try {
+            connection = node.getConnectionPool().acquire(member);
+            connection.setTimeout(voteTimeout);
+            reply = connection.request(message);
+            connection.setTimeout(0);
+            node.getConnectionPool().release(connection);
+        } catch (IOException e) {
+            System.out.println("Received IO Exception from node " + member.getPort());
+            if (connection != null) node.getConnectionPool().discard(connection);
+        }
+        if (reply != null && reply.getRequest() == Message.Request.BLOCK_VOTE) {
+            if (votes.add((String) reply.getMetadata())) {
+                commitAcceptedBlocks(shard);
+            }
+        } else if (votes.refuse()) {
+            ArrayList<Block> dropped;
+            synchronized (shard.getCommitLock()) {
+                dropped = shard.getPipeline().abandon(votes);
+                shard.abandoned(dropped);
+            }
+            System.out.println("Node " + node.getAddress().getPort() + ": Shard " + shard.getIndex() + " block "
+                    + votes.getBlock().getBlockId() + " was refused by the quorum");
+        }
+    }
+
+    /**
+     * Commits the accepted blocks at the head of a chain's pipeline in height order and
+     * floods them to our peers. A block which ends a quorum window also goes straight to
+     * the next window's quorum, so that its proposer can start
+     */
+    private void commitAcceptedBlocks(Shard shard) {
+        synchronized (shard.getCommitLock()) {
+            for (BlockVotes votes : shard.getPipeline().pollAccepted()) {
+                Block block = votes.getBlock();
+                BlockContainer blockContainer = new BlockContainer(block);
+                for (String signature : votes.getSignatures()) {
+                    blockContainer.addSignature(signature);
+                }
+                ShardBlock shardBlock = new ShardBlock(shard.getIndex(), blockContainer);
+                ArrayList<Address> recipients = node.copyLocalPeers();
+                Quorum next = shard.quorumFor(block.getBlockId() + 1, numNodes, quorumSize, startingPort, node.getAddress());
+                if (block.getBlockId() % shard.getPipeline().getDepth() == 0 && next != null) {
+                    for (Address member : next.getMembers()) {
+                        if (!node.getAddress().equals(member) && !recipients.contains(member)) {
+                            recipients.add(member);
+                        }
+                    }
+                }
+                addBlocks(shard, shard.append(block, appended -> applyBeaconBlock(shard, appended)));
+                shard.getPipeline().release(block);
+                relay(shardBlock, recipients);
+            }
+        }
+        scheduleProposals(shard);
+        if (!shard.isBeacon() && shouldPropose(beacon)) {
+            scheduleProposals(beacon);
+        }
+    }
+
+    /**
+     * Signs a block broadcast by the proposer of a chain if it extends our copy of the chain,
+     * or the block we signed last while that one is in flight. A shard block must only hold
+     * keys of its shard, a beacon block must carry on each shard from the beacon's last entry
+     * @return BLOCK_VOTE carrying our signature, otherwise PING
+     */
+    public Message voteOnBlock(ShardBlock shardBlock) {
+        Shard shard = getShard(shardBlock.getShard());
+        Block block = shardBlock.getBlock();
+        if (shard == null) {
+            return new Message(Message.Request.PING);
+        }
+        if (!shard.isBeacon()) {
+            for (Hash256 key : block.getTxList().keySet()) {
+                if (shardOf(key, shards.length) != shard.getIndex()) {
+                    return new Message(Message.Request.PING);
+                }
+            }
+        }
+        /* The check of a beacon block runs locked by the beacon chain, as the ordered heights are */
+        boolean signed = shard.vote(block, (parent, proposed) -> !shard.isBeacon() || ordersNext(parent, proposed));
+        return signed ? new Message(Message.Request.BLOCK_VOTE, String.valueOf(node.getAddress().getPort()))
+                : new Message(Message.Request.PING);
+    }
+
+    /**
+     * Adds a committed block relayed by a peer, along with any held blocks it unblocks,
+     * and floods those on to our peers
+     * @return PING
+     */
+    public Message receiveBlock(ShardBlock shardBlock) {
+        Shard shard = getShard(shardBlock.getShard());
+        if (shard == null) {
+            return new Message(Message.Request.PING);
+        }
+        ArrayList<Block> appended;
+        synchronized (shard.getCommitLock()) {
+            appended = shard.append(shardBlock.getBlock(), block -> applyBeaconBlock(shard, block));
+            addBlocks(shard, appended);
+        }
+        if (appended.isEmpty()) {
+            return new Message(Message.Request.PING);
+        }
+        ArrayList<Address> peers = node.copyLocalPeers();
+        for (Block block : appended) {
+            relay(block == shardBlock.getBlock() ? shardBlock
+                    : new ShardBlock(shard.getIndex(), new BlockContainer(block)), peers);
+        }
+        scheduleProposals(shard);
+        if (!shard.isBeacon() && shouldPropose(beacon)) {
+            scheduleProposals(beacon);
+        }
+        return new Message(Message.Request.PING);
+    }
+
+    /**
+     * Drops the transactions of newly appended shard blocks from the mempool
+     */
+    private void addBlocks(Shard shard, ArrayList<Block> appended) {
+        for (Block block : appended) {
+            System.out.println("Node " + node.getAddress().getPort() + ": " + (shard.isBeacon() ? "Beacon" : "Shard "
+                    + shard.getIndex()) + " added block " + block.getBlockId());
+            if (!shard.isBeacon()) {
+                node.removeCommitted(block);
+            }
+        }
+    }
+
+    private void relay(ShardBlock shardBlock, ArrayList<Address> recipients) {
+        Message message = new Message(Message.Request.SHARD_ADD_BLOCK, shardBlock);
+        blockRelay.execute(() -> {
+            for (Address address : recipients) {
+                node.sendTwoWayMessage(address, message);
+            }
+        });
+    }
+
+    /**
+     * Moves each shard's ordered height on past the entries of an appended beacon block.
+     * Called with the beacon chain locked
+     */
+    private void applyBeaconBlock(Shard shard, Block block) {
+        if (!shard.isBeacon()) {
+            return;
+        }
+        ArrayList<int[]> entries = parseEntries(block);
+        synchronized (beacon) {
+            for (int[] entry : entries == null ? new ArrayList<int[]>() : entries) {
+                ordered[entry[0]] = Math.max(ordered[entry[0]], entry[1]);
+            }
+        }
+    }
+
+    /**
+     * Checks a proposed beacon block against its parent: every shard's heights must carry on
+     * without gaps from the last the beacon ordered up to and including the parent, and match
+     * the hash of the shard block we hold at that height, if we hold it yet
+     */
+    private boolean ordersNext(Block parent, Block proposed) {
+        int[] next = ordered.clone();
+        ArrayList<int[]> parentEntries = parseEntries(parent);
+        ArrayList<int[]> entries = parseEntries(proposed);
+        if (parentEntries == null || entries == null) {
+            return false;
+        }
+        if (parent != beacon.tip()) {
+            for (int[] entry : parentEntries) {
+                next[entry[0]] = Math.max(next[entry[0]], entry[1]);
+            }
+        }
+        entries.sort((a, b) -> a[0] != b[0] ? Integer.compare(a[0], b[0]) : Integer.compare(a[1], b[1]));
+        for (int[] entry : entries) {
+            if (entry[1] != next[entry[0]] + 1) {
+                return false;
+            }
+            next[entry[0]] = entry[1];
+        }
+        for (Transaction entry : proposed.getTxList().values()) {
+            String[] fields = entry.getData().split(":");
+            Block held = shards[Integer.parseInt(fields[0])].get(Integer.parseInt(fields[1]));
+            if (held != null && !Shard.hash(held).toHex().equals(fields[2])) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return The shard and height of each entry of a beacon block, or null if one is malformed
+     */
+    private ArrayList<int[]> parseEntries(Block block) {
+        ArrayList<int[]> entries = new ArrayList<>();
+        for (Transaction entry : block.getTxList().values()) {
+            String[] fields = entry.getData().split(":");
+            try {
+                int shard = Integer.parseInt(fields[0]);
+                if (fields.length != 3 || shard < 0 || shard >= shards.length) {
+                    return null;
+                }
+                entries.add(new int[]{shard, Integer.parseInt(fields[1])});
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+        return entries;
+    }
+
+    /**
+     * Adds the shards' counters to QUERY_STATS
+     */
+    public void addStats(LinkedHashMap<String, Long> stats) {
+        long committed = 0, heights = 0;
+        for (Shard shard : shards) {
+            committed += shard.getPipeline().getCommitted();
+            heights += shard.height() - 1;
+        }
+        stats.put("shards", (long) shards.length);
+        stats.put("shardBlocksCommitted", committed);
+        stats.put("shardBlocks", heights);
+        stats.put("beaconHeight", (long) beacon.height() - 1);
+        stats.put("shardBlocksOrdered", heights - unorderedBlocks());
+    }
+}
@@ -0,0 +1,333 @@
+package node;
+
+import node.blockchain.Block;
+import node.blockchain.Snapshot;
+import node.blockchain.SnapshotChunk;
+import node.blockchain.SnapshotManifest;
+import node.blockchain.Transaction;
+import node.communication.Address;
+import node.communication.BinaryMessageCodec;
+import node.communication.Message;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static node.communication.utils.Hashing.getBlockHash;
+import static node.communication.utils.Utils.daemonThreads;
+import static node.communication.utils.Utils.getIntProperty;
+
+/**
+ * Brings a node which fell behind, or joined late, up to the chain's tip. Every
+ * SNAPSHOT_INTERVAL_BLOCKS committed blocks each node snapshots the tip, the blocks
+ * choosing the coming quorums and its mempool, keeping it in memory and on disk.
+ *
+ * A node which sees a block more than a snapshot interval ahead of its tip asks
+ * SNAPSHOT_PEERS peers for their latest snapshot's manifest. The manifests are the peers'
+ * signatures of the chain section, and once SNAPSHOT_SIGNATURES of them agree on the
+ * newest height, its chain section is fetched from all of them in parallel, in chunks of
+ * SNAPSHOT_CHUNK_BYTES, and checked against the agreed digest and tip. The mempool section
+ * of one signer follows. The node restarts its chain from the snapshot and then
+ * fetches the blocks committed since, one height at a time, as it does for any smaller gap.
+ * So a joining node reads a snapshot interval of blocks at most, whatever the chain's length.
+ *
+ * Snapshots are taken on the node's scheduler. Catching up runs on threads started for
+ * it, which also fetch the chunks, and which stop once the node is caught up.
+ */
+public class StateSync {
+    private final Node node;
+    private final BinaryMessageCodec codec;
+    private final Path file;
+    private final int interval, peers, signatures, chunkBytes;
+    private final ScheduledExecutorService scheduler;
+    private final AtomicBoolean syncing;
+    private volatile Snapshot snapshot, previous;
+    private volatile long installed, replayed;
+
+    /**
+     * @param file Where the latest snapshot is kept across restarts
+     * @param config Loaded config.properties, settings missing from it use their defaults
+     * @param scheduler Takes the snapshots, shared with the node's other timers
+     */
+    StateSync(Node node, Path file, Properties config, ScheduledExecutorService scheduler) {
+        this.node = node;
+        this.codec = new BinaryMessageCodec();
+        this.file = file;
+        this.interval = Math.max(1, getIntProperty(config, "SNAPSHOT_INTERVAL_BLOCKS", 100));
+        this.peers = Math.max(1, getIntProperty(config, "SNAPSHOT_PEERS", 4));
+        this.signatures = Math.max(1, getIntProperty(config, "SNAPSHOT_SIGNATURES", 2));
+        this.chunkBytes = Math.max(1024, getIntProperty(config, "SNAPSHOT_CHUNK_BYTES", 65536));
+        this.scheduler = scheduler;
+        this.syncing = new AtomicBoolean();
+        try {
+            this.snapshot = Snapshot.read(file);
+        } catch (IOException e) {
+            System.out.println("Node " + node.getAddress().getPort() + ": Unreadable snapshot " + file);
+        }
+    }
+
+    /**
+     * Snapshots the chain in the background when a committed block ends an interval
+     */
+    void committed(Block block) {
+        int height = block.getBlockId();
+        if (height > 0 && height % interval == 0) {
+            scheduler.execute(() -> take(height));
+        }
+    }
+
+    private synchronized void take(int height) {
+        List<Block> blocks = node.getSnapshotBlocks(height);
+        if (blocks == null) {
+            return;
+        }
+        Snapshot taken = Snapshot.of(blocks, node.copyMempoolTransactions(), codec);
+        try {
+            taken.write(file);
+        } catch (IOException e) {
+            System.out.println("Node " + node.getAddress().getPort() + ": Could not write snapshot: " + e);
+        }
+        previous = snapshot;
+        snapshot = taken;
+    }
+
+    /**
+     * @return The manifest of our latest snapshot, or PING if we have none
+     */
+    public Message getManifest() {
+        Snapshot latest = snapshot;
+        return latest == null ? new Message(Message.Request.PING)
+                : new Message(latest.manifest(String.valueOf(node.getAddress().getPort())));
+    }
+
+    /**
+     * @return The chunk asked for with its data, or PING if we no longer hold that snapshot
+     */
+    public Message getChunk(SnapshotChunk request) {
+        for (Snapshot held : new Snapshot[]{snapshot, previous}) {
+            if (held != null && held.getHeight() == request.getHeight()) {
+                byte[] data = held.read(request.getSection(), request.getOffset(), request.getLength());
+                if (data != null) {
+                    return new Message(new SnapshotChunk(request.getHeight(), request.getSection(),
+                            request.getOffset(), data.length, data));
+                }
+            }
+        }
+        return new Message(Message.Request.PING);
+    }
+
+    /**
+     * Starts catching up in the background, unless already doing so, after seeing a block
+     * further ahead than the next
+     * @param height Height of that block
+     */
+    void behind(int height) {
+        if (height > node.getChainHeight()) {
+            start(height - node.getChainHeight() >= interval);
+        }
+    }
+
+    /**
+     * Asks our peers whether we are behind, as after starting up, when no block may come
+     * along to show it for a while
+     */
+    void checkPeers() {
+        start(true);
+    }
+
+    /**
+     * @param snapshotFirst True to look for a snapshot ahead of us before fetching blocks
+     */
+    private void start(boolean snapshotFirst) {
+        if (syncing.compareAndSet(false, true)) {
+            /* One thread catches up while the others fetch manifests and chunks */
+            ExecutorService downloads = Executors.newFixedThreadPool(peers + 1,
+                    daemonThreads("node-" + node.getAddress().getPort() + "-sync"));
+            downloads.execute(() -> {
+                try {
+                    if (snapshotFirst) {
+                        fetchSnapshot(downloads);
+                    }
+                    replayBlocks();
+                } finally {
+                    syncing.set(false);
+                    downloads.shutdown();
+                }
+            });
+        }
+    }
+
+    /**
+     * Finds the newest snapshot enough peers sign, downloads and checks it, and restarts
+     * our chain from it
+     * @param downloads Fetches the manifests and chunks in parallel
+     * @return True if a snapshot was installed
+     */
+    private boolean fetchSnapshot(ExecutorService downloads) {
+        ArrayList<Address> asked = node.copyLocalPeers();
+        Collections.shuffle(asked);
+        asked = new ArrayList<>(asked.subList(0, Math.min(peers, asked.size())));
+        ArrayList<Future<Message>> replies = new ArrayList<>();
+        for (Address peer : asked) {
+            replies.add(downloads.submit(() -> node.sendTwoWayMessage(peer, new Message(Message.Request.SNAPSHOT_MANIFEST))));
+        }
+        HashMap<String, ArrayList<Address>> signers = new HashMap<>();
+        HashMap<Address, SnapshotManifest> manifests = new HashMap<>();
+        for (int i = 0; i < asked.size(); i++) {
+            Message reply = (Message) await(replies.get(i));
+            if (reply != null && reply.getMetadata() instanceof SnapshotManifest) {
+                SnapshotManifest manifest = (SnapshotManifest) reply.getMetadata();
+                manifests.put(asked.get(i), manifest);
+                signers.computeIfAbsent(manifest.chainId(), id -> new ArrayList<>()).add(asked.get(i));
+            }
+        }
+        SnapshotManifest chosen = null;
+        ArrayList<Address> sources = null;
+        for (ArrayList<Address> group : signers.values()) {
+            SnapshotManifest manifest = manifests.get(group.get(0));
+            if (group.size() >= signatures && manifest.getHeight() >= node.getChainHeight()
+                    && (chosen == null || manifest.getHeight() > chosen.getHeight())) {
+                chosen = manifest;
+                sources = group;
+            }
+        }
+        if (chosen == null) {
+            return false;
+        }
+        byte[] chain = download(downloads, sources, chosen.getHeight(), Snapshot.CHAIN, chosen.getChainBytes());
+        if (chain == null || !Snapshot.digest(chain).equals(chosen.getChainDigest())) {
+            return false;
+        }
+        /* Each signer holds its own mempool, so it is fetched from one of them and checked against its manifest */
+        SnapshotManifest mempoolManifest = manifests.get(sources.get(0));
+        byte[] mempool = download(downloads, sources.subList(0, 1), mempoolManifest.getHeight(),
+                Snapshot.MEMPOOL, mempoolManifest.getMempoolBytes());
+        List<Block> blocks;
+        List<Transaction> transactions = new ArrayList<>();
+        try {
+            blocks = Snapshot.decodeChain(chain, codec);
+            if (mempool != null && Snapshot.digest(mempool).equals(mempoolManifest.getMempoolDigest())) {
+                transactions = Snapshot.decodeMempool(mempool);
+            }
+        } catch (IOException | RuntimeException e) {
+            return false;
+        }
+        if (!linked(blocks, chosen)) {
+            return false;
+        }
+        ArrayList<String> signedBy = new ArrayList<>();
+        for (Address source : sources) {
+            signedBy.add(manifests.get(source).getSignature());
+        }
+        node.installSnapshot(blocks, transactions);
+        installed++;
+        System.out.println("Node " + node.getAddress().getPort() + ": Installed snapshot at height " + chosen.getHeight()
+                + " signed by " + signedBy);
+        return true;
+    }
+
+    /**
+     * Checks the blocks follow one another up to the manifest's tip
+     */
+    private static boolean linked(List<Block> blocks, SnapshotManifest manifest) {
+        if (blocks.isEmpty()) {
+            return false;
+        }
+        for (int i = 1; i < blocks.size(); i++) {
+            if (blocks.get(i).getBlockId() != blocks.get(i - 1).getBlockId() + 1
+                    || !getBlockHash(blocks.get(i - 1), 0).equals(blocks.get(i).getPrevBlockHash())) {
+                return false;
+            }
+        }
+        Block tip = blocks.get(blocks.size() - 1);
+        return tip.getBlockId() == manifest.getHeight() && getBlockHash(tip, 0).toHex().equals(manifest.getTipHash());
+    }
+
+    /**
+     * Fetches a section of a snapshot, its chunks spread over the sources and fetched in
+     * parallel, each chunk tried at the next source if one fails
+     * @return The section, or null if some chunk could not be fetched
+     */
+    private byte[] download(ExecutorService downloads, List<Address> sources, int height, int section, int length) {
+        int chunks = (length + chunkBytes - 1) / chunkBytes;
+        ArrayList<Future<byte[]>> fetched = new ArrayList<>();
+        for (int i = 0; i < chunks; i++) {
+            int chunk = i;
+            fetched.add(downloads.submit(() -> {
+                for (int attempt = 0; attempt < sources.size(); attempt++) {
+                    Address source = sources.get((chunk + attempt) % sources.size());
+                    Message reply = node.sendTwoWayMessage(source, new Message(Message.Request.SNAPSHOT_CHUNK,
+                            new SnapshotChunk(height, section, chunk * chunkBytes, chunkBytes, null)));
+                    if (reply != null && reply.getMetadata() instanceof SnapshotChunk) {
+                        return ((SnapshotChunk) reply.getMetadata()).getData();
+                    }
+                }
+                return null;
+            }));
+        }
+        byte[] bytes = new byte[length];
+        int position = 0;
+        for (Future<byte[]> chunk : fetched) {
+            Object data = await(chunk);
+            if (!(data instanceof byte[]) || position + ((byte[]) data).length > length) {
+                return null;
+            }
+            System.arraycopy(data, 0, bytes, position, ((byte[]) data).length);
+            position += ((byte[]) data).length;
+        }
+        return position == length ? bytes : null;
+    }
+
+    /**
+     * Fetches and adds the blocks after our tip until no peer has the next one
+     */
+    private void replayBlocks() {
+        ArrayList<Address> sources = node.copyLocalPeers();
+        Collections.shuffle(sources);
+        int failures = 0, source = 0;
+        while (!sources.isEmpty() && failures < sources.size()) {
+            int height = node.getChainHeight();
+            Message reply = node.sendTwoWayMessage(sources.get(source),
+                    new Message(Message.Request.QUERY_BLOCK, height));
+            if (reply != null && reply.getMetadata() instanceof Block && node.appendBlock((Block) reply.getMetadata())) {
+                replayed++;
+                failures = 0;
+            } else if (node.getChainHeight() == height) {
+                failures++;
+                source = (source + 1) % sources.size();
+            }
+        }
+    }
+
+    private static Object await(Future<?> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            /* Counted as no answer */
+        }
+        return null;
+    }
+
+    /**
+     * Adds our counters to QUERY_STATS
+     */
+    public void addStats(LinkedHashMap<String, Long> stats) {
+        Snapshot latest = snapshot;
+        stats.put("snapshotHeight", latest == null ? -1 : (long) latest.getHeight());
+        stats.put("snapshotsInstalled", installed);
+        stats.put("blocksReplayed", replayed);
+    }
+}
@@ -0,0 +1,85 @@
+package node;
+
+import node.communication.Address;
+import node.communication.Message;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Accumulates gossip per peer and sends each peer's backlog as a single message once it
+ * holds maxBatchSize items or its oldest item has waited maxDelayMillis, whichever comes
+ * first. Items are either whole transactions (TX_BATCH) or their keys (INV).
+ */
+public class TransactionBatcher<T> {
+    private final Node node;
+    private final int maxBatchSize;
+    private final long maxDelayMillis;
+    private final Function<ArrayList<T>, Message> toMessage;
+    private final HashMap<Address, ArrayList<T>> pending;
+    private final ScheduledExecutorService scheduler;
+
+    /**
+     * @param maxBatchSize   Items which cause a peer's batch to be sent immediately
+     * @param maxDelayMillis Longest an item may wait for its batch to fill
+     * @param toMessage      Builds the message carrying one batch
+     * @param scheduler      Sends the batches which waited maxDelayMillis, shared with the node's other timers
+     */
+    TransactionBatcher(Node node, int maxBatchSize, long maxDelayMillis, Function<ArrayList<T>, Message> toMessage,
+                       ScheduledExecutorService scheduler) {
+        this.node = node;
+        this.maxBatchSize = maxBatchSize;
+        this.maxDelayMillis = maxDelayMillis;
+        this.toMessage = toMessage;
+        this.pending = new HashMap<>();
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Queues an item for each of the given peers
+     * @param peers Peers to gossip to
+     * @param item Transaction or key to gossip
+     */
+    public void add(List<Address> peers, T item) {
+        HashMap<Address, ArrayList<T>> full = new HashMap<>();
+        synchronized (pending) {
+            for (Address peer : peers) {
+                ArrayList<T> batch = pending.computeIfAbsent(peer, k -> new ArrayList<>());
+                if (batch.isEmpty()) {
+                    scheduler.schedule(() -> flush(peer), maxDelayMillis, TimeUnit.MILLISECONDS);
+                }
+                batch.add(item);
+                if (batch.size() >= maxBatchSize) {
+                    full.put(peer, pending.remove(peer));
+                }
+            }
+        }
+        /* Send outside the lock so a slow peer does not hold up everyone queueing */
+        for (Map.Entry<Address, ArrayList<T>> entry : full.entrySet()) {
+            send(entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Sends whatever is queued for a peer. A timer may find the batch it was scheduled
+     * for already sent by size, in which case it sends a younger batch early
+     */
+    private void flush(Address peer) {
+        ArrayList<T> batch;
+        synchronized (pending) {
+            batch = pending.remove(peer);
+        }
+        if (batch != null && !batch.isEmpty()) {
+            send(peer, batch);
+        }
+    }
+
+    private void send(Address peer, ArrayList<T> batch) {
+        node.sendOneWayMessage(peer, toMessage.apply(batch));
+    }
+}
@@ -1,30 +1,35 @@
 package node.blockchain;
 
+import node.communication.utils.Hash256;
+
 import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.HashMap;
 
 public class Block implements Serializable {
-    private final HashMap<String, Transaction> txList;
+    private final HashMap<Hash256, Transaction> txList;
 
-    public String getPrevBlockHash() {
+    /**
+     * @return Hash of the parent block, or null for the genesis block
+     */
+    public Hash256 getPrevBlockHash() {
         return prevBlockHash;
     }
 
-    private final String prevBlockHash;
+    private final Hash256 prevBlockHash;
 
     public int getBlockId() {
         return blockId;
     }
 
-    public HashMap<String, Transaction> getTxList() {
+    public HashMap<Hash256, Transaction> getTxList() {
         return txList;
     }
 
 
     private final int blockId;
 
-    public Block(HashMap<String, Transaction> txList, String prevBlockHash, int blockId){
+    public Block(HashMap<Hash256, Transaction> txList, Hash256 prevBlockHash, int blockId){
         this.txList = txList;
         this.prevBlockHash = prevBlockHash;
         this.blockId = blockId;
@@ -1,24 +1,60 @@
 package node.blockchain;
 
+import node.communication.utils.Hash256;
+
 import java.io.Serializable;
 import java.util.ArrayList;
-import java.util.Set;
+import java.util.List;
 
+/**
+ * Compact description of a block used to relay it. Instead of transactions it lists
+ * 6 byte short ids of their keys, in sorted key order, which receivers match against
+ * their own mempool. The block hash lets a receiver verify what it rebuilt.
+ */
 public class BlockSkeleton implements Serializable{
-    private final Set<String> keys;
+    public static final int SHORT_ID_BYTES = 6;
+
+    private final long[] shortIds;
     private final int blockId;
+    private final Hash256 prevBlockHash;
+    private final Hash256 blockHash;
 
     private ArrayList<String> signatures;
 
-    public BlockSkeleton (int blockId, Set<String> keys , ArrayList<String> signatures){
-        this.keys = keys;
+    /**
+     * @param sortedKeys Keys of the block's transactions, sorted
+     */
+    public BlockSkeleton (int blockId, Hash256 prevBlockHash, Hash256 blockHash, List<Hash256> sortedKeys, ArrayList<String> signatures){
+        this(blockId, prevBlockHash, blockHash, new long[sortedKeys.size()], signatures);
+        for(int i = 0; i < sortedKeys.size(); i++){
+            shortIds[i] = shortId(sortedKeys.get(i));
+        }
+    }
+
+    public BlockSkeleton (int blockId, Hash256 prevBlockHash, Hash256 blockHash, long[] shortIds, ArrayList<String> signatures){
+        this.shortIds = shortIds;
         this.blockId = blockId;
+        this.prevBlockHash = prevBlockHash;
+        this.blockHash = blockHash;
         this.signatures = signatures;
     }
 
+    /**
+     * Short id of a transaction key, its leading SHORT_ID_BYTES bytes
+     */
+    public static long shortId(Hash256 key){
+        return key.leadingBytes(SHORT_ID_BYTES);
+    }
+
     public ArrayList<String> getSignatures() {
         return signatures;
     }
 
     public int getBlockId(){return blockId;}
+
+    public Hash256 getPrevBlockHash(){return prevBlockHash;}
+
+    public Hash256 getBlockHash(){return blockHash;}
+
+    public long[] getShortIds(){return shortIds;}
 }
@@ -0,0 +1,555 @@
+package node.blockchain;
+
+import node.communication.BinaryMessageCodec;
+import node.communication.utils.Hash256;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import static node.communication.utils.Hashing.getBlockHash;
+
+/**
+ * Durable chain of blocks, indexed by height. Blocks are appended in the binary codec's
+ * block layout to segment files of up to segmentBytes, each named after the height of its
+ * first block, and read back through memory maps of the segments. Only the newest
+ * cacheSize blocks are kept on the heap.
+ *
+ * Every record is its length and CRC32 followed by the block, so a record torn by a crash
+ * is detected and cut off when the store is reopened. Reopening only scans the last
+ * segment; where the blocks of an older segment start is worked out the first time one
+ * of them is read.
+ *
+ * Appends are written straight away and forced to disk once fsyncBlocks of them are
+ * pending, or fsyncIntervalMillis after the first pending one. A killed process loses
+ * nothing written, as the operating system still holds it; the batching only widens the
+ * window lost to a power failure.
+ *
+ * Three indexes are kept beside the segments and updated with each append: the offset of
+ * every height within its segment, so a block is read without scanning its segment, and
+ * hash tables from block hash to height and from transaction key to height and position
+ * in the block's sorted keys. After a restart they catch up with the blocks they missed,
+ * and an index which is lost or damaged is rebuilt from the segments.
+ *
+ * A node which joined from a snapshot holds the chain only from the snapshot's blocks on,
+ * so the first segment then starts above height 0. Restarting the chain from a snapshot
+ * writes its blocks to a .tmp file, which is renamed to .restart once forced to disk, and
+ * only then are the old segments deleted. A crash before the rename leaves the old chain,
+ * and a crash after it is finished when the store is next opened.
+ */
+public class BlockStore {
+    private static final int HEADER_BYTES = 8;
+    private static final String PREFIX = "segment-", SUFFIX = ".log", WRITING = ".tmp", RESTART = ".restart";
+    private static final int HEIGHT_ENTRY_BYTES = 8;
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final int fsyncBlocks;
+    private final int cacheSize;
+    private final BinaryMessageCodec codec;
+    private final TreeMap<Integer, Segment> segments;
+    private final Block[] cache;
+    private final ScheduledExecutorService flusher;
+    private FileChannel heights;
+    private HashIndex blockHashes, txKeys;
+    private final long fsyncIntervalMillis;
+    private int size, unsynced;
+    private boolean flushScheduled, restarted;
+
+    /**
+     * Opens the store in a directory, creating it if needed
+     * @param segmentBytes Size past which a new segment is started
+     * @param fsyncBlocks Appends forced to disk together, 1 to force every append
+     * @param fsyncIntervalMillis Longest an append waits to be forced to disk
+     * @param cacheSize Newest blocks kept on the heap
+     * @param flusher Runs the forces delayed by fsyncIntervalMillis, shared with the node's other timers
+     */
+    public BlockStore(Path directory, long segmentBytes, int fsyncBlocks, long fsyncIntervalMillis, int cacheSize,
+                      ScheduledExecutorService flusher) throws IOException {
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.fsyncBlocks = Math.max(1, fsyncBlocks);
+        this.fsyncIntervalMillis = fsyncIntervalMillis;
+        this.cacheSize = Math.max(1, cacheSize);
+        this.cache = new Block[this.cacheSize];
+        this.codec = new BinaryMessageCodec();
+        this.segments = new TreeMap<>();
+        this.flusher = flusher;
+        Files.createDirectories(directory);
+        open();
+        openIndexes();
+    }
+
+    /**
+     * Finds the segments, finishing a restart a crash interrupted, and recovers the last
+     * one, dropping a torn record at its end
+     */
+    private void open() throws IOException {
+        Path restart = null;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, PREFIX + "*")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(RESTART)) {
+                    restart = file;
+                } else if (name.endsWith(WRITING)) {
+                    /* A restart which never completed */
+                    Files.delete(file);
+                } else if (name.endsWith(SUFFIX)) {
+                    int firstHeight = firstHeight(name);
+                    segments.put(firstHeight, new Segment(file, firstHeight));
+                }
+            }
+        }
+        if (restart != null) {
+            int first = firstHeight(restart.getFileName().toString().replace(RESTART, ""));
+            finishRestart(restart, first);
+            segments.put(first, new Segment(segmentFile(first), first));
+            restarted = true;
+        }
+        while (!segments.isEmpty()) {
+            Segment last = segments.lastEntry().getValue();
+            last.scan(true);
+            if (last.count() > 0 || segments.size() == 1) {
+                size = last.firstHeight + last.count();
+                for (int i = Math.max(0, last.count() - cacheSize); i < last.count(); i++) {
+                    cache[(last.firstHeight + i) % cacheSize] = last.read(i);
+                }
+                return;
+            }
+            /* A crash right after starting a segment leaves it empty */
+            segments.pollLastEntry();
+            last.delete();
+        }
+    }
+
+    /**
+     * Records where the recovered blocks start and brings the hash indexes up to the tip
+     */
+    private void openIndexes() throws IOException {
+        heights = FileChannel.open(directory.resolve("heights.idx"),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        if (restarted) {
+            heights.truncate(0);
+        }
+        if (!segments.isEmpty()) {
+            Segment last = segments.lastEntry().getValue();
+            for (int i = 0; i < last.count(); i++) {
+                writeHeight(last.firstHeight + i, last.offsets[i]);
+            }
+        }
+        heights.truncate((long) size * HEIGHT_ENTRY_BYTES);
+        blockHashes = new HashIndex(directory.resolve("block-hashes.idx"));
+        txKeys = new HashIndex(directory.resolve("tx-keys.idx"));
+        int indexed = Math.min(blockHashes.getHeight(), txKeys.getHeight());
+        if (indexed > size || restarted) {
+            /* The indexes saw blocks the segments lost to a power failure, or the chain a restart replaced */
+            blockHashes.clear();
+            txKeys.clear();
+            indexed = 0;
+        }
+        for (int height = Math.max(indexed, base()); height < size; height++) {
+            indexBlock(height, get(height));
+        }
+    }
+
+    /**
+     * Indexes every block again from the segments
+     */
+    public synchronized void rebuildIndexes() {
+        try {
+            heights.truncate(0);
+            for (Segment segment : segments.values()) {
+                segment.scan(false);
+                for (int i = 0; i < segment.count(); i++) {
+                    writeHeight(segment.firstHeight + i, segment.offsets[i]);
+                }
+            }
+            blockHashes.clear();
+            txKeys.clear();
+            for (int height = base(); height < size; height++) {
+                indexBlock(height, get(height));
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void indexBlock(int height, Block block) throws IOException {
+        blockHashes.put(getBlockHash(block, 0), height);
+        Hash256[] sortedKeys = block.getTxList().keySet().toArray(new Hash256[0]);
+        Arrays.sort(sortedKeys);
+        for (int position = 0; position < sortedKeys.length; position++) {
+            txKeys.put(sortedKeys[position], ((long) height << 32) | position);
+        }
+        blockHashes.setHeight(height + 1);
+        txKeys.setHeight(height + 1);
+    }
+
+    private void writeHeight(int height, int offset) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(HEIGHT_ENTRY_BYTES);
+        /* Stored one up, so the zeros of a hole read as missing */
+        entry.putLong(offset + 1L).flip();
+        long position = (long) height * HEIGHT_ENTRY_BYTES;
+        while (entry.hasRemaining()) {
+            position += heights.write(entry, position);
+        }
+    }
+
+    /**
+     * @return Offset of the height's block in its segment, or -1 if not recorded
+     */
+    private int readHeight(int height) throws IOException {
+        ByteBuffer entry = ByteBuffer.allocate(HEIGHT_ENTRY_BYTES);
+        long position = (long) height * HEIGHT_ENTRY_BYTES;
+        while (entry.hasRemaining()) {
+            int read = heights.read(entry, position + entry.position());
+            if (read < 0) {
+                return -1;
+            }
+        }
+        return (int) (entry.getLong(0) - 1);
+    }
+
+    /**
+     * @return Height of the block with the hash, or -1 if it is not in the chain
+     */
+    public synchronized int findBlock(Hash256 blockHash) {
+        long height = blockHashes.get(blockHash);
+        return height < size ? (int) height : -1;
+    }
+
+    /**
+     * @return The height of the block holding the transaction and its position among the
+     *         block's sorted keys, or null if no block holds it
+     */
+    public synchronized int[] findTransaction(Hash256 key) {
+        long location = txKeys.get(key);
+        if (location < 0 || (location >>> 32) >= size) {
+            return null;
+        }
+        return new int[]{(int) (location >>> 32), (int) location};
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * @return Height of the first block held, above 0 once the chain was restarted from a snapshot
+     */
+    public synchronized int base() {
+        return segments.isEmpty() ? size : segments.firstKey();
+    }
+
+    /**
+     * Replaces the whole chain with consecutive blocks starting at any height, the tip of a
+     * snapshot. The blocks are written to a new segment, which is in place before the old
+     * ones are deleted
+     */
+    public synchronized void restart(List<Block> blocks) {
+        int first = blocks.get(0).getBlockId();
+        Path file = segmentFile(first);
+        Path written = file.resolveSibling(file.getFileName() + WRITING);
+        Path complete = file.resolveSibling(file.getFileName() + RESTART);
+        try {
+            Files.deleteIfExists(written);
+            Segment segment = new Segment(written, first);
+            segment.scan(true);
+            for (Block block : blocks) {
+                segment.append(codec.encodeBlock(block));
+            }
+            segment.channel.force(true);
+            segment.channel.close();
+            Files.move(written, complete, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            finishRestart(complete, first);
+            segment = new Segment(file, first);
+            segment.scan(false);
+            segments.put(first, segment);
+            Arrays.fill(cache, null);
+            size = first + segment.count();
+            heights.truncate(0);
+            blockHashes.clear();
+            txKeys.clear();
+            for (int i = 0; i < segment.count(); i++) {
+                writeHeight(first + i, segment.offsets[i]);
+                cache[(first + i) % cacheSize] = blocks.get(i);
+                indexBlock(first + i, blocks.get(i));
+            }
+            forceAll(segment);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Deletes the old segments once a restart's segment is complete, and moves it into place
+     * @param complete The restart's segment, named .restart
+     */
+    private void finishRestart(Path complete, int first) throws IOException {
+        for (Segment old : segments.values()) {
+            old.delete();
+        }
+        segments.clear();
+        Files.move(complete, segmentFile(first), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static int firstHeight(String segmentName) {
+        return Integer.parseInt(segmentName.substring(PREFIX.length(), segmentName.length() - SUFFIX.length()));
+    }
+
+    private Path segmentFile(int firstHeight) {
+        return directory.resolve(String.format("%s%010d%s", PREFIX, firstHeight, SUFFIX));
+    }
+
+    /**
+     * @return The block at a height, from the heap if it is recent and otherwise from disk
+     */
+    public synchronized Block get(int height) {
+        if (height < base() || height >= size) {
+            throw new IndexOutOfBoundsException("Height " + height + " of " + base() + " to " + size);
+        }
+        Block cached = cache[height % cacheSize];
+        if (height >= size - cacheSize && cached != null && cached.getBlockId() == height) {
+            return cached;
+        }
+        Map.Entry<Integer, Segment> segment = segments.floorEntry(height);
+        try {
+            Segment found = segment.getValue();
+            if (found.count() < 0) {
+                int offset = readHeight(height);
+                Block block = offset >= 0 ? found.readAt(offset) : null;
+                if (block != null && block.getBlockId() == height) {
+                    return block;
+                }
+                /* Without a good index entry the segment is scanned, and its entries written */
+                found.scan(false);
+                for (int i = 0; i < found.count(); i++) {
+                    writeHeight(found.firstHeight + i, found.offsets[i]);
+                }
+            }
+            return found.read(height - found.firstHeight);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Appends the block at the next height
+     */
+    public synchronized void add(Block block) {
+        byte[] payload = codec.encodeBlock(block);
+        try {
+            Segment active = segments.isEmpty() ? null : segments.lastEntry().getValue();
+            if (active == null || (active.count() > 0 && active.length + HEADER_BYTES + payload.length > segmentBytes)) {
+                if (active != null) {
+                    forceAll(active);
+                }
+                active = new Segment(segmentFile(size), size);
+                active.scan(true);
+                segments.put(size, active);
+            }
+            writeHeight(size, active.append(payload));
+            indexBlock(size, block);
+            if (++unsynced >= fsyncBlocks) {
+                forceAll(active);
+            } else if (!flushScheduled) {
+                flushScheduled = true;
+                flusher.schedule(this::flush, fsyncIntervalMillis, TimeUnit.MILLISECONDS);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        cache[size % cacheSize] = block;
+        size++;
+    }
+
+    /**
+     * Forces the pending appends to disk
+     */
+    public synchronized void flush() {
+        flushScheduled = false;
+        if (unsynced == 0 || segments.isEmpty()) {
+            return;
+        }
+        try {
+            forceAll(segments.lastEntry().getValue());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Forces the pending appends to disk and closes the files. The store is unusable after
+     */
+    public synchronized void close() throws IOException {
+        flush();
+        for (Segment segment : segments.values()) {
+            if (segment.channel != null) {
+                segment.channel.close();
+            }
+        }
+        heights.close();
+        blockHashes.close();
+        txKeys.close();
+    }
+
+    private void forceAll(Segment active) throws IOException {
+        active.channel.force(false);
+        heights.force(false);
+        blockHashes.force();
+        txKeys.force();
+        unsynced = 0;
+    }
+
+    /**
+     * One segment file. Its map covers what was written when it was last mapped and is
+     * extended when a block past it is read
+     */
+    private final class Segment {
+        final Path file;
+        final int firstHeight;
+        FileChannel channel;
+        MappedByteBuffer map;
+        long length;
+        int[] offsets = new int[0];
+        int count = -1;
+
+        Segment(Path file, int firstHeight) {
+            this.file = file;
+            this.firstHeight = firstHeight;
+        }
+
+        int count() {
+            return count;
+        }
+
+        /**
+         * Finds where each record starts, unless already known
+         * @param truncate True to cut the file after the last whole record, when recovering
+         */
+        void scan(boolean truncate) throws IOException {
+            if (count >= 0) {
+                return;
+            }
+            if (channel == null) {
+                channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            }
+            long fileLength = channel.size();
+            mapTo(fileLength);
+            ArrayList<Integer> found = new ArrayList<>();
+            int position = 0;
+            CRC32 crc = new CRC32();
+            while (position + HEADER_BYTES <= fileLength) {
+                int recordLength = map.getInt(position);
+                int checksum = map.getInt(position + 4);
+                if (recordLength <= 0 || position + HEADER_BYTES + (long) recordLength > fileLength) {
+                    break;
+                }
+                ByteBuffer payload = map.duplicate();
+                payload.position(position + HEADER_BYTES).limit(position + HEADER_BYTES + recordLength);
+                crc.reset();
+                crc.update(payload);
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                found.add(position);
+                position += HEADER_BYTES + recordLength;
+            }
+            if (truncate && position < fileLength) {
+                channel.truncate(position);
+                channel.force(true);
+                mapTo(position);
+            }
+            length = position;
+            offsets = new int[Math.max(16, found.size() * 2)];
+            for (int i = 0; i < found.size(); i++) {
+                offsets[i] = found.get(i);
+            }
+            count = found.size();
+        }
+
+        Block read(int index) throws IOException {
+            return readAt(offsets[index]);
+        }
+
+        /**
+         * Reads the record at an offset, which need not have been scanned
+         * @return The block, or null if no whole record starts there
+         */
+        Block readAt(int offset) throws IOException {
+            if (channel == null) {
+                channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                mapTo(channel.size());
+            }
+            if (offset + HEADER_BYTES > map.capacity()) {
+                mapTo(channel.size());
+                if (offset + HEADER_BYTES > map.capacity()) {
+                    return null;
+                }
+            }
+            int recordLength = map.getInt(offset);
+            if (recordLength <= 0 || offset + HEADER_BYTES + (long) recordLength > map.capacity()) {
+                mapTo(channel.size());
+                if (recordLength <= 0 || offset + HEADER_BYTES + (long) recordLength > map.capacity()) {
+                    return null;
+                }
+            }
+            byte[] payload = new byte[recordLength];
+            ByteBuffer record = map.duplicate();
+            record.position(offset + HEADER_BYTES);
+            record.get(payload);
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            if ((int) crc.getValue() != map.getInt(offset + 4)) {
+                return null;
+            }
+            return codec.decodeBlock(payload, 0, recordLength);
+        }
+
+        /**
+         * @return Offset the record was written at
+         */
+        int append(byte[] payload) throws IOException {
+            CRC32 crc = new CRC32();
+            crc.update(payload);
+            ByteBuffer record = ByteBuffer.allocate(HEADER_BYTES + payload.length);
+            record.putInt(payload.length).putInt((int) crc.getValue()).put(payload).flip();
+            long position = length;
+            while (record.hasRemaining()) {
+                position += channel.write(record, position);
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, offsets.length * 2);
+            }
+            offsets[count++] = (int) length;
+            int offset = (int) length;
+            length = position;
+            return offset;
+        }
+
+        void delete() throws IOException {
+            if (channel != null) {
+                channel.close();
+            }
+            Files.delete(file);
+        }
+
+        private void mapTo(long mappedLength) throws IOException {
+            map = channel.map(FileChannel.MapMode.READ_ONLY, 0, mappedLength);
+        }
+    }
+}
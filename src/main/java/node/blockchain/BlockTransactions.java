@@ -0,0 +1,29 @@
+package node.blockchain;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * Transactions of a relayed block, identified by their position in its skeleton.
+ * A receiver missing some sends only the positions, the relaying node answers with
+ * the positions and the matching transactions.
+ */
+public class BlockTransactions implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int blockId;
+    private final ArrayList<Integer> indexes;
+    private final ArrayList<Transaction> transactions;
+
+    public BlockTransactions(int blockId, ArrayList<Integer> indexes, ArrayList<Transaction> transactions){
+        this.blockId = blockId;
+        this.indexes = indexes;
+        this.transactions = transactions;
+    }
+
+    public int getBlockId(){return blockId;}
+
+    public ArrayList<Integer> getIndexes(){return indexes;}
+
+    public ArrayList<Transaction> getTransactions(){return transactions;}
+}
@@ -0,0 +1,227 @@
+package node.blockchain;
+
+import node.communication.utils.Hash256;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * On-disk hash table from SHA-256 hashes to longs, memory mapped. Slots hold the 32 raw
+ * bytes of the hash and the value, and are found by linear probing from the hash's first
+ * bytes, so a lookup touches one or two pages however many entries there are. The table
+ * doubles into a new file once it is 70% full.
+ *
+ * A single map reaches 2 GB, so the slots are mapped in sections of 2^24, 640 MB each,
+ * and addressed by section and slot within it. Past MAX_CAPACITY slots the table stops
+ * doubling and fills up instead, and put() fails once a single empty slot is left.
+ *
+ * The header records how many blocks of the chain have been indexed, so after a restart
+ * only the blocks added since are indexed again. A file with a bad header is started over.
+ */
+public class HashIndex {
+    private static final int MAGIC = 0x48494458, HEADER_BYTES = 16, KEY_BYTES = 32, SLOT_BYTES = KEY_BYTES + 8;
+    private static final int INITIAL_CAPACITY = 1 << 12, MAX_CAPACITY = 1 << 30, SECTION_SHIFT = 24;
+
+    private final Path file;
+    private final int sectionShift, maxCapacity;
+    private FileChannel channel;
+    private MappedByteBuffer header;
+    private MappedByteBuffer[] sections;
+    private int capacity, count;
+
+    public HashIndex(Path file) throws IOException {
+        this(file, SECTION_SHIFT, MAX_CAPACITY);
+    }
+
+    /**
+     * @param sectionShift Log2 of the slots mapped together
+     * @param maxCapacity Slots past which the table no longer doubles, a power of two
+     */
+    HashIndex(Path file, int sectionShift, int maxCapacity) throws IOException {
+        this.file = file;
+        this.sectionShift = sectionShift;
+        this.maxCapacity = maxCapacity;
+        open();
+    }
+
+    private void open() throws IOException {
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        long length = channel.size();
+        if (length >= HEADER_BYTES) {
+            header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            capacity = header.getInt(4);
+            count = header.getInt(8);
+            if (header.getInt(0) == MAGIC && capacity > 0 && Integer.bitCount(capacity) == 1
+                    && length == HEADER_BYTES + (long) capacity * SLOT_BYTES && count >= 0 && count <= capacity) {
+                mapSections();
+                return;
+            }
+        }
+        create(Math.min(INITIAL_CAPACITY, maxCapacity));
+    }
+
+    /**
+     * Starts the file over, empty
+     */
+    private void create(int newCapacity) throws IOException {
+        channel.truncate(0);
+        capacity = newCapacity;
+        count = 0;
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        header.putInt(0, MAGIC).putInt(4, capacity).putInt(8, 0).putInt(12, 0);
+        /* Mapping past the end grows the file, with zeroed, so empty, slots */
+        mapSections();
+    }
+
+    private void mapSections() throws IOException {
+        int sectionSlots = 1 << sectionShift;
+        sections = new MappedByteBuffer[(int) (((long) capacity + sectionSlots - 1) >>> sectionShift)];
+        for (int i = 0; i < sections.length; i++) {
+            long first = (long) i << sectionShift;
+            long slots = Math.min(sectionSlots, capacity - first);
+            sections[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + first * SLOT_BYTES, slots * SLOT_BYTES);
+        }
+    }
+
+    /**
+     * @return Blocks of the chain indexed so far
+     */
+    public int getHeight() {
+        return header.getInt(12);
+    }
+
+    public void setHeight(int height) {
+        header.putInt(12, height);
+    }
+
+    /**
+     * @return The value stored for the hash, or -1
+     */
+    public long get(Hash256 key) {
+        int slot = find(key);
+        return isEmpty(slot) ? -1 : getLong(slot, KEY_BYTES);
+    }
+
+    /**
+     * Stores a value for the hash, replacing any stored before
+     * @throws IOException If the table is at its largest and full
+     */
+    public void put(Hash256 key, long value) throws IOException {
+        if ((count + 1) * 10L > capacity * 7L && capacity < maxCapacity) {
+            grow();
+        }
+        int slot = find(key);
+        if (isEmpty(slot)) {
+            /* One empty slot always stays, so probing for a missing key ends */
+            if (count + 1 >= capacity) {
+                throw new IOException("Index " + file + " is full at " + count + " entries");
+            }
+            writeKey(slot, key);
+            count++;
+            header.putInt(8, count);
+        }
+        putLong(slot, KEY_BYTES, value);
+    }
+
+    public void clear() throws IOException {
+        create(Math.min(INITIAL_CAPACITY, maxCapacity));
+    }
+
+    public void force() {
+        header.force();
+        for (MappedByteBuffer section : sections) {
+            section.force();
+        }
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * @return The slot holding the key, or else the empty slot where it would go
+     */
+    private int find(Hash256 key) {
+        int slot = (int) (key.getWord(0) & (capacity - 1));
+        while (true) {
+            if (isEmpty(slot)) {
+                return slot;
+            }
+            boolean match = true;
+            for (int i = 0; i < 4 && match; i++) {
+                match = getLong(slot, 8 * i) == key.getWord(i);
+            }
+            if (match) {
+                return slot;
+            }
+            slot = (slot + 1) & (capacity - 1);
+        }
+    }
+
+    /* No real hash is all zeros, so a zeroed key marks an empty slot */
+    private boolean isEmpty(int slot) {
+        for (int i = 0; i < KEY_BYTES; i += 8) {
+            if (getLong(slot, i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param field Offset within the slot
+     */
+    private long getLong(int slot, int field) {
+        return sections[slot >>> sectionShift].getLong(offsetInSection(slot) + field);
+    }
+
+    private void putLong(int slot, int field, long value) {
+        sections[slot >>> sectionShift].putLong(offsetInSection(slot) + field, value);
+    }
+
+    /* Below 2^24 slots of 40 bytes, so within an int */
+    private int offsetInSection(int slot) {
+        return (slot & ((1 << sectionShift) - 1)) * SLOT_BYTES;
+    }
+
+    /**
+     * Rehashes into a table twice the size, written beside this one and then moved over it
+     */
+    private void grow() throws IOException {
+        Path grown = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.deleteIfExists(grown);
+        HashIndex larger = new HashIndex(grown, sectionShift, maxCapacity);
+        larger.create(capacity * 2);
+        for (int slot = 0; slot < capacity; slot++) {
+            if (!isEmpty(slot)) {
+                Hash256 key = Hash256.of(getLong(slot, 0), getLong(slot, 8), getLong(slot, 16), getLong(slot, 24));
+                larger.putKey(key, getLong(slot, KEY_BYTES));
+            }
+        }
+        larger.setHeight(getHeight());
+        larger.force();
+        larger.channel.close();
+        channel.close();
+        Files.move(grown, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        open();
+    }
+
+    private void putKey(Hash256 key, long value) {
+        int slot = find(key);
+        writeKey(slot, key);
+        putLong(slot, KEY_BYTES, value);
+        count++;
+        header.putInt(8, count);
+    }
+
+    private void writeKey(int slot, Hash256 key) {
+        for (int i = 0; i < 4; i++) {
+            putLong(slot, 8 * i, key.getWord(i));
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package node.blockchain;
+
+import node.communication.utils.Hash256;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of the mempool, so a restarted node comes back with the transactions it
+ * held instead of learning them all again through gossip.
+ *
+ * Each record is [int length][int crc32][payload], the payload an added transaction or the
+ * keys a committed block removed, each key as its 32 raw bytes. Logs written while keys
+ * were hex strings still replay. Records are encoded by the thread logging them, queued
+ * and written and forced together on the node's scheduler, one group at a time, once
+ * syncBytes of them are waiting or syncIntervalMillis after the first, so no caller waits
+ * on a disk write or on another caller. A crash loses at most the last group, which
+ * gossip fills in again.
+ *
+ * Once the log has grown past compactBytes and holds more removed transactions than live
+ * ones, it is rewritten with just the live transactions, in a new file moved over the old.
+ * Records added after the snapshot the rewrite starts from follow it into the new file.
+ * Loggers share the read side of a lock which compaction and the writer take exclusively
+ * for the moment they swap the queue, so no record lands on both sides of a snapshot.
+ */
+public class MempoolLog {
+    private static final int HEADER_BYTES = 8;
+    /* ADD and REMOVE records hold keys as hex strings, and are only read */
+    private static final byte ADD = 1, REMOVE = 2, ADD_HASH = 3, REMOVE_HASH = 4;
+
+    private final Path file;
+    private final long syncBytes, syncIntervalMillis, compactBytes;
+    private final ScheduledExecutorService writer;
+    private final ReentrantReadWriteLock swap;
+    private final AtomicLong pendingBytes;
+    private final AtomicInteger liveRecords, removedRecords;
+    private final AtomicBoolean writeScheduled, writeQueued;
+    private FileChannel channel;
+    private ConcurrentLinkedQueue<byte[]> pending;
+    private volatile Map<Hash256, Transaction> snapshot;
+    private volatile long logBytes;
+
+    /**
+     * @param syncBytes Records written together once this many bytes are waiting
+     * @param syncIntervalMillis Longest a record waits to be written
+     * @param compactBytes Size below which the log is never compacted
+     * @param writer Runs the writes, shared with the node's other timers
+     */
+    public MempoolLog(Path file, long syncBytes, long syncIntervalMillis, long compactBytes,
+                      ScheduledExecutorService writer) throws IOException {
+        this.file = file;
+        this.syncBytes = syncBytes;
+        this.syncIntervalMillis = syncIntervalMillis;
+        this.compactBytes = compactBytes;
+        this.swap = new ReentrantReadWriteLock();
+        this.pendingBytes = new AtomicLong();
+        this.liveRecords = new AtomicInteger();
+        this.removedRecords = new AtomicInteger();
+        this.writeScheduled = new AtomicBoolean();
+        this.writeQueued = new AtomicBoolean();
+        this.pending = new ConcurrentLinkedQueue<>();
+        this.writer = writer;
+        Files.createDirectories(file.getParent());
+    }
+
+    /**
+     * Reads the log in one sequential pass, cutting it after the last whole record. Called
+     * once, before anything is logged
+     * @return The transactions the log holds, by key, in the order they were added
+     */
+    public synchronized LinkedHashMap<Hash256, Transaction> replay() throws IOException {
+        LinkedHashMap<Hash256, Transaction> transactions = new LinkedHashMap<>();
+        long position = 0;
+        if (Files.exists(file)) {
+            long fileLength = Files.size(file);
+            try (InputStream stream = new BufferedInputStream(Files.newInputStream(file), 1 << 16)) {
+                DataInputStream in = new DataInputStream(stream);
+                CRC32 crc = new CRC32();
+                while (true) {
+                    byte[] payload;
+                    try {
+                        int length = in.readInt();
+                        int checksum = in.readInt();
+                        if (length <= 0 || length > fileLength - position - HEADER_BYTES) {
+                            break;
+                        }
+                        payload = new byte[length];
+                        in.readFully(payload);
+                        crc.reset();
+                        crc.update(payload);
+                        if ((int) crc.getValue() != checksum) {
+                            break;
+                        }
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    apply(payload, transactions);
+                    position += HEADER_BYTES + payload.length;
+                }
+            }
+        }
+        channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (channel.size() > position) {
+            channel.truncate(position);
+            channel.force(true);
+        }
+        channel.position(position);
+        logBytes = position;
+        liveRecords.set(transactions.size());
+        return transactions;
+    }
+
+    private void apply(byte[] payload, Map<Hash256, Transaction> transactions) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        byte type = in.readByte();
+        if (type == ADD || type == ADD_HASH) {
+            Hash256 key = type == ADD ? Hash256.fromHex(in.readUTF()) : readHash(in);
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            transactions.put(key, new Transaction(new String(data, StandardCharsets.UTF_8)));
+        } else if (type == REMOVE || type == REMOVE_HASH) {
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Hash256 key = type == REMOVE ? Hash256.fromHex(in.readUTF()) : readHash(in);
+                if (transactions.remove(key) != null) {
+                    removedRecords.incrementAndGet();
+                }
+            }
+        }
+    }
+
+    private static Hash256 readHash(DataInputStream in) throws IOException {
+        return Hash256.of(in.readLong(), in.readLong(), in.readLong(), in.readLong());
+    }
+
+    private static void writeHash(DataOutputStream out, Hash256 hash) throws IOException {
+        for (int i = 0; i < 4; i++) {
+            out.writeLong(hash.getWord(i));
+        }
+    }
+
+    /**
+     * Logs a transaction which entered the mempool
+     */
+    public void added(Hash256 key, Transaction transaction) {
+        byte[] record = record(addition(key, transaction));
+        swap.readLock().lock();
+        try {
+            pending.add(record);
+            liveRecords.incrementAndGet();
+        } finally {
+            swap.readLock().unlock();
+        }
+        scheduleWrite(record.length);
+    }
+
+    private static byte[] addition(Hash256 key, Transaction transaction) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            byte[] data = transaction.getData().getBytes(StandardCharsets.UTF_8);
+            out.writeByte(ADD_HASH);
+            writeHash(out, key);
+            out.writeInt(data.length);
+            out.write(data);
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Logs the keys of transactions which left the mempool with a committed block
+     */
+    public void removed(Collection<Hash256> keys) {
+        if (keys.isEmpty()) {
+            return;
+        }
+        byte[] record;
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeByte(REMOVE_HASH);
+            out.writeInt(keys.size());
+            for (Hash256 key : keys) {
+                writeHash(out, key);
+            }
+            record = record(bytes.toByteArray());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        swap.readLock().lock();
+        try {
+            pending.add(record);
+            liveRecords.addAndGet(-keys.size());
+            removedRecords.addAndGet(keys.size());
+        } finally {
+            swap.readLock().unlock();
+        }
+        scheduleWrite(record.length);
+    }
+
+    private static byte[] record(byte[] payload) {
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        return ByteBuffer.allocate(HEADER_BYTES + payload.length)
+                .putInt(payload.length).putInt((int) crc.getValue()).put(payload).array();
+    }
+
+    private void scheduleWrite(int length) {
+        if (pendingBytes.addAndGet(length) >= syncBytes) {
+            if (writeQueued.compareAndSet(false, true)) {
+                writer.execute(this::write);
+            }
+        } else if (writeScheduled.compareAndSet(false, true)) {
+            writer.schedule(this::write, syncIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return True once the log is mostly removed transactions and worth rewriting
+     */
+    public boolean needsCompaction() {
+        return snapshot == null && logBytes + pendingBytes.get() >= compactBytes
+                && removedRecords.get() > liveRecords.get();
+    }
+
+    /**
+     * Rewrites the log with a copy of the mempool, taken while no record is being queued.
+     * A change is made to the mempool before it is logged, so the records waiting to be
+     * written are already part of the copy and are dropped, and every later one follows it
+     * @param mempool Copies the live mempool, which may keep changing
+     */
+    public void compact(Supplier<Map<Hash256, Transaction>> mempool) {
+        swap.writeLock().lock();
+        try {
+            snapshot = mempool.get();
+            pending = new ConcurrentLinkedQueue<>();
+            pendingBytes.set(0);
+            liveRecords.set(snapshot.size());
+            removedRecords.set(0);
+        } finally {
+            swap.writeLock().unlock();
+        }
+        writer.execute(this::write);
+    }
+
+    /**
+     * Writes and forces the waiting records. Groups are taken and written under the log's
+     * monitor, so they reach the file in order whichever of the writer's threads runs them
+     */
+    private synchronized void write() {
+        ConcurrentLinkedQueue<byte[]> records;
+        Map<Hash256, Transaction> rewrite;
+        swap.writeLock().lock();
+        try {
+            writeScheduled.set(false);
+            writeQueued.set(false);
+            records = pending;
+            pending = new ConcurrentLinkedQueue<>();
+            pendingBytes.set(0);
+            rewrite = snapshot;
+            snapshot = null;
+        } finally {
+            swap.writeLock().unlock();
+        }
+        if (rewrite == null && records.isEmpty()) {
+            return;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        for (byte[] record : records) {
+            bytes.write(record, 0, record.length);
+        }
+        byte[] group = bytes.toByteArray();
+        try {
+            if (rewrite != null) {
+                rewrite(rewrite, group);
+            } else {
+                ByteBuffer buffer = ByteBuffer.wrap(group);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+                channel.force(false);
+                logBytes += group.length;
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void rewrite(Map<Hash256, Transaction> live, byte[] group) throws IOException {
+        Path compacted = file.resolveSibling(file.getFileName() + ".tmp");
+        ByteArrayOutputStream records = new ByteArrayOutputStream();
+        for (Map.Entry<Hash256, Transaction> entry : live.entrySet()) {
+            byte[] record = record(addition(entry.getKey(), entry.getValue()));
+            records.write(record, 0, record.length);
+        }
+        records.write(group, 0, group.length);
+        try (FileChannel out = FileChannel.open(compacted, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer buffer = ByteBuffer.wrap(records.toByteArray());
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+            out.force(true);
+        }
+        long length = Files.size(compacted);
+        channel.close();
+        Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        channel = FileChannel.open(file, StandardOpenOption.WRITE);
+        channel.position(length);
+        logBytes = length;
+    }
+
+    /**
+     * Writes the waiting records and closes the file. The log is unusable after
+     */
+    public synchronized void close() throws IOException {
+        write();
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    /**
+     * @return Size of the log on disk
+     */
+    public long size() {
+        return logBytes;
+    }
+}
@@ -0,0 +1,36 @@
+package node.blockchain;
+
+import java.io.Serializable;
+
+/**
+ * A block of one shard's chain, or of the beacon chain which orders the shard blocks,
+ * together with the signatures collected for it so far
+ */
+public class ShardBlock implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final int BEACON = -1;
+
+    private final int shard;
+    private final BlockContainer blockContainer;
+
+    /**
+     * @param shard Index of the shard, or BEACON
+     */
+    public ShardBlock(int shard, BlockContainer blockContainer){
+        this.shard = shard;
+        this.blockContainer = blockContainer;
+    }
+
+    public int getShard(){
+        return shard;
+    }
+
+    public BlockContainer getBlockContainer(){
+        return blockContainer;
+    }
+
+    public Block getBlock(){
+        return blockContainer.getBlock();
+    }
+}
@@ -0,0 +1,173 @@
+package node.blockchain;
+
+import node.communication.BinaryMessageCodec;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static node.communication.utils.Hashing.getBlockHash;
+import static node.communication.utils.Hashing.getSHA;
+import static node.communication.utils.Hashing.toHexString;
+
+/**
+ * State a joining node starts from instead of the genesis block: the blocks from the one
+ * which chooses the quorum of the next height up to the tip, and the mempool. The two are
+ * kept as separate sections, as every node snapshotting a height holds the same blocks,
+ * which joining nodes compare across peers, while each holds its own mempool.
+ *
+ * The chain section is a count followed by each block's length and binary codec layout,
+ * the mempool section a count followed by each transaction's length and UTF-8 data.
+ */
+public class Snapshot {
+    public static final int CHAIN = 0, MEMPOOL = 1;
+    private static final int MAGIC = 0x534e4150;
+
+    private final int height;
+    private final String tipHash;
+    private final byte[] chain, mempool;
+    private final String chainDigest, mempoolDigest;
+
+    public Snapshot(int height, String tipHash, byte[] chain, byte[] mempool) {
+        this.height = height;
+        this.tipHash = tipHash;
+        this.chain = chain;
+        this.mempool = mempool;
+        this.chainDigest = digest(chain);
+        this.mempoolDigest = digest(mempool);
+    }
+
+    /**
+     * @param blocks Consecutive blocks ending at the tip
+     */
+    public static Snapshot of(List<Block> blocks, Collection<Transaction> transactions, BinaryMessageCodec codec) {
+        try {
+            ByteArrayOutputStream chainBytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(chainBytes);
+            out.writeInt(blocks.size());
+            for (Block block : blocks) {
+                byte[] encoded = codec.encodeBlock(block);
+                out.writeInt(encoded.length);
+                out.write(encoded);
+            }
+            ByteArrayOutputStream mempoolBytes = new ByteArrayOutputStream();
+            out = new DataOutputStream(mempoolBytes);
+            out.writeInt(transactions.size());
+            for (Transaction transaction : transactions) {
+                byte[] data = transaction.getData().getBytes(StandardCharsets.UTF_8);
+                out.writeInt(data.length);
+                out.write(data);
+            }
+            Block tip = blocks.get(blocks.size() - 1);
+            return new Snapshot(tip.getBlockId(), getBlockHash(tip, 0).toHex(), chainBytes.toByteArray(), mempoolBytes.toByteArray());
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static List<Block> decodeChain(byte[] chain, BinaryMessageCodec codec) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(chain));
+        int count = in.readInt();
+        ArrayList<Block> blocks = new ArrayList<>();
+        int position = 4;
+        for (int i = 0; i < count; i++) {
+            int length = in.readInt();
+            blocks.add(codec.decodeBlock(chain, position + 4, length));
+            in.skipBytes(length);
+            position += 4 + length;
+        }
+        return blocks;
+    }
+
+    public static List<Transaction> decodeMempool(byte[] mempool) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(mempool));
+        int count = in.readInt();
+        ArrayList<Transaction> transactions = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            byte[] data = new byte[in.readInt()];
+            in.readFully(data);
+            transactions.add(new Transaction(new String(data, StandardCharsets.UTF_8)));
+        }
+        return transactions;
+    }
+
+    /**
+     * Writes the snapshot beside the file and moves it over, so the file always holds a whole one
+     */
+    public void write(Path file) throws IOException {
+        Path written = file.resolveSibling(file.getFileName() + ".tmp");
+        try (OutputStream stream = Files.newOutputStream(written)) {
+            DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(MAGIC);
+            out.writeInt(height);
+            out.writeUTF(tipHash);
+            out.writeInt(chain.length);
+            out.write(chain);
+            out.writeInt(mempool.length);
+            out.write(mempool);
+            out.flush();
+        }
+        Files.move(written, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return The snapshot in the file, or null if there is none
+     */
+    public static Snapshot read(Path file) throws IOException {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (InputStream stream = Files.newInputStream(file)) {
+            DataInputStream in = new DataInputStream(stream);
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            int height = in.readInt();
+            String tipHash = in.readUTF();
+            byte[] chain = new byte[in.readInt()];
+            in.readFully(chain);
+            byte[] mempool = new byte[in.readInt()];
+            in.readFully(mempool);
+            return new Snapshot(height, tipHash, chain, mempool);
+        }
+    }
+
+    /**
+     * @param signer Signature of the node offering the snapshot
+     */
+    public SnapshotManifest manifest(String signer) {
+        return new SnapshotManifest(height, tipHash, chainDigest, chain.length, mempoolDigest, mempool.length, signer);
+    }
+
+    /**
+     * @return Bytes of a section, clipped to its end, or null if the range is outside it
+     */
+    public byte[] read(int section, int offset, int length) {
+        byte[] bytes = section == CHAIN ? chain : mempool;
+        if (offset < 0 || length < 0 || offset > bytes.length) {
+            return null;
+        }
+        byte[] chunk = new byte[Math.min(length, bytes.length - offset)];
+        System.arraycopy(bytes, offset, chunk, 0, chunk.length);
+        return chunk;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public static String digest(byte[] bytes) {
+        return toHexString(getSHA(bytes));
+    }
+}
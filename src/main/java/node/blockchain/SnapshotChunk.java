@@ -0,0 +1,49 @@
+package node.blockchain;
+
+import java.io.Serializable;
+
+/**
+ * A range of one section of a snapshot, sent without data in SNAPSHOT_CHUNK and answered
+ * with the data filled in
+ */
+public class SnapshotChunk implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int height;
+    private final int section;
+    private final int offset;
+    private final int length;
+    private final byte[] data;
+
+    /**
+     * @param section Snapshot.CHAIN or Snapshot.MEMPOOL
+     * @param data Bytes of the range, or null when asking for them
+     */
+    public SnapshotChunk(int height, int section, int offset, int length, byte[] data){
+        this.height = height;
+        this.section = section;
+        this.offset = offset;
+        this.length = length;
+        this.data = data;
+    }
+
+    public int getHeight(){
+        return height;
+    }
+
+    public int getSection(){
+        return section;
+    }
+
+    public int getOffset(){
+        return offset;
+    }
+
+    public int getLength(){
+        return length;
+    }
+
+    public byte[] getData(){
+        return data;
+    }
+}
@@ -0,0 +1,66 @@
+package node.blockchain;
+
+import java.io.Serializable;
+
+/**
+ * What a node says about its latest snapshot, answered to SNAPSHOT_MANIFEST. Nodes which
+ * snapshot the same height of the same chain agree on everything but the mempool and the
+ * signer, so a joining node trusts a snapshot once enough of them vouch for it
+ */
+public class SnapshotManifest implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final int height;
+    private final String tipHash;
+    private final String chainDigest;
+    private final int chainBytes;
+    private final String mempoolDigest;
+    private final int mempoolBytes;
+    private final String signature;
+
+    public SnapshotManifest(int height, String tipHash, String chainDigest, int chainBytes,
+                            String mempoolDigest, int mempoolBytes, String signature){
+        this.height = height;
+        this.tipHash = tipHash;
+        this.chainDigest = chainDigest;
+        this.chainBytes = chainBytes;
+        this.mempoolDigest = mempoolDigest;
+        this.mempoolBytes = mempoolBytes;
+        this.signature = signature;
+    }
+
+    public int getHeight(){
+        return height;
+    }
+
+    public String getTipHash(){
+        return tipHash;
+    }
+
+    public String getChainDigest(){
+        return chainDigest;
+    }
+
+    public int getChainBytes(){
+        return chainBytes;
+    }
+
+    public String getMempoolDigest(){
+        return mempoolDigest;
+    }
+
+    public int getMempoolBytes(){
+        return mempoolBytes;
+    }
+
+    public String getSignature(){
+        return signature;
+    }
+
+    /**
+     * @return What signers of the same snapshot of the chain have in common
+     */
+    public String chainId(){
+        return height + ":" + tipHash + ":" + chainDigest + ":" + chainBytes;
+    }
+}
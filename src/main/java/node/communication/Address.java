@@ -24,6 +24,16 @@ public class Address implements Serializable {
         return this.port == address.getPort() && Objects.equals(this.host, address.getHost());
     }
 
+    @Override
+    public boolean equals(Object o){
+        return o instanceof Address && equals((Address) o);
+    }
+
+    @Override
+    public int hashCode(){
+        return Objects.hash(port, host);
+    }
+
     @Override
     public String toString() {
         return String.valueOf(port);
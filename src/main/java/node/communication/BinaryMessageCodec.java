@@ -0,0 +1,805 @@
+package node.communication;
+
+import node.blockchain.Block;
+import node.blockchain.BlockContainer;
+import node.blockchain.BlockSkeleton;
+import node.blockchain.BlockTransactions;
+import node.blockchain.ShardBlock;
+import node.blockchain.Transaction;
+import node.communication.utils.Hash256;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Compact hand-written wire format.
+ *
+ * A payload is one byte holding the request's wire id (0 when absent) followed by the
+ * metadata.
+ * Requests whose metadata always has the same shape get a dedicated layout; anything
+ * else, such as replies without a request, is written as a tagged value. Integers are
+ * varints, strings are length-prefixed UTF-8 and SHA-256 hashes, and strings holding one,
+ * travel as raw 32 bytes.
+ */
+public class BinaryMessageCodec implements MessageCodec {
+    public static final byte ID = 1;
+
+    /*
+     * Requests by wire id. Ids are part of the format, so a request keeps its id for good
+     * and new requests are only ever appended, wherever they sit in Message.Request
+     */
+    private static final Message.Request[] REQUESTS = {
+            null,
+            Message.Request.ADD_BLOCK,
+            Message.Request.REQUEST_BLOCK,
+            Message.Request.REQUEST_CONNECTION,
+            Message.Request.ACCEPT_CONNECTION,
+            Message.Request.REJECT_CONNECTION,
+            Message.Request.QUERY_PEERS,
+            Message.Request.PING,
+            Message.Request.REQUEST_QUORUM_CONNECTION,
+            Message.Request.ADD_TRANSACTION,
+            Message.Request.RECEIVE_MEMPOOL,
+            Message.Request.QUORUM_READY,
+            Message.Request.CONSTRUCT_BLOCK,
+            Message.Request.VOTE_BLOCK,
+            Message.Request.QUORUM_COMPLETE,
+            Message.Request.REQUEST_TRANSACTION,
+            Message.Request.RECEIVE_TRANSACTIONS,
+            Message.Request.RECEIVE_SKELETON,
+            Message.Request.TX_BATCH,
+            Message.Request.INV,
+            Message.Request.GETDATA,
+            Message.Request.QUERY_STATS,
+            Message.Request.GET_BLOCK_TRANSACTIONS,
+            Message.Request.BLOCK_TRANSACTIONS,
+            Message.Request.GET_FULL_BLOCK,
+            Message.Request.RECEIVE_MEMPOOL_SKETCH,
+            Message.Request.REQUEST_MEMPOOL,
+            Message.Request.DISCONNECT,
+            Message.Request.BLOCK_VOTE,
+            Message.Request.SHARD_VOTE_BLOCK,
+            Message.Request.SHARD_ADD_BLOCK,
+            Message.Request.QUERY_TRANSACTION,
+            Message.Request.QUERY_BLOCK,
+            Message.Request.SNAPSHOT_MANIFEST,
+            Message.Request.SNAPSHOT_CHUNK,
+            Message.Request.SUBMIT_TRANSACTION,
+            Message.Request.HANDSHAKE
+    };
+    private static final int[] WIRE_IDS = new int[Message.Request.values().length];
+    static {
+        for (int id = 1; id < REQUESTS.length; id++) {
+            WIRE_IDS[REQUESTS[id].ordinal()] = id;
+        }
+    }
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    private static final int[] HEX_VALUES = new int[128];
+    static {
+        Arrays.fill(HEX_VALUES, -1);
+        for (int i = 0; i < HEX.length; i++) {
+            HEX_VALUES[HEX[i]] = i;
+        }
+    }
+
+    /* Tags for metadata without a fixed layout */
+    private static final int TAG_NULL = 0, TAG_ADDRESS = 1, TAG_ADDRESS_LIST = 2, TAG_TRANSACTION = 3,
+            TAG_TRANSACTION_LIST = 4, TAG_STRING = 5, TAG_STRING_LIST = 6, TAG_STRING_SET = 7, TAG_BLOCK = 8,
+            TAG_BLOCK_CONTAINER = 9, TAG_BLOCK_SKELETON = 10, TAG_SERIALIZED = 11;
+
+    /* Prefixes for strings which may be SHA-256 hex keys */
+    private static final int KEY_NULL = 0, KEY_RAW = 1, KEY_STRING_OFFSET = 2;
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encode(Message message) throws IOException {
+        Output out = new Output();
+        Message.Request request = message.getRequest();
+        int wireId = request == null ? 0 : WIRE_IDS[request.ordinal()];
+        if (request != null && wireId == 0) {
+            throw new IOException("No wire id for request " + request);
+        }
+        out.writeByte(wireId);
+        Object metadata = message.getMetadata();
+        if (request == null) {
+            writeValue(out, metadata);
+            return out.toByteArray();
+        }
+        switch (request) {
+            case REQUEST_CONNECTION:
+            case ACCEPT_CONNECTION:
+            case REJECT_CONNECTION:
+            case DISCONNECT:
+            case HANDSHAKE:
+                writeConnection(out, metadata);
+                break;
+            case ADD_TRANSACTION:
+            case SUBMIT_TRANSACTION:
+                writeTransaction(out, (Transaction) metadata);
+                break;
+            case RECEIVE_MEMPOOL:
+            case REQUEST_TRANSACTION:
+                writeHashes(out, (Collection<?>) metadata);
+                break;
+            case RECEIVE_TRANSACTIONS:
+            case TX_BATCH:
+                writeTransactions(out, (Collection<?>) metadata);
+                break;
+            case INV:
+            case GETDATA:
+                writeInventory(out, (Inventory) metadata);
+                break;
+            case ADD_BLOCK:
+            case REQUEST_BLOCK:
+                writeBlock(out, (Block) metadata);
+                break;
+            case VOTE_BLOCK:
+                writeBlockContainer(out, (BlockContainer) metadata);
+                break;
+            case SHARD_VOTE_BLOCK:
+            case SHARD_ADD_BLOCK:
+                writeShardBlock(out, (ShardBlock) metadata);
+                break;
+            case RECEIVE_SKELETON:
+                writeBlockSkeleton(out, (BlockSkeleton) metadata);
+                break;
+            case GET_BLOCK_TRANSACTIONS:
+            case BLOCK_TRANSACTIONS:
+                writeBlockTransactions(out, (BlockTransactions) metadata);
+                break;
+            case RECEIVE_MEMPOOL_SKETCH:
+                writeMempoolSketch(out, (MempoolSketch) metadata);
+                break;
+            case GET_FULL_BLOCK:
+                out.writeVarInt((Integer) metadata);
+                break;
+            default:
+                writeValue(out, metadata);
+        }
+        return out.toByteArray();
+    }
+
+    @Override
+    public Message decode(byte[] payload, int offset, int length) throws IOException {
+        Input in = new Input(payload, offset, length);
+        int requestByte = in.readByte();
+        if (requestByte == 0) {
+            return new Message(readValue(in));
+        }
+        /* A newer node may send requests this one does not know yet */
+        if (requestByte >= REQUESTS.length) {
+            throw new IOException("Unknown request " + requestByte);
+        }
+        Message.Request request = REQUESTS[requestByte];
+        Object metadata;
+        switch (request) {
+            case REQUEST_CONNECTION:
+            case ACCEPT_CONNECTION:
+            case REJECT_CONNECTION:
+            case DISCONNECT:
+            case HANDSHAKE:
+                metadata = readConnection(in);
+                break;
+            case ADD_TRANSACTION:
+            case SUBMIT_TRANSACTION:
+                metadata = readTransaction(in);
+                break;
+            case RECEIVE_MEMPOOL:
+                metadata = readHashes(in, new HashSet<>());
+                break;
+            case REQUEST_TRANSACTION:
+                metadata = readHashes(in, new ArrayList<>());
+                break;
+            case RECEIVE_TRANSACTIONS:
+            case TX_BATCH:
+                metadata = readTransactions(in);
+                break;
+            case INV:
+            case GETDATA:
+                metadata = readInventory(in);
+                break;
+            case ADD_BLOCK:
+            case REQUEST_BLOCK:
+                metadata = readBlock(in);
+                break;
+            case VOTE_BLOCK:
+                metadata = readBlockContainer(in);
+                break;
+            case SHARD_VOTE_BLOCK:
+            case SHARD_ADD_BLOCK:
+                metadata = readShardBlock(in);
+                break;
+            case RECEIVE_SKELETON:
+                metadata = readBlockSkeleton(in);
+                break;
+            case GET_BLOCK_TRANSACTIONS:
+            case BLOCK_TRANSACTIONS:
+                metadata = readBlockTransactions(in);
+                break;
+            case RECEIVE_MEMPOOL_SKETCH:
+                metadata = readMempoolSketch(in);
+                break;
+            case GET_FULL_BLOCK:
+                metadata = in.readVarInt();
+                break;
+            default:
+                metadata = readValue(in);
+        }
+        return new Message(request, metadata);
+    }
+
+    /**
+     * Encodes a block alone in the layout ADD_BLOCK uses, for storing it
+     */
+    public byte[] encodeBlock(Block block) {
+        Output out = new Output();
+        writeBlock(out, block);
+        return out.toByteArray();
+    }
+
+    public Block decodeBlock(byte[] payload, int offset, int length) throws IOException {
+        return readBlock(new Input(payload, offset, length));
+    }
+
+    private void writeValue(Output out, Object value) throws IOException {
+        if (value == null) {
+            out.writeByte(TAG_NULL);
+        } else if (value instanceof Address) {
+            out.writeByte(TAG_ADDRESS);
+            writeAddress(out, (Address) value);
+        } else if (value instanceof Transaction) {
+            out.writeByte(TAG_TRANSACTION);
+            writeTransaction(out, (Transaction) value);
+        } else if (value instanceof String) {
+            out.writeByte(TAG_STRING);
+            out.writeString((String) value);
+        } else if (value instanceof Block) {
+            out.writeByte(TAG_BLOCK);
+            writeBlock(out, (Block) value);
+        } else if (value instanceof BlockContainer) {
+            out.writeByte(TAG_BLOCK_CONTAINER);
+            writeBlockContainer(out, (BlockContainer) value);
+        } else if (value instanceof BlockSkeleton) {
+            out.writeByte(TAG_BLOCK_SKELETON);
+            writeBlockSkeleton(out, (BlockSkeleton) value);
+        } else if (value instanceof Set && allInstances((Set<?>) value, String.class)) {
+            out.writeByte(TAG_STRING_SET);
+            writeKeys(out, (Set<?>) value);
+        } else if (value instanceof List && !((List<?>) value).isEmpty() && allInstances((List<?>) value, Address.class)) {
+            out.writeByte(TAG_ADDRESS_LIST);
+            List<?> addresses = (List<?>) value;
+            out.writeVarInt(addresses.size());
+            for (Object address : addresses) {
+                writeAddress(out, (Address) address);
+            }
+        } else if (value instanceof List && !((List<?>) value).isEmpty() && allInstances((List<?>) value, Transaction.class)) {
+            out.writeByte(TAG_TRANSACTION_LIST);
+            writeTransactions(out, (List<?>) value);
+        } else if (value instanceof List && allInstances((List<?>) value, String.class)) {
+            out.writeByte(TAG_STRING_LIST);
+            writeKeys(out, (List<?>) value);
+        } else {
+            /* No compact layout for this type yet, fall back to Java serialization */
+            out.writeByte(TAG_SERIALIZED);
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            ObjectOutputStream oout = new ObjectOutputStream(bytes);
+            oout.writeObject(value);
+            oout.flush();
+            out.writeBytes(bytes.toByteArray());
+        }
+    }
+
+    private Object readValue(Input in) throws IOException {
+        int tag = in.readByte();
+        switch (tag) {
+            case TAG_NULL:
+                return null;
+            case TAG_ADDRESS:
+                return readAddress(in);
+            case TAG_TRANSACTION:
+                return readTransaction(in);
+            case TAG_STRING:
+                return in.readString();
+            case TAG_BLOCK:
+                return readBlock(in);
+            case TAG_BLOCK_CONTAINER:
+                return readBlockContainer(in);
+            case TAG_BLOCK_SKELETON:
+                return readBlockSkeleton(in);
+            case TAG_STRING_SET:
+                return readKeys(in, new HashSet<>());
+            case TAG_ADDRESS_LIST:
+                int size = in.readVarInt();
+                in.require(size);
+                ArrayList<Address> addresses = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    addresses.add(readAddress(in));
+                }
+                return addresses;
+            case TAG_TRANSACTION_LIST:
+                return readTransactions(in);
+            case TAG_STRING_LIST:
+                return readKeys(in, new ArrayList<>());
+            case TAG_SERIALIZED:
+                byte[] bytes = in.readBytes();
+                try {
+                    return new ObjectInputStream(new ByteArrayInputStream(bytes)).readObject();
+                } catch (ClassNotFoundException e) {
+                    throw new IOException(e);
+                }
+            default:
+                throw new IOException("Unknown metadata tag " + tag);
+        }
+    }
+
+    private static boolean allInstances(Collection<?> values, Class<?> type) {
+        for (Object value : values) {
+            if (!type.isInstance(value)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeAddress(Output out, Address address) {
+        out.writeVarInt(address.getPort());
+        out.writeString(address.getHost());
+    }
+
+    private Address readAddress(Input in) throws IOException {
+        int port = in.readVarInt();
+        return new Address(port, in.readString());
+    }
+
+    /**
+     * Writes a bare Address, or a Handshake as its address followed by the compressions it
+     * offers. Decoders which predate handshakes stop after the address
+     */
+    private void writeConnection(Output out, Object metadata) {
+        if (metadata instanceof Handshake) {
+            Handshake handshake = (Handshake) metadata;
+            writeAddress(out, handshake.getAddress());
+            byte[] compressions = handshake.getCompressions();
+            out.writeBytes(compressions == null ? new byte[0] : compressions);
+        } else {
+            writeAddress(out, (Address) metadata);
+        }
+    }
+
+    private Object readConnection(Input in) throws IOException {
+        Address address = readAddress(in);
+        if (!in.hasRemaining()) {
+            return address;
+        }
+        return new Handshake(address, in.readBytes());
+    }
+
+    private void writeTransaction(Output out, Transaction transaction) {
+        out.writeString(transaction.getData());
+    }
+
+    private Transaction readTransaction(Input in) throws IOException {
+        return new Transaction(in.readString());
+    }
+
+    /**
+     * @param transactions Transactions, checked one by one as the metadata holding them is untyped
+     */
+    private void writeTransactions(Output out, Collection<?> transactions) {
+        out.writeVarInt(transactions.size());
+        for (Object transaction : transactions) {
+            writeTransaction(out, (Transaction) transaction);
+        }
+    }
+
+    private ArrayList<Transaction> readTransactions(Input in) throws IOException {
+        int size = in.readVarInt();
+        in.require(size);
+        ArrayList<Transaction> transactions = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            transactions.add(readTransaction(in));
+        }
+        return transactions;
+    }
+
+    private void writeKeys(Output out, Collection<?> keys) {
+        out.writeVarInt(keys.size());
+        for (Object key : keys) {
+            out.writeKey((String) key);
+        }
+    }
+
+    private <T extends Collection<String>> T readKeys(Input in, T keys) throws IOException {
+        int size = in.readVarInt();
+        for (int i = 0; i < size; i++) {
+            keys.add(in.readKey());
+        }
+        return keys;
+    }
+
+    private void writeHashes(Output out, Collection<?> hashes) {
+        out.writeVarInt(hashes.size());
+        for (Object hash : hashes) {
+            out.writeHash((Hash256) hash);
+        }
+    }
+
+    private <T extends Collection<Hash256>> T readHashes(Input in, T hashes) throws IOException {
+        int size = in.readVarInt();
+        for (int i = 0; i < size; i++) {
+            hashes.add(in.readHash());
+        }
+        return hashes;
+    }
+
+    private void writeInventory(Output out, Inventory inventory) {
+        writeAddress(out, inventory.getAddress());
+        writeHashes(out, inventory.getKeys());
+    }
+
+    private Inventory readInventory(Input in) throws IOException {
+        Address address = readAddress(in);
+        return new Inventory(address, readHashes(in, new ArrayList<>()));
+    }
+
+    private void writeBlock(Output out, Block block) {
+        out.writeVarInt(block.getBlockId());
+        out.writeHash(block.getPrevBlockHash());
+        HashMap<Hash256, Transaction> txList = block.getTxList();
+        out.writeVarInt(txList.size());
+        for (Map.Entry<Hash256, Transaction> entry : txList.entrySet()) {
+            out.writeHash(entry.getKey());
+            writeTransaction(out, entry.getValue());
+        }
+    }
+
+    private Block readBlock(Input in) throws IOException {
+        int blockId = in.readVarInt();
+        Hash256 prevBlockHash = in.readHash();
+        int size = in.readVarInt();
+        HashMap<Hash256, Transaction> txList = new HashMap<>();
+        for (int i = 0; i < size; i++) {
+            Hash256 key = in.readHash();
+            txList.put(key, readTransaction(in));
+        }
+        return new Block(txList, prevBlockHash, blockId);
+    }
+
+    private void writeBlockContainer(Output out, BlockContainer blockContainer) {
+        writeBlock(out, blockContainer.getBlock());
+        writeKeys(out, blockContainer.getSignatures());
+    }
+
+    private BlockContainer readBlockContainer(Input in) throws IOException {
+        BlockContainer blockContainer = new BlockContainer(readBlock(in));
+        for (String signature : readKeys(in, new ArrayList<>())) {
+            blockContainer.addSignature(signature);
+        }
+        return blockContainer;
+    }
+
+    /* The shard index is written one up so the beacon's -1 stays a small varint */
+    private void writeShardBlock(Output out, ShardBlock shardBlock) {
+        out.writeVarInt(shardBlock.getShard() + 1);
+        writeBlockContainer(out, shardBlock.getBlockContainer());
+    }
+
+    private ShardBlock readShardBlock(Input in) throws IOException {
+        int shard = in.readVarInt() - 1;
+        return new ShardBlock(shard, readBlockContainer(in));
+    }
+
+    private void writeBlockSkeleton(Output out, BlockSkeleton skeleton) {
+        out.writeVarInt(skeleton.getBlockId());
+        out.writeHash(skeleton.getPrevBlockHash());
+        out.writeHash(skeleton.getBlockHash());
+        long[] shortIds = skeleton.getShortIds();
+        out.writeVarInt(shortIds.length);
+        for (long shortId : shortIds) {
+            out.writeLong(shortId, BlockSkeleton.SHORT_ID_BYTES);
+        }
+        writeKeys(out, skeleton.getSignatures());
+    }
+
+    private BlockSkeleton readBlockSkeleton(Input in) throws IOException {
+        int blockId = in.readVarInt();
+        Hash256 prevBlockHash = in.readHash();
+        Hash256 blockHash = in.readHash();
+        int size = in.readVarInt();
+        in.require(size);
+        long[] shortIds = new long[size];
+        for (int i = 0; i < shortIds.length; i++) {
+            shortIds[i] = in.readLong(BlockSkeleton.SHORT_ID_BYTES);
+        }
+        ArrayList<String> signatures = readKeys(in, new ArrayList<>());
+        return new BlockSkeleton(blockId, prevBlockHash, blockHash, shortIds, signatures);
+    }
+
+    private void writeBlockTransactions(Output out, BlockTransactions blockTransactions) {
+        out.writeVarInt(blockTransactions.getBlockId());
+        ArrayList<Integer> indexes = blockTransactions.getIndexes();
+        out.writeVarInt(indexes.size());
+        for (int index : indexes) {
+            out.writeVarInt(index);
+        }
+        ArrayList<Transaction> transactions = blockTransactions.getTransactions();
+        if (transactions == null) {
+            out.writeByte(0);
+        } else {
+            out.writeByte(1);
+            writeTransactions(out, transactions);
+        }
+    }
+
+    private BlockTransactions readBlockTransactions(Input in) throws IOException {
+        int blockId = in.readVarInt();
+        int size = in.readVarInt();
+        in.require(size);
+        ArrayList<Integer> indexes = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            indexes.add(in.readVarInt());
+        }
+        ArrayList<Transaction> transactions = in.readByte() == 0 ? null : readTransactions(in);
+        return new BlockTransactions(blockId, indexes, transactions);
+    }
+
+    /**
+     * Writes a sender's sketch, whose counts are never negative, leaving out empty cells
+     */
+    private void writeMempoolSketch(Output out, MempoolSketch sketch) {
+        long[] keySums = sketch.getKeySums();
+        long[] hashSums = sketch.getHashSums();
+        int[] counts = sketch.getCounts();
+        out.writeVarInt(counts.length);
+        for (int c = 0; c < counts.length; c++) {
+            out.writeVarInt(counts[c]);
+            if (counts[c] != 0) {
+                for (int w = 0; w < 4; w++) {
+                    out.writeLong(keySums[c * 4 + w], 8);
+                }
+                out.writeLong(hashSums[c], 8);
+            }
+        }
+    }
+
+    private MempoolSketch readMempoolSketch(Input in) throws IOException {
+        int cells = in.readVarInt();
+        /* An empty cell is one byte here but 44 once read, so the size is bounded before allocating */
+        if (!MempoolSketch.isValidSize(cells)) {
+            throw new IOException("Invalid sketch size " + cells);
+        }
+        in.require(cells);
+        long[] keySums = new long[cells * 4];
+        long[] hashSums = new long[cells];
+        int[] counts = new int[cells];
+        for (int c = 0; c < cells; c++) {
+            counts[c] = in.readVarInt();
+            if (counts[c] != 0) {
+                for (int w = 0; w < 4; w++) {
+                    keySums[c * 4 + w] = in.readLong(8);
+                }
+                hashSums[c] = in.readLong(8);
+            }
+        }
+        return new MempoolSketch(keySums, hashSums, counts);
+    }
+
+    /**
+     * Growable byte buffer, cheaper than a DataOutputStream over a ByteArrayOutputStream
+     */
+    private static final class Output {
+        private byte[] buf = new byte[64];
+        private int length;
+
+        private void ensure(int extra) {
+            if (length + extra > buf.length) {
+                buf = Arrays.copyOf(buf, Math.max(buf.length * 2, length + extra));
+            }
+        }
+
+        void writeByte(int b) {
+            ensure(1);
+            buf[length++] = (byte) b;
+        }
+
+        void writeVarInt(int value) {
+            ensure(5);
+            while ((value & ~0x7F) != 0) {
+                buf[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            buf[length++] = (byte) value;
+        }
+
+        void writeLong(long value, int bytes) {
+            ensure(bytes);
+            for (int i = bytes - 1; i >= 0; i--) {
+                buf[length++] = (byte) (value >>> (i * 8));
+            }
+        }
+
+        void writeBytes(byte[] bytes) {
+            writeVarInt(bytes.length);
+            ensure(bytes.length);
+            System.arraycopy(bytes, 0, buf, length, bytes.length);
+            length += bytes.length;
+        }
+
+        void writeString(String value) {
+            writeBytes(value.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Writes a string which is usually a SHA-256 hex key, as 32 raw bytes when it is one
+         */
+        void writeKey(String key) {
+            if (key == null) {
+                writeVarInt(KEY_NULL);
+            } else if (isHexKey(key)) {
+                writeVarInt(KEY_RAW);
+                ensure(32);
+                for (int i = 0; i < 64; i += 2) {
+                    buf[length++] = (byte) ((HEX_VALUES[key.charAt(i)] << 4) | HEX_VALUES[key.charAt(i + 1)]);
+                }
+            } else {
+                byte[] bytes = key.getBytes(StandardCharsets.UTF_8);
+                writeVarInt(bytes.length + KEY_STRING_OFFSET);
+                ensure(bytes.length);
+                System.arraycopy(bytes, 0, buf, length, bytes.length);
+                length += bytes.length;
+            }
+        }
+
+        /**
+         * Writes a hash as writeKey writes its hex string, and the genesis block's missing
+         * previous hash as the empty string it used to be
+         */
+        void writeHash(Hash256 hash) {
+            if (hash == null) {
+                writeVarInt(KEY_STRING_OFFSET);
+            } else {
+                writeVarInt(KEY_RAW);
+                ensure(Hash256.BYTES);
+                hash.writeTo(buf, length);
+                length += Hash256.BYTES;
+            }
+        }
+
+        private static boolean isHexKey(String key) {
+            if (key.length() != 64) {
+                return false;
+            }
+            for (int i = 0; i < 64; i++) {
+                char c = key.charAt(i);
+                if (c >= 128 || HEX_VALUES[c] < 0) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(buf, length);
+        }
+    }
+
+    private static final class Input {
+        private final byte[] buf;
+        private final int end;
+        private int position;
+
+        Input(byte[] buf, int offset, int length) {
+            this.buf = buf;
+            this.position = offset;
+            this.end = offset + length;
+        }
+
+        /**
+         * Also called with the amount of elements about to be read, each taking at least a
+         * byte, before allocating for them, so a corrupt count cannot exhaust the heap
+         */
+        private void require(int amount) throws IOException {
+            if (amount < 0 || amount > end - position) {
+                throw new EOFException("Truncated frame");
+            }
+        }
+
+        boolean hasRemaining() {
+            return position < end;
+        }
+
+        int readByte() throws IOException {
+            require(1);
+            return buf[position++] & 0xFF;
+        }
+
+        int readVarInt() throws IOException {
+            int value = 0;
+            for (int shift = 0; shift < 32; shift += 7) {
+                int b = readByte();
+                value |= (b & 0x7F) << shift;
+                if ((b & 0x80) == 0) {
+                    return value;
+                }
+            }
+            throw new IOException("Malformed varint");
+        }
+
+        long readLong(int bytes) throws IOException {
+            require(bytes);
+            long value = 0;
+            for (int i = 0; i < bytes; i++) {
+                value = (value << 8) | (buf[position++] & 0xFF);
+            }
+            return value;
+        }
+
+        byte[] readBytes() throws IOException {
+            int size = readVarInt();
+            require(size);
+            byte[] bytes = Arrays.copyOfRange(buf, position, position + size);
+            position += size;
+            return bytes;
+        }
+
+        String readString() throws IOException {
+            int size = readVarInt();
+            require(size);
+            String value = new String(buf, position, size, StandardCharsets.UTF_8);
+            position += size;
+            return value;
+        }
+
+        String readKey() throws IOException {
+            int prefix = readVarInt();
+            if (prefix == KEY_NULL) {
+                return null;
+            }
+            if (prefix == KEY_RAW) {
+                require(32);
+                char[] hex = new char[64];
+                for (int i = 0; i < 32; i++) {
+                    int b = buf[position++] & 0xFF;
+                    hex[i * 2] = HEX[b >>> 4];
+                    hex[i * 2 + 1] = HEX[b & 0x0F];
+                }
+                return new String(hex);
+            }
+            int size = prefix - KEY_STRING_OFFSET;
+            require(size);
+            String value = new String(buf, position, size, StandardCharsets.UTF_8);
+            position += size;
+            return value;
+        }
+
+        /**
+         * Reads what writeHash wrote, or a hash written by writeKey as a hex string
+         * @return The hash, or null for an empty or missing one
+         */
+        Hash256 readHash() throws IOException {
+            int prefix = readVarInt();
+            if (prefix == KEY_RAW) {
+                require(Hash256.BYTES);
+                Hash256 hash = Hash256.of(buf, position);
+                position += Hash256.BYTES;
+                return hash;
+            }
+            if (prefix == KEY_NULL || prefix == KEY_STRING_OFFSET) {
+                return null;
+            }
+            int size = prefix - KEY_STRING_OFFSET;
+            require(size);
+            String value = new String(buf, position, size, StandardCharsets.UTF_8);
+            position += size;
+            if (!Hash256.isHex(value)) {
+                throw new IOException("Not a SHA-256 hash: " + value);
+            }
+            return Hash256.fromHex(value);
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package node.communication;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.function.Consumer;
+
+/**
+ * Keeps persistent links to peers so that every outbound message reuses an open socket.
+ * A link is checked out for the duration of one exchange and then handed back, which lets
+ * any number of requests share a small set of connections per peer. Links that fail are
+ * dropped. An idle link is checked for the peer's FIN before it is reused, as a peer which
+ * restarted closed it, and writing to it would still succeed and lose the message. A
+ * message is also sent again on a fresh connection if writing it to an idle link failed;
+ * a message which was written may have been handled, so it is never sent twice.
+ *
+ * Compression is negotiated with peers in REQUEST_CONNECTION. Other nodes, such as quorum
+ * members we are not peered with, are sent a HANDSHAKE on the first link the pool opens
+ * to them.
+ */
+public class ConnectionPool {
+    private final int maxIdlePerPeer, timeoutMillis;
+    private final MessageCodec codec;
+    private final Consumer<Address> onReply;
+    private final HashMap<Address, ArrayDeque<PeerConnection>> idle;
+    private final HashMap<Address, FrameCompression> compressions;
+    private final HashSet<Address> negotiated;
+    private volatile Handshake handshake;
+    private volatile FrameCompression compression;
+
+    /**
+     * @param maxIdlePerPeer Maximum amount of open, unused links kept for a single peer
+     * @param codec Wire format used on links this node opens
+     * @param onReply Told a peer's address whenever a reply arrives from it, may be null
+     * @param timeoutMillis Longest opening a link may take
+     */
+    public ConnectionPool(int maxIdlePerPeer, MessageCodec codec, Consumer<Address> onReply, int timeoutMillis) {
+        this.maxIdlePerPeer = maxIdlePerPeer;
+        this.timeoutMillis = timeoutMillis;
+        this.codec = codec;
+        this.onReply = onReply;
+        this.idle = new HashMap<>();
+        this.compressions = new HashMap<>();
+        this.negotiated = new HashSet<>();
+    }
+
+    public MessageCodec getCodec() {
+        return codec;
+    }
+
+    /**
+     * Records the compression negotiated with a peer, applied to every link handed out for it
+     * @param compression Compression the peer can inflate, or null to send payloads as they are
+     */
+    public void setCompression(Address address, FrameCompression compression) {
+        synchronized (idle) {
+            negotiated.add(address);
+            if (compression == null) {
+                compressions.remove(address);
+            } else {
+                compressions.put(address, compression);
+            }
+        }
+    }
+
+    /**
+     * Checks out a link to the address, opening one if none are idle.
+     * The caller must hand it back with release() or discard()
+     * @param address Peer to connect to
+     * @return An exclusive link to the peer
+     */
+    public PeerConnection acquire(Address address) throws IOException {
+        PeerConnection connection = pollIdle(address);
+        return connection != null ? connection : openNegotiated(address);
+    }
+
+    /**
+     * Has the pool negotiate compression with nodes it has not negotiated with yet
+     * @param handshake What this node offers
+     * @param compression Compression to send to nodes which can inflate it
+     */
+    public void negotiateCompression(Handshake handshake, FrameCompression compression) {
+        /* Compression first, as openNegotiated reads the handshake before it */
+        this.compression = compression;
+        this.handshake = handshake;
+    }
+
+    /**
+     * @return A live idle link to the address, or null if there is none
+     */
+    private PeerConnection pollIdle(Address address) {
+        synchronized (idle) {
+            ArrayDeque<PeerConnection> connections = idle.get(address);
+            while (connections != null && !connections.isEmpty()) {
+                PeerConnection connection = connections.poll();
+                if (connection.isAlive()) {
+                    connection.setCompression(compressions.get(address));
+                    return connection;
+                }
+                connection.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Opens a new link which is not yet part of the pool
+     * @param address Peer to connect to
+     */
+    public PeerConnection open(Address address) throws IOException {
+        PeerConnection connection = new PeerConnection(address, codec, onReply, timeoutMillis);
+        synchronized (idle) {
+            connection.setCompression(compressions.get(address));
+        }
+        return connection;
+    }
+
+    /**
+     * Opens a link for the pool, first sending a HANDSHAKE over it unless compression was
+     * negotiated with the node already. A node predating HANDSHAKE drops the link on the
+     * unknown request, and is then sent payloads as they are on a new one
+     */
+    private PeerConnection openNegotiated(Address address) throws IOException {
+        Handshake ours = handshake;
+        boolean negotiate;
+        synchronized (idle) {
+            negotiate = ours != null && !negotiated.contains(address);
+        }
+        PeerConnection connection = open(address);
+        if (!negotiate) {
+            return connection;
+        }
+        byte[] offered = null;
+        try {
+            Message reply = connection.request(new Message(Message.Request.HANDSHAKE, ours));
+            if (reply.getRequest() == Message.Request.HANDSHAKE) {
+                offered = Handshake.of(reply.getMetadata()).getCompressions();
+            }
+        } catch (IOException e) {
+            connection.close();
+            connection = open(address);
+        }
+        FrameCompression supported = compression.isSupportedBy(offered) ? compression : null;
+        setCompression(address, supported);
+        connection.setCompression(supported);
+        return connection;
+    }
+
+    /**
+     * Returns a healthy link to the pool for reuse
+     * @param connection Link previously checked out, or opened by a handshake
+     */
+    public void release(PeerConnection connection) {
+        if (connection.isClosed()) {
+            return;
+        }
+        synchronized (idle) {
+            ArrayDeque<PeerConnection> connections = idle.computeIfAbsent(connection.getAddress(), k -> new ArrayDeque<>());
+            if (connections.size() < maxIdlePerPeer) {
+                connections.add(connection);
+                return;
+            }
+        }
+        connection.close();
+    }
+
+    /**
+     * Closes a link whose stream state can no longer be trusted
+     * @param connection Link previously checked out
+     */
+    public void discard(PeerConnection connection) {
+        connection.close();
+    }
+
+    /**
+     * Sends a message that expects no reply
+     */
+    public void sendOneWay(Address address, Message message) throws IOException {
+        release(send(address, message));
+    }
+
+    /**
+     * Sends a message and waits for the reply. A reply which fails to arrive is not
+     * retried, as the peer may already have handled the message
+     * @return The peer's reply
+     */
+    public Message sendTwoWay(Address address, Message message) throws IOException {
+        PeerConnection connection = send(address, message);
+        Message reply;
+        try {
+            reply = connection.receive();
+        } catch (IOException e) {
+            discard(connection);
+            throw e;
+        }
+        release(connection);
+        return reply;
+    }
+
+    /**
+     * Closes every idle link to a peer, for instance after it was removed
+     * @param address Peer to forget
+     */
+    public void closeAll(Address address) {
+        ArrayDeque<PeerConnection> connections;
+        synchronized (idle) {
+            connections = idle.remove(address);
+        }
+        if (connections != null) {
+            for (PeerConnection connection : connections) {
+                connection.close();
+            }
+        }
+    }
+
+    /**
+     * Writes a message on an idle link, or on a fresh one if there is none or writing to
+     * the idle one failed, as it does once the peer closed it
+     * @return The link the message was written on, checked out to the caller
+     */
+    private PeerConnection send(Address address, Message message) throws IOException {
+        PeerConnection connection = pollIdle(address);
+        if (connection != null) {
+            try {
+                connection.send(message);
+                return connection;
+            } catch (IOException e) {
+                discard(connection);
+            }
+        }
+        connection = openNegotiated(address);
+        try {
+            connection.send(message);
+        } catch (IOException e) {
+            discard(connection);
+            throw e;
+        }
+        return connection;
+    }
+}
@@ -0,0 +1,143 @@
+package node.communication;
+
+import java.io.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Compresses frame payloads of at least threshold bytes with the configured algorithm.
+ * A compressed payload is [algorithm][int uncompressed length][compressed bytes], and
+ * every node able to read the compressed flag can inflate every algorithm listed in
+ * SUPPORTED. Whether a peer can read the flag at all is negotiated in the
+ * REQUEST_CONNECTION handshake, or with a HANDSHAKE for nodes which are not peers.
+ */
+public class FrameCompression {
+    public static final byte DEFLATE = 1, GZIP = 2;
+    public static final byte[] SUPPORTED = {DEFLATE, GZIP};
+
+    private final byte algorithm;
+    private final int threshold;
+
+    /**
+     * @param algorithm DEFLATE, which favours speed, or GZIP, which favours size
+     * @param threshold Payloads smaller than this are sent as they are
+     */
+    public FrameCompression(byte algorithm, int threshold) {
+        this.algorithm = algorithm;
+        this.threshold = threshold;
+    }
+
+    /**
+     * Looks up a compression by its name in config.properties
+     * @param name NONE, DEFLATE or GZIP
+     * @return The compression, or null for NONE
+     */
+    public static FrameCompression fromConfig(String name, int threshold) {
+        switch (name.trim().toUpperCase()) {
+            case "DEFLATE":
+                return new FrameCompression(DEFLATE, threshold);
+            case "GZIP":
+                return new FrameCompression(GZIP, threshold);
+            default:
+                return null;
+        }
+    }
+
+    public byte getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @param algorithms Algorithms a peer announced it can inflate, possibly null
+     * @return True if this compression is among them
+     */
+    public boolean isSupportedBy(byte[] algorithms) {
+        if (algorithms != null) {
+            for (byte supported : algorithms) {
+                if (supported == algorithm) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param payload Encoded message
+     * @return The compressed payload, or null if the payload is below the threshold or
+     *         would not shrink
+     */
+    public byte[] compress(byte[] payload) throws IOException {
+        if (payload.length < threshold) {
+            return null;
+        }
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(payload.length / 2 + 16);
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(algorithm);
+        out.writeInt(payload.length);
+        if (algorithm == GZIP) {
+            try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+                gzip.write(payload);
+            }
+        } else {
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+            try {
+                deflater.setInput(payload);
+                deflater.finish();
+                byte[] chunk = new byte[Math.min(payload.length, 8192)];
+                while (!deflater.finished()) {
+                    out.write(chunk, 0, deflater.deflate(chunk));
+                }
+            } finally {
+                deflater.end();
+            }
+        }
+        out.flush();
+        return bytes.size() < payload.length ? bytes.toByteArray() : null;
+    }
+
+    /**
+     * Restores a payload compressed by any of the SUPPORTED algorithms
+     */
+    public static byte[] decompress(byte[] buf, int offset, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(buf, offset, length));
+        byte algorithm = in.readByte();
+        int originalLength = in.readInt();
+        if (originalLength < 0 || originalLength > Framing.MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length " + originalLength);
+        }
+        byte[] payload = new byte[originalLength];
+        switch (algorithm) {
+            case DEFLATE:
+                Inflater inflater = new Inflater(true);
+                try {
+                    inflater.setInput(buf, offset + 5, length - 5);
+                    int inflated = 0;
+                    while (inflated < originalLength && !inflater.finished()) {
+                        int n = inflater.inflate(payload, inflated, originalLength - inflated);
+                        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                            break;
+                        }
+                        inflated += n;
+                    }
+                    if (inflated != originalLength) {
+                        throw new EOFException("Truncated compressed frame");
+                    }
+                } catch (DataFormatException e) {
+                    throw new IOException(e);
+                } finally {
+                    inflater.end();
+                }
+                break;
+            case GZIP:
+                new DataInputStream(new GZIPInputStream(in)).readFully(payload);
+                break;
+            default:
+                throw new IOException("Unknown compression " + algorithm);
+        }
+        return payload;
+    }
+}
@@ -0,0 +1,127 @@
+package node.communication;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+
+/**
+ * Length-prefixed framing used on links between nodes.
+ *
+ * Every accepted link starts with the server writing the Java serialization stream header,
+ * which keeps one-shot object stream clients such as Client working unchanged. Framed
+ * clients instead open with PREFACE followed by the id of their MessageCodec, skip the
+ * server's header, and from then on exchange frames of [int length][payload] in both
+ * directions, encoded with that codec. The top bit of the length marks a payload
+ * compressed with FrameCompression, which is only sent to peers that negotiated it.
+ */
+public class Framing {
+    public static final byte[] PREFACE = {'J', 'D', 'D', 'B'};
+    public static final byte[] STREAM_HEADER = {
+            (byte) (ObjectStreamConstants.STREAM_MAGIC >> 8), (byte) ObjectStreamConstants.STREAM_MAGIC,
+            (byte) (ObjectStreamConstants.STREAM_VERSION >> 8), (byte) ObjectStreamConstants.STREAM_VERSION};
+    public static final int HEADER_LENGTH = 4;
+    public static final int MAX_FRAME_LENGTH = 64 * 1024 * 1024;
+    public static final int COMPRESSED_FLAG = 0x80000000;
+
+    /**
+     * Determines whether the first bytes of a link are the framed preface or an object stream
+     * @param firstBytes The first HEADER_LENGTH bytes sent by the client
+     * @return True if the client speaks the framed protocol
+     */
+    public static boolean isPreface(byte[] firstBytes){
+        for(int i = 0; i < PREFACE.length; i++){
+            if(firstBytes[i] != PREFACE[i]){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Looks up a codec by the id a client sent after the preface
+     */
+    public static MessageCodec codecFor(int id) throws IOException {
+        switch (id) {
+            case SerializedMessageCodec.ID:
+                return new SerializedMessageCodec();
+            case BinaryMessageCodec.ID:
+                return new BinaryMessageCodec();
+            default:
+                throw new IOException("Unknown codec " + id);
+        }
+    }
+
+    /**
+     * Looks up a codec by its name in config.properties
+     * @param name SERIALIZED or BINARY
+     */
+    public static MessageCodec codecFor(String name) {
+        if (name.trim().equalsIgnoreCase("SERIALIZED")) {
+            return new SerializedMessageCodec();
+        }
+        return new BinaryMessageCodec();
+    }
+
+    /**
+     * Encodes a message into a complete frame, ready to be written to a channel
+     * @param compression Compression for large payloads, or null if the peer cannot inflate them
+     */
+    public static ByteBuffer toFrame(MessageCodec codec, FrameCompression compression, Message message) throws IOException {
+        byte[] payload = codec.encode(message);
+        int header = payload.length;
+        byte[] compressed = compression == null ? null : compression.compress(payload);
+        if (compressed != null) {
+            payload = compressed;
+            header = payload.length | COMPRESSED_FLAG;
+        }
+        ByteBuffer frame = ByteBuffer.allocate(4 + payload.length);
+        frame.putInt(header).put(payload).flip();
+        return frame;
+    }
+
+    public static void writeFrame(DataOutputStream out, MessageCodec codec, FrameCompression compression, Message message) throws IOException {
+        byte[] payload = codec.encode(message);
+        byte[] compressed = compression == null ? null : compression.compress(payload);
+        if (compressed != null) {
+            out.writeInt(compressed.length | COMPRESSED_FLAG);
+            out.write(compressed);
+        } else {
+            out.writeInt(payload.length);
+            out.write(payload);
+        }
+        out.flush();
+    }
+
+    public static Message readFrame(DataInputStream in, MessageCodec codec) throws IOException {
+        int header = in.readInt();
+        byte[] payload = new byte[payloadLength(header)];
+        in.readFully(payload);
+        return decode(codec, header, payload, 0, payload.length);
+    }
+
+    /**
+     * @param header The int preceding a frame's payload
+     * @return Length of the payload as sent
+     */
+    public static int payloadLength(int header) throws IOException {
+        int length = header & ~COMPRESSED_FLAG;
+        if(length > MAX_FRAME_LENGTH){
+            throw new IOException("Invalid frame length " + length);
+        }
+        return length;
+    }
+
+    public static boolean isCompressed(int header) {
+        return (header & COMPRESSED_FLAG) != 0;
+    }
+
+    /**
+     * Decodes a frame's payload, inflating it first if the header marks it compressed
+     */
+    public static Message decode(MessageCodec codec, int header, byte[] buf, int offset, int length) throws IOException {
+        if (isCompressed(header)) {
+            byte[] payload = FrameCompression.decompress(buf, offset, length);
+            return codec.decode(payload, 0, payload.length);
+        }
+        return codec.decode(buf, offset, length);
+    }
+}
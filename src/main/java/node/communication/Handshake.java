@@ -0,0 +1,42 @@
+package node.communication;
+
+import java.io.Serializable;
+
+/**
+ * Metadata of REQUEST_CONNECTION and ACCEPT_CONNECTION between nodes which negotiate
+ * frame compression, and of HANDSHAKE, which negotiates it with nodes that are not
+ * peers. Older nodes send and expect a bare Address, which the binary codec still reads
+ * from the front of this layout.
+ */
+public class Handshake implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Address address;
+    private final byte[] compressions;
+
+    /**
+     * @param compressions FrameCompression algorithms this node can inflate, or null
+     */
+    public Handshake(Address address, byte[] compressions) {
+        this.address = address;
+        this.compressions = compressions;
+    }
+
+    /**
+     * @param metadata Metadata of a connection message, a Handshake or a bare Address
+     */
+    public static Handshake of(Object metadata) {
+        if (metadata instanceof Handshake) {
+            return (Handshake) metadata;
+        }
+        return new Handshake((Address) metadata, null);
+    }
+
+    public Address getAddress() {
+        return address;
+    }
+
+    public byte[] getCompressions() {
+        return compressions;
+    }
+}
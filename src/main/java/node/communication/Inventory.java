@@ -0,0 +1,30 @@
+package node.communication;
+
+import node.communication.utils.Hash256;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+
+/**
+ * A list of transaction keys together with the node they concern, either
+ * announced by it (INV) or requested by it (GETDATA)
+ */
+public class Inventory implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Address address;
+    private final ArrayList<Hash256> keys;
+
+    public Inventory(Address address, ArrayList<Hash256> keys){
+        this.address = address;
+        this.keys = keys;
+    }
+
+    public Address getAddress(){
+        return address;
+    }
+
+    public ArrayList<Hash256> getKeys(){
+        return keys;
+    }
+}
@@ -0,0 +1,205 @@
+package node.communication;
+
+import node.communication.utils.Hash256;
+
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Invertible Bloom lookup table over SHA-256 transaction keys, used to reconcile two
+ * mempools with a message proportional to their difference rather than their size.
+ *
+ * Every key is added to one cell in each of HASH_COUNT equal partitions of the table.
+ * A cell holds the XOR of its keys, the XOR of a checksum of its keys and how many keys
+ * it holds. Subtracting the receiver's table from the sender's cancels every key both
+ * hold, and the keys left over can be peeled out one pure cell at a time as long as the
+ * table has roughly one and a half cells per differing key.
+ *
+ * A table received from a peer may have been crafted, so a cell only counts as pure if
+ * its key belongs in it, and decoding gives up after as many keys as the table has cells.
+ */
+public class MempoolSketch implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public static final int HASH_COUNT = 4;
+    private static final int MIN_CELLS = 12;
+    /* 11 MB of sums, enough for a difference of 170,000 keys */
+    public static final int MAX_CELLS = 1 << 18;
+    private static final int KEY_WORDS = 4;
+
+    private final int cells;
+    private final long[] keySums;
+    private final long[] hashSums;
+    private final int[] counts;
+
+    /**
+     * @param cells Size of the table, rounded up to a multiple of HASH_COUNT and kept
+     *              between MIN_CELLS and MAX_CELLS
+     */
+    public MempoolSketch(int cells) {
+        this.cells = Math.min(MAX_CELLS, Math.max(MIN_CELLS, (cells + HASH_COUNT - 1) / HASH_COUNT * HASH_COUNT));
+        this.keySums = new long[this.cells * KEY_WORDS];
+        this.hashSums = new long[this.cells];
+        this.counts = new int[this.cells];
+    }
+
+    /**
+     * Rebuilds a table received over the wire
+     * @throws IllegalArgumentException If the table is not of a size this class builds
+     */
+    public MempoolSketch(long[] keySums, long[] hashSums, int[] counts) {
+        if (!isValidSize(counts.length) || keySums.length != counts.length * KEY_WORDS || hashSums.length != counts.length) {
+            throw new IllegalArgumentException("Not a sketch of " + counts.length + " cells");
+        }
+        this.cells = counts.length;
+        this.keySums = keySums;
+        this.hashSums = hashSums;
+        this.counts = counts;
+    }
+
+    /**
+     * @return True for the sizes the constructor rounds to, which a table read from a peer must have
+     */
+    public static boolean isValidSize(int cells) {
+        return cells >= MIN_CELLS && cells <= MAX_CELLS && cells % HASH_COUNT == 0;
+    }
+
+    /**
+     * @param expectedDifference Keys expected to be held by only one of the two mempools
+     * @return A table expected to decode that difference
+     */
+    public static MempoolSketch forDifference(int expectedDifference) {
+        return new MempoolSketch((int) Math.ceil(expectedDifference * 1.5) + 30);
+    }
+
+    public void addAll(Collection<Hash256> keys) {
+        for (Hash256 key : keys) {
+            add(key);
+        }
+    }
+
+    public void add(Hash256 key) {
+        long[] words = new long[KEY_WORDS];
+        for (int w = 0; w < KEY_WORDS; w++) {
+            words[w] = key.getWord(w);
+        }
+        toggle(words, 1);
+    }
+
+    /**
+     * Subtracts another table of the same size from this one, leaving only the keys
+     * which were added to exactly one of them
+     */
+    public void subtract(MempoolSketch other) {
+        if (other.cells != cells) {
+            throw new IllegalArgumentException("Sketches differ in size: " + cells + " and " + other.cells);
+        }
+        for (int i = 0; i < keySums.length; i++) {
+            keySums[i] ^= other.keySums[i];
+        }
+        for (int c = 0; c < cells; c++) {
+            hashSums[c] ^= other.hashSums[c];
+            counts[c] -= other.counts[c];
+        }
+    }
+
+    /**
+     * Peels a subtracted table apart. The table is emptied in the process
+     * @param onlyHere  Receives keys which were only in this table
+     * @param onlyThere Receives keys which were only in the subtracted table
+     * @return False if the difference was too large for the table to be decoded fully
+     */
+    public boolean decode(List<Hash256> onlyHere, List<Hash256> onlyThere) {
+        boolean peeled = true;
+        int keys = 0;
+        while (peeled) {
+            peeled = false;
+            for (int c = 0; c < cells; c++) {
+                if (isPure(c)) {
+                    /* A table holds fewer differing keys than cells, unless it was crafted to loop */
+                    if (++keys > cells) {
+                        return false;
+                    }
+                    long[] words = new long[KEY_WORDS];
+                    System.arraycopy(keySums, c * KEY_WORDS, words, 0, KEY_WORDS);
+                    int count = counts[c];
+                    (count == 1 ? onlyHere : onlyThere).add(Hash256.of(words[0], words[1], words[2], words[3]));
+                    toggle(words, -count);
+                    peeled = true;
+                }
+            }
+        }
+        for (int c = 0; c < cells; c++) {
+            if (counts[c] != 0 || hashSums[c] != 0) {
+                return false;
+            }
+        }
+        for (long keySum : keySums) {
+            if (keySum != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    public int getCells() {
+        return cells;
+    }
+
+    public long[] getKeySums() {
+        return keySums;
+    }
+
+    public long[] getHashSums() {
+        return hashSums;
+    }
+
+    public int[] getCounts() {
+        return counts;
+    }
+
+    /**
+     * A cell holding one key, which must also be one of the key's own cells, as peeling it
+     * would otherwise leave the cell as it is
+     */
+    private boolean isPure(int c) {
+        if (counts[c] != 1 && counts[c] != -1) {
+            return false;
+        }
+        long[] words = new long[KEY_WORDS];
+        System.arraycopy(keySums, c * KEY_WORDS, words, 0, KEY_WORDS);
+        return hashSums[c] == checksum(words) && cell(words[0], c / (cells / HASH_COUNT)) == c;
+    }
+
+    /**
+     * @param i Partition of the table, below HASH_COUNT
+     * @return The key's cell in that partition
+     */
+    private int cell(long firstWord, int i) {
+        int partition = cells / HASH_COUNT;
+        return i * partition + (int) Long.remainderUnsigned(mix(firstWord + (i + 1) * 0x9E3779B97F4A7C15L), partition);
+    }
+
+    private void toggle(long[] words, int delta) {
+        long checksum = checksum(words);
+        for (int i = 0; i < HASH_COUNT; i++) {
+            int c = cell(words[0], i);
+            for (int w = 0; w < KEY_WORDS; w++) {
+                keySums[c * KEY_WORDS + w] ^= words[w];
+            }
+            hashSums[c] ^= checksum;
+            counts[c] += delta;
+        }
+    }
+
+    private static long checksum(long[] words) {
+        return mix(words[1] ^ mix(words[2] ^ mix(words[3] ^ mix(words[0]))));
+    }
+
+    private static long mix(long z) {
+        z = (z ^ (z >>> 33)) * 0xff51afd7ed558ccdL;
+        z = (z ^ (z >>> 33)) * 0xc4ceb9fe1a85ec53L;
+        return z ^ (z >>> 33);
+    }
+}
@@ -19,6 +19,7 @@ public class Message implements Serializable {
         this.metadata = metadata;
     }
 
+    /* BinaryMessageCodec gives every request a fixed wire id, so a new one needs an id there */
     public enum Request{
         ADD_BLOCK,
         REQUEST_BLOCK,
@@ -26,18 +27,39 @@ public class Message implements Serializable {
         ACCEPT_CONNECTION,
         REJECT_CONNECTION,
         QUERY_PEERS,
+        QUERY_STATS,
         PING,
         REQUEST_QUORUM_CONNECTION,
         ADD_TRANSACTION,
+        TX_BATCH,
+        INV,
+        GETDATA,
 
         RECEIVE_MEMPOOL,
+        RECEIVE_MEMPOOL_SKETCH,
+        REQUEST_MEMPOOL,
         QUORUM_READY,
         CONSTRUCT_BLOCK,
         VOTE_BLOCK,
         QUORUM_COMPLETE,
         REQUEST_TRANSACTION,
+        RECEIVE_TRANSACTIONS,
 
-        RECEIVE_SKELETON
+        RECEIVE_SKELETON,
+        GET_BLOCK_TRANSACTIONS,
+        BLOCK_TRANSACTIONS,
+        GET_FULL_BLOCK,
+
+        DISCONNECT,
+        BLOCK_VOTE,
+        SHARD_VOTE_BLOCK,
+        SHARD_ADD_BLOCK,
+        QUERY_TRANSACTION,
+        QUERY_BLOCK,
+        SNAPSHOT_MANIFEST,
+        SNAPSHOT_CHUNK,
+        SUBMIT_TRANSACTION,
+        HANDSHAKE
     }
 
     public Request getRequest(){
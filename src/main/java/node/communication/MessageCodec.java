@@ -0,0 +1,20 @@
+package node.communication;
+
+import java.io.IOException;
+
+/**
+ * Turns a Message into the payload of a single frame and back.
+ * A framed client names its codec right after the preface, so nodes using
+ * different codecs can still talk to each other.
+ */
+public interface MessageCodec {
+
+    /**
+     * @return Identifier sent after the preface
+     */
+    byte getId();
+
+    byte[] encode(Message message) throws IOException;
+
+    Message decode(byte[] payload, int offset, int length) throws IOException;
+}
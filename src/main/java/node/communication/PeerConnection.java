@@ -0,0 +1,143 @@
+package node.communication;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.function.Consumer;
+
+/**
+ * A long-lived link to a single peer. Messages are written and read in order over
+ * the same socket, so one link carries many requests over its lifetime instead of
+ * paying a TCP handshake per message.
+ *
+ * The socket belongs to a channel only so that isAlive() can look for the peer's FIN
+ * without blocking; messages are written and read through the socket's streams.
+ */
+public class PeerConnection {
+    private final Address address;
+    private final SocketChannel channel;
+    private final Socket socket;
+    private final DataOutputStream out;
+    private final DataInputStream in;
+    private final MessageCodec codec;
+    private final Consumer<Address> onReceive;
+    private FrameCompression compression;
+
+    /**
+     * Opens a new link to the given address
+     * @param address Peer to connect to
+     * @param codec Wire format for the messages on this link
+     * @param onReceive Told the peer's address whenever a message arrives from it, may be null
+     * @param timeoutMillis Longest connecting and the server's greeting may take, 0 to wait indefinitely
+     * @throws IOException If the peer cannot be reached in time
+     */
+    public PeerConnection(Address address, MessageCodec codec, Consumer<Address> onReceive, int timeoutMillis) throws IOException {
+        this.address = address;
+        this.codec = codec;
+        this.onReceive = onReceive;
+        this.channel = SocketChannel.open();
+        this.socket = channel.socket();
+        try {
+            socket.connect(new InetSocketAddress(address.getHost(), address.getPort()), timeoutMillis);
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(timeoutMillis);
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            out.write(Framing.PREFACE);
+            out.write(codec.getId());
+            out.flush();
+            /* Skip the object stream header every server writes for legacy clients */
+            in.readFully(new byte[Framing.HEADER_LENGTH]);
+            socket.setSoTimeout(0);
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    public Address getAddress(){
+        return address;
+    }
+
+    /**
+     * @param compression Compression negotiated with this peer, or null to send payloads as they are
+     */
+    public void setCompression(FrameCompression compression){
+        this.compression = compression;
+    }
+
+    /**
+     * Writes a message to the peer as a single frame
+     * @param message Message to send
+     */
+    public void send(Message message) throws IOException {
+        Framing.writeFrame(out, codec, compression, message);
+    }
+
+    /**
+     * Blocks until the next message from the peer arrives
+     * @return Message received
+     */
+    public Message receive() throws IOException {
+        Message message = Framing.readFrame(in, codec);
+        if (onReceive != null) {
+            onReceive.accept(address);
+        }
+        return message;
+    }
+
+    /**
+     * @param millis Longest receive() may block before failing, 0 to wait indefinitely
+     */
+    public void setTimeout(int millis) throws IOException {
+        socket.setSoTimeout(millis);
+    }
+
+    /**
+     * Sends a message and waits for its reply
+     * @param message Message to send
+     * @return The peer's reply
+     */
+    public Message request(Message message) throws IOException {
+        send(message);
+        return receive();
+    }
+
+    public boolean isClosed(){
+        return socket.isClosed();
+    }
+
+    /**
+     * Checks, without blocking, that the peer has not closed the link, as it does when it
+     * restarts. Writing to such a link still succeeds, into our own socket buffer, and the
+     * message is lost. Only meant for idle links, with no exchange under way
+     * @return False if the link is closed, or holds bytes nobody asked for
+     */
+    public boolean isAlive(){
+        if (socket.isClosed()) {
+            return false;
+        }
+        try {
+            if (in.available() > 0) {
+                return false;
+            }
+            channel.configureBlocking(false);
+            try {
+                return channel.read(ByteBuffer.allocate(1)) == 0;
+            } finally {
+                channel.configureBlocking(true);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    public void close(){
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package node.communication;
+
+import java.io.IOException;
+
+/**
+ * Sends replies back over the link a request arrived on, independent of the transport that carried it
+ */
+public interface Responder {
+    void reply(Message message) throws IOException;
+
+    /**
+     * @return The node which named itself on this link, or null if none did yet
+     */
+    default Address getPeer() {
+        return null;
+    }
+
+    /**
+     * Remembers the node on the other end, so later messages on the link can be credited to it
+     */
+    default void setPeer(Address peer) {
+    }
+}
@@ -0,0 +1,35 @@
+package node.communication;
+
+import java.io.*;
+
+/**
+ * The original wire format: every message is written with a fresh ObjectOutputStream,
+ * class descriptors included
+ */
+public class SerializedMessageCodec implements MessageCodec {
+    public static final byte ID = 0;
+
+    @Override
+    public byte getId() {
+        return ID;
+    }
+
+    @Override
+    public byte[] encode(Message message) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream oout = new ObjectOutputStream(bytes);
+        oout.writeObject(message);
+        oout.flush();
+        return bytes.toByteArray();
+    }
+
+    @Override
+    public Message decode(byte[] payload, int offset, int length) throws IOException {
+        try {
+            ObjectInputStream oin = new ObjectInputStream(new ByteArrayInputStream(payload, offset, length));
+            return (Message) oin.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+}
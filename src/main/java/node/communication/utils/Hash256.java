@@ -0,0 +1,185 @@
+package node.communication.utils;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * An immutable SHA-256 hash, held as four big-endian longs rather than the 64 character hex
+ * string it used to travel as, so comparing, hashing and storing a key costs a few long
+ * operations and 32 bytes. Hashes order like their lowercase hex strings do, so sorting
+ * either gives the same order. Hex is only produced for logs and clients, by toString.
+ */
+public final class Hash256 implements Serializable, Comparable<Hash256> {
+    private static final long serialVersionUID = 1L;
+
+    public static final int BYTES = 32;
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private final long w0, w1, w2, w3;
+
+    private Hash256(long w0, long w1, long w2, long w3) {
+        this.w0 = w0;
+        this.w1 = w1;
+        this.w2 = w2;
+        this.w3 = w3;
+    }
+
+    /**
+     * @return The hash made of four longs, the most significant first
+     */
+    public static Hash256 of(long w0, long w1, long w2, long w3) {
+        return new Hash256(w0, w1, w2, w3);
+    }
+
+    /**
+     * @param bytes At least 32 bytes, of which the first 32 are the hash
+     */
+    public static Hash256 of(byte[] bytes) {
+        return of(bytes, 0);
+    }
+
+    public static Hash256 of(byte[] bytes, int offset) {
+        return new Hash256(readLong(bytes, offset), readLong(bytes, offset + 8),
+                readLong(bytes, offset + 16), readLong(bytes, offset + 24));
+    }
+
+    private static long readLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (bytes[offset + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * @return True if the string is a 64 character hex hash, in either case
+     */
+    public static boolean isHex(String hex) {
+        if (hex == null || hex.length() != BYTES * 2) {
+            return false;
+        }
+        for (int i = 0; i < hex.length(); i++) {
+            if (Character.digit(hex.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @throws IllegalArgumentException If the string is not a 64 character hex hash
+     */
+    public static Hash256 fromHex(String hex) {
+        if (!isHex(hex)) {
+            throw new IllegalArgumentException("Not a SHA-256 hex hash: " + hex);
+        }
+        long[] words = new long[4];
+        for (int i = 0; i < BYTES * 2; i++) {
+            words[i / 16] = (words[i / 16] << 4) | Character.digit(hex.charAt(i), 16);
+        }
+        return new Hash256(words[0], words[1], words[2], words[3]);
+    }
+
+    /**
+     * @param index 0 for the most significant of the four longs, up to 3
+     */
+    public long getWord(int index) {
+        switch (index) {
+            case 0:
+                return w0;
+            case 1:
+                return w1;
+            case 2:
+                return w2;
+            case 3:
+                return w3;
+            default:
+                throw new IndexOutOfBoundsException("Word " + index + " of 4");
+        }
+    }
+
+    /**
+     * @param bytes How many leading bytes, up to 8
+     * @return The leading bytes of the hash as an unsigned number
+     */
+    public long leadingBytes(int bytes) {
+        return w0 >>> (64 - 8 * bytes);
+    }
+
+    public byte[] toBytes() {
+        byte[] bytes = new byte[BYTES];
+        writeTo(bytes, 0);
+        return bytes;
+    }
+
+    /**
+     * Writes the 32 bytes of the hash
+     */
+    public void writeTo(byte[] bytes, int offset) {
+        for (int w = 0; w < 4; w++) {
+            long word = getWord(w);
+            for (int i = 0; i < 8; i++) {
+                bytes[offset + w * 8 + i] = (byte) (word >>> (56 - 8 * i));
+            }
+        }
+    }
+
+    /**
+     * Writes the 64 ASCII characters of the lowercase hex string
+     */
+    public void writeHex(byte[] ascii, int offset) {
+        for (int w = 0; w < 4; w++) {
+            long word = getWord(w);
+            for (int i = 0; i < 16; i++) {
+                ascii[offset + w * 16 + i] = HEX[(int) (word >>> (60 - 4 * i)) & 0xF];
+            }
+        }
+    }
+
+    /**
+     * @return The lowercase hex string
+     */
+    public String toHex() {
+        byte[] ascii = new byte[BYTES * 2];
+        writeHex(ascii, 0);
+        return new String(ascii, StandardCharsets.US_ASCII);
+    }
+
+    @Override
+    public String toString() {
+        return toHex();
+    }
+
+    /* The words are uniformly distributed already, so one of them is a fine hash code */
+    @Override
+    public int hashCode() {
+        return (int) (w0 ^ (w0 >>> 32));
+    }
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if (!(other instanceof Hash256)) {
+            return false;
+        }
+        Hash256 hash = (Hash256) other;
+        return w0 == hash.w0 && w1 == hash.w1 && w2 == hash.w2 && w3 == hash.w3;
+    }
+
+    @Override
+    public int compareTo(Hash256 other) {
+        int compared = Long.compareUnsigned(w0, other.w0);
+        if (compared == 0) {
+            compared = Long.compareUnsigned(w1, other.w1);
+        }
+        if (compared == 0) {
+            compared = Long.compareUnsigned(w2, other.w2);
+        }
+        if (compared == 0) {
+            compared = Long.compareUnsigned(w3, other.w3);
+        }
+        return compared;
+    }
+}
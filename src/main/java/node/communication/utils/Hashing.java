@@ -2,51 +2,87 @@ package node.communication.utils;
 
 import node.blockchain.Block;
 
-import java.math.BigInteger;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashSet;
-import java.util.List;
-
+import java.util.Arrays;
 
+/**
+ * SHA-256 hashing of transactions and blocks. Each thread reuses its own MessageDigest,
+ * as looking one up costs more than hashing a transaction.
+ */
 public class Hashing {
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    /* Keys of a block are hashed this many at a time */
+    private static final int KEYS_PER_UPDATE = 64;
+
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    });
+    private static final ThreadLocal<byte[]> KEY_BUFFER = ThreadLocal.withInitial(() -> new byte[KEYS_PER_UPDATE * Hash256.BYTES * 2]);
 
-    //toHexString(getSHA(s3))
-    public static byte[] getSHA(String input) throws NoSuchAlgorithmException
-    {
-        MessageDigest md = MessageDigest.getInstance("SHA-256");
-        return md.digest(input.getBytes(StandardCharsets.UTF_8));
+    private static MessageDigest digest() {
+        MessageDigest md = DIGEST.get();
+        md.reset();
+        return md;
     }
 
-    public static String toHexString(byte[] hash)
-    {
-        BigInteger number = new BigInteger(1, hash);
-        StringBuilder hexString = new StringBuilder(number.toString(16));
+    public static byte[] getSHA(String input) {
+        return digest().digest(input.getBytes(StandardCharsets.UTF_8));
+    }
 
-        // Pad with leading zeros
-        while (hexString.length() < 64)
-        {
-            hexString.insert(0, '0');
-        }
+    public static byte[] getSHA(byte[] input) {
+        return digest().digest(input);
+    }
+
+    /**
+     * @return The SHA-256 hash of a transaction's data, its mempool key
+     */
+    public static Hash256 hash(String input) {
+        return Hash256.of(getSHA(input));
+    }
 
-        return hexString.toString();
+    public static String toHexString(byte[] hash) {
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[2 * i] = HEX[(hash[i] >>> 4) & 0xF];
+            hex[2 * i + 1] = HEX[hash[i] & 0xF];
+        }
+        return new String(hex);
     }
 
-    public static String getSHAString(String input) throws NoSuchAlgorithmException {
-        return toHexString(getSHA(input));
+    public static String getSHAString(String input) {
+        return hash(input).toHex();
     }
 
-    public static String getBlockHash(Block block, int nonce) throws NoSuchAlgorithmException {
-        List<String> txList = new ArrayList<>(block.getTxList().keySet());
-        Collections.sort(txList);
-        String txString = "";
-        for(String key : txList){
-            txString = txString.concat(key);
+    /**
+     * Hashes the previous block's hash, the block id, the nonce and the block's keys in
+     * sorted order, all as the hex text they were once concatenated into. The text is fed
+     * to the digest a batch of keys at a time instead of being built, so the hash matches
+     * the chains already out there and costs linear time
+     */
+    public static Hash256 getBlockHash(Block block, int nonce) {
+        Hash256[] keys = block.getTxList().keySet().toArray(new Hash256[0]);
+        Arrays.sort(keys);
+        MessageDigest md = digest();
+        Hash256 prevBlockHash = block.getPrevBlockHash();
+        String header = (prevBlockHash == null ? "" : prevBlockHash.toHex()) + block.getBlockId() + nonce;
+        md.update(header.getBytes(StandardCharsets.UTF_8));
+        byte[] buffer = KEY_BUFFER.get();
+        int length = 0;
+        for (Hash256 key : keys) {
+            if (length == buffer.length) {
+                md.update(buffer, 0, length);
+                length = 0;
+            }
+            key.writeHex(buffer, length);
+            length += Hash256.BYTES * 2;
         }
-        String blockString = block.getPrevBlockHash().concat(String.valueOf(block.getBlockId())).concat(String.valueOf(nonce).concat(txString));
-        return getSHAString(blockString);
+        md.update(buffer, 0, length);
+        return Hash256.of(md.digest());
     }
 }
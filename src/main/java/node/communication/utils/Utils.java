@@ -6,7 +6,10 @@ import node.communication.Address;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Properties;
 import java.util.Set;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Utils {
 
@@ -19,11 +22,39 @@ public class Utils {
         return false;
     }
 
-    public static HashMap<String, Transaction> deepCloneHashmap(HashMap<String, Transaction> givenHashMap){
+    public static HashMap<Hash256, Transaction> deepCloneHashmap(HashMap<Hash256, Transaction> givenHashMap){
         HashMap newHashMap = new HashMap<>();
-        for(Map.Entry<String, Transaction> entry : givenHashMap.entrySet()){
+        for(Map.Entry<Hash256, Transaction> entry : givenHashMap.entrySet()){
             newHashMap.put(entry.getKey(), entry.getValue());
         }
         return newHashMap;
     }
+
+    /**
+     * Reads an optional integer setting, falling back to a default when it is absent
+     * @param prop Loaded config.properties
+     * @param key Setting name
+     * @param defaultValue Value used if the setting is missing
+     * @return The configured or default value
+     */
+    public static int getIntProperty(Properties prop, String key, int defaultValue){
+        String value = prop.getProperty(key);
+        if(value == null || value.trim().isEmpty()){
+            return defaultValue;
+        }
+        return Integer.parseInt(value.trim());
+    }
+
+    /**
+     * Names the threads of an executor and lets the process exit while they are idle
+     * @param name Prefix of the thread names, followed by a count
+     */
+    public static ThreadFactory daemonThreads(String name){
+        AtomicInteger created = new AtomicInteger();
+        return task -> {
+            Thread thread = new Thread(task, name + "-" + created.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
 }
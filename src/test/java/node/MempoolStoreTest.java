@@ -0,0 +1,118 @@
+package node;
+
+import node.blockchain.Transaction;
+import node.communication.utils.Hash256;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static node.communication.utils.Hashing.hash;
+import static org.junit.jupiter.api.Assertions.*;
+
+class MempoolStoreTest {
+
+    @Test
+    void heapStoreMatchesReference() {
+        for (long seed = 0; seed < 5; seed++) {
+            runAgainstReference(new HeapMempoolStore(), seed);
+        }
+    }
+
+    /* Slabs of 256 bytes, so records keep crossing into new slabs and emptied ones are recycled */
+    @Test
+    void offHeapStoreMatchesReference() {
+        for (long seed = 0; seed < 5; seed++) {
+            runAgainstReference(new OffHeapMempoolStore(256), seed);
+        }
+    }
+
+    @Test
+    void offHeapStoreReleasesEmptiedSlabs() {
+        OffHeapMempoolStore store = new OffHeapMempoolStore(256);
+        long empty = store.offHeapBytes();
+        for (int i = 0; i < 2000; i++) {
+            store.putIfAbsent(hash("tx" + i), new Transaction(data(i)), i);
+        }
+        assertTrue(store.offHeapBytes() > empty);
+        for (int i = 0; i < 2000; i++) {
+            assertEquals(data(i).length(), store.remove(hash("tx" + i)));
+        }
+        store.purge();
+        assertEquals(0, store.size());
+        assertNull(store.oldest(Long.MAX_VALUE));
+        /* The grown tables and one spare slab per stripe stay */
+        assertTrue(store.offHeapBytes() < empty + 2000 * 40L + 16 * 256);
+    }
+
+    /**
+     * Applies the same random operations to the store and to a map in arrival order,
+     * comparing every answer, and the whole contents every hundred operations
+     */
+    private static void runAgainstReference(MempoolStore store, long seed) {
+        Random random = new Random(seed);
+        LinkedHashMap<Hash256, Transaction> reference = new LinkedHashMap<>();
+        HashMap<Hash256, Long> arrivals = new HashMap<>();
+        long clock = 0;
+        for (int operation = 0; operation < 20000; operation++) {
+            Hash256 key = hash("tx" + random.nextInt(3000));
+            int choice = random.nextInt(100);
+            if (choice < 45) {
+                Transaction transaction = new Transaction(data(random.nextInt(3000)));
+                clock++;
+                boolean absent = !reference.containsKey(key);
+                assertEquals(absent, store.putIfAbsent(key, transaction, clock), "put, seed " + seed);
+                if (absent) {
+                    reference.put(key, transaction);
+                    arrivals.put(key, clock);
+                }
+            } else if (choice < 75) {
+                Transaction removed = reference.remove(key);
+                arrivals.remove(key);
+                assertEquals(removed == null ? -1 : BlockTrigger.sizeOf(removed), store.remove(key), "remove, seed " + seed);
+            } else if (choice < 85) {
+                Transaction expected = reference.get(key);
+                Transaction stored = store.get(key);
+                assertEquals(expected == null ? null : expected.getData(), stored == null ? null : stored.getData());
+                assertEquals(expected != null, store.contains(key));
+            } else if (choice < 95) {
+                long arrivedBefore = clock - random.nextInt(200);
+                Hash256 oldest = reference.isEmpty() ? null : reference.keySet().iterator().next();
+                if (oldest != null && arrivals.get(oldest) >= arrivedBefore) {
+                    oldest = null;
+                }
+                assertEquals(oldest, store.oldest(arrivedBefore), "oldest, seed " + seed);
+            } else {
+                store.purge();
+            }
+            assertEquals(reference.size(), store.size());
+            if (operation % 100 == 0) {
+                assertSameContents(reference, store);
+            }
+        }
+        assertSameContents(reference, store);
+    }
+
+    private static void assertSameContents(Map<Hash256, Transaction> reference, MempoolStore store) {
+        assertEquals(reference.keySet(), new HashSet<>(store.keys()));
+        HashMap<Hash256, String> listed = new HashMap<>();
+        store.forEach((key, transaction) -> assertNull(listed.put(key, transaction.getData())));
+        HashMap<Hash256, String> expected = new HashMap<>();
+        reference.forEach((key, transaction) -> expected.put(key, transaction.getData()));
+        assertEquals(expected, listed);
+    }
+
+    /* Lengths from a few bytes to past a slab, some with characters wider than a byte */
+    private static String data(int i) {
+        StringBuilder data = new StringBuilder("tx" + i);
+        int repeat = i % 7 == 0 ? 60 : i % 5;
+        for (int j = 0; j < repeat; j++) {
+            data.append(i % 3 == 0 ? "é€" : "data");
+        }
+        return data.toString();
+    }
+}
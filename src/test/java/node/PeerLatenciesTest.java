@@ -0,0 +1,38 @@
+package node;
+
+import node.communication.Address;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PeerLatenciesTest {
+
+    /* Probing a large network records nodes which never become peers */
+    @Test
+    void probedNodesAreForgottenAtCapacity() {
+        PeerLatencies latencies = new PeerLatencies(8);
+        Address peer = new Address(9000, "localhost");
+        latencies.record(peer, 1000);
+        for (int port = 9001; port < 10000; port++) {
+            latencies.record(new Address(port, "localhost"), 2000);
+            /* Reading a peer's latency keeps it ahead of the probed nodes */
+            assertEquals(1000, latencies.get(peer));
+        }
+        assertEquals(8, latencies.size());
+        assertEquals(-1, latencies.get(new Address(9001, "localhost")));
+        assertEquals(2000, latencies.get(new Address(9999, "localhost")));
+
+        latencies.remove(peer);
+        assertEquals(-1, latencies.get(peer));
+        assertEquals(7, latencies.size());
+    }
+
+    @Test
+    void samplesAreSmoothed() {
+        PeerLatencies latencies = new PeerLatencies(8);
+        Address peer = new Address(9000, "localhost");
+        latencies.record(peer, 1000);
+        latencies.record(peer, 2000);
+        assertEquals(1200, latencies.get(peer));
+    }
+}
@@ -0,0 +1,179 @@
+package node.blockchain;
+
+import node.communication.utils.Hash256;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.stream.Stream;
+
+import static node.communication.utils.Hashing.getBlockHash;
+import static node.communication.utils.Hashing.hash;
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlockStoreTest {
+    private final ScheduledExecutorService flusher = Executors.newSingleThreadScheduledExecutor();
+
+    @TempDir
+    Path directory;
+
+    @AfterEach
+    void stopFlusher() {
+        flusher.shutdownNow();
+    }
+
+    @Test
+    void reopenedStoreHoldsEveryBlock() throws IOException {
+        BlockStore store = open(directory);
+        for (int height = 0; height < 40; height++) {
+            store.add(block(height));
+        }
+        store.close();
+
+        store = open(directory);
+        assertEquals(0, store.base());
+        assertEquals(40, store.size());
+        for (int height = 0; height < 40; height++) {
+            assertBlock(height, store);
+        }
+        store.close();
+    }
+
+    @Test
+    void tornRecordIsCutOff() throws IOException {
+        BlockStore store = open(directory);
+        for (int height = 0; height < 10; height++) {
+            store.add(block(height));
+        }
+        store.close();
+        Files.write(lastSegment(directory), new byte[]{0, 0, 1, 0, 7, 7, 7, 7, 1, 2},
+                StandardOpenOption.APPEND);
+
+        store = open(directory);
+        assertEquals(10, store.size());
+        store.add(block(10));
+        store.close();
+
+        store = open(directory);
+        assertEquals(11, store.size());
+        for (int height = 0; height < 11; height++) {
+            assertBlock(height, store);
+        }
+        store.close();
+    }
+
+    @Test
+    void restartReplacesTheChain() throws IOException {
+        BlockStore store = open(directory);
+        for (int height = 0; height < 10; height++) {
+            store.add(block(height));
+        }
+        store.restart(blocks(100, 5));
+        assertRestarted(store);
+        store.close();
+
+        store = open(directory);
+        assertRestarted(store);
+        store.add(block(105));
+        assertBlock(105, store);
+        store.close();
+    }
+
+    /* A crash after the restart's segment was complete, but before the old ones were deleted */
+    @Test
+    void interruptedRestartIsFinishedOnOpen() throws IOException {
+        BlockStore store = open(directory);
+        for (int height = 0; height < 10; height++) {
+            store.add(block(height));
+        }
+        store.close();
+        Path other = Files.createDirectory(directory.resolve("other"));
+        BlockStore snapshot = open(other);
+        snapshot.restart(blocks(100, 5));
+        snapshot.close();
+        Files.copy(lastSegment(other), directory.resolve(lastSegment(other).getFileName() + ".restart"));
+        Files.write(directory.resolve("segment-0000000200.log.tmp"), new byte[]{1, 2, 3});
+
+        store = open(directory);
+        assertRestarted(store);
+        store.close();
+        assertFalse(Files.exists(directory.resolve("segment-0000000000.log")));
+        assertFalse(Files.exists(directory.resolve("segment-0000000200.log.tmp")));
+    }
+
+    /* A crash while the restart's segment was still being written */
+    @Test
+    void incompleteRestartIsDropped() throws IOException {
+        BlockStore store = open(directory);
+        for (int height = 0; height < 10; height++) {
+            store.add(block(height));
+        }
+        store.close();
+        Files.write(directory.resolve("segment-0000000100.log.tmp"), new byte[]{1, 2, 3});
+
+        store = open(directory);
+        assertEquals(0, store.base());
+        assertEquals(10, store.size());
+        assertBlock(9, store);
+        store.close();
+        assertFalse(Files.exists(directory.resolve("segment-0000000100.log.tmp")));
+    }
+
+    private BlockStore open(Path path) throws IOException {
+        return new BlockStore(path, 1024, 4, 10, 2, flusher);
+    }
+
+    private static void assertRestarted(BlockStore store) {
+        assertEquals(100, store.base());
+        assertEquals(105, store.size());
+        for (int height = 100; height < 105; height++) {
+            assertBlock(height, store);
+        }
+        assertEquals(-1, store.findBlock(getBlockHash(block(3), 0)));
+        assertNull(store.findTransaction(hash("tx3-0")));
+    }
+
+    private static void assertBlock(int height, BlockStore store) {
+        Block expected = block(height);
+        Block stored = store.get(height);
+        assertEquals(height, stored.getBlockId());
+        assertEquals(expected.getTxList().keySet(), stored.getTxList().keySet());
+        assertEquals(height, store.findBlock(getBlockHash(expected, 0)));
+        for (Hash256 key : expected.getTxList().keySet()) {
+            assertEquals(height, store.findTransaction(key)[0]);
+        }
+    }
+
+    private static Path lastSegment(Path path) throws IOException {
+        try (Stream<Path> files = Files.list(path)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(".log"))
+                    .sorted().reduce((first, second) -> second).orElseThrow(IllegalStateException::new);
+        }
+    }
+
+    private static List<Block> blocks(int first, int count) {
+        ArrayList<Block> blocks = new ArrayList<>();
+        for (int height = first; height < first + count; height++) {
+            blocks.add(block(height));
+        }
+        return blocks;
+    }
+
+    private static Block block(int height) {
+        HashMap<Hash256, Transaction> txList = new HashMap<>();
+        for (int i = 0; i < 5; i++) {
+            String data = "tx" + height + "-" + i;
+            txList.put(hash(data), new Transaction(data));
+        }
+        return new Block(txList, height == 0 ? null : hash("block" + (height - 1)), height);
+    }
+}
@@ -0,0 +1,75 @@
+package node.blockchain;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static node.communication.utils.Hashing.hash;
+import static org.junit.jupiter.api.Assertions.*;
+
+class HashIndexTest {
+    @TempDir
+    Path directory;
+
+    /* Sections of 16 slots, so the table spans thousands of maps once grown */
+    @Test
+    void growsAcrossSections() throws IOException {
+        Path file = directory.resolve("index.idx");
+        HashIndex index = new HashIndex(file, 4, 1 << 20);
+        for (int i = 0; i < 20000; i++) {
+            index.put(hash("key" + i), i);
+        }
+        index.setHeight(7);
+        index.force();
+        index.close();
+
+        index = new HashIndex(file, 4, 1 << 20);
+        assertEquals(7, index.getHeight());
+        for (int i = 0; i < 20000; i++) {
+            assertEquals(i, index.get(hash("key" + i)));
+        }
+        assertEquals(-1, index.get(hash("missing")));
+        assertFalse(Files.exists(directory.resolve("index.idx.tmp")));
+        index.close();
+    }
+
+    @Test
+    void putReplacesTheValue() throws IOException {
+        HashIndex index = new HashIndex(directory.resolve("index.idx"));
+        index.put(hash("key"), 1);
+        index.put(hash("key"), 2);
+        assertEquals(2, index.get(hash("key")));
+        index.close();
+    }
+
+    @Test
+    void fillsUpOnceAtMaxCapacity() throws IOException {
+        HashIndex index = new HashIndex(directory.resolve("index.idx"), 4, 64);
+        for (int i = 0; i < 63; i++) {
+            index.put(hash("key" + i), i);
+        }
+        assertThrows(IOException.class, () -> index.put(hash("one too many"), 0));
+        index.put(hash("key0"), 100);
+        assertEquals(100, index.get(hash("key0")));
+        for (int i = 1; i < 63; i++) {
+            assertEquals(i, index.get(hash("key" + i)));
+        }
+        assertEquals(-1, index.get(hash("missing")));
+        index.close();
+    }
+
+    @Test
+    void damagedFileStartsOver() throws IOException {
+        Path file = directory.resolve("index.idx");
+        Files.write(file, new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12, 13, 14, 15, 16, 17});
+        HashIndex index = new HashIndex(file);
+        assertEquals(0, index.getHeight());
+        assertEquals(-1, index.get(hash("key")));
+        index.put(hash("key"), 5);
+        assertEquals(5, index.get(hash("key")));
+        index.close();
+    }
+}
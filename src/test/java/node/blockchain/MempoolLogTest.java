@@ -0,0 +1,107 @@
+package node.blockchain;
+
+import node.communication.utils.Hash256;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import static node.communication.utils.Hashing.hash;
+import static org.junit.jupiter.api.Assertions.*;
+
+class MempoolLogTest {
+    private final ScheduledExecutorService writer = Executors.newScheduledThreadPool(2);
+
+    @TempDir
+    Path directory;
+
+    @AfterEach
+    void stopWriter() {
+        writer.shutdownNow();
+    }
+
+    @Test
+    void replayReturnsTheLiveTransactionsInOrder() throws IOException {
+        MempoolLog log = open(Long.MAX_VALUE);
+        assertTrue(log.replay().isEmpty());
+        for (int i = 0; i < 10; i++) {
+            log.added(hash("tx" + i), new Transaction("tx" + i));
+        }
+        log.removed(keys(0, 3));
+        log.close();
+
+        LinkedHashMap<Hash256, Transaction> replayed = open(Long.MAX_VALUE).replay();
+        assertEquals(keys(3, 10), new ArrayList<>(replayed.keySet()));
+        assertEquals("tx5", replayed.get(hash("tx5")).getData());
+    }
+
+    @Test
+    void tornRecordIsCutOff() throws IOException {
+        MempoolLog log = open(Long.MAX_VALUE);
+        log.replay();
+        for (int i = 0; i < 5; i++) {
+            log.added(hash("tx" + i), new Transaction("tx" + i));
+        }
+        log.close();
+        long length = Files.size(file());
+        Files.write(file(), new byte[]{0, 0, 0, 40, 1, 2, 3, 4, 3}, StandardOpenOption.APPEND);
+
+        log = open(Long.MAX_VALUE);
+        assertEquals(keys(0, 5), new ArrayList<>(log.replay().keySet()));
+        assertEquals(length, Files.size(file()));
+        log.added(hash("tx5"), new Transaction("tx5"));
+        log.close();
+
+        assertEquals(keys(0, 6), new ArrayList<>(open(Long.MAX_VALUE).replay().keySet()));
+    }
+
+    @Test
+    void compactionKeepsTheLiveTransactions() throws IOException {
+        MempoolLog log = open(1024);
+        log.replay();
+        LinkedHashMap<Hash256, Transaction> live = new LinkedHashMap<>();
+        for (int i = 0; i < 50; i++) {
+            log.added(hash("tx" + i), new Transaction("tx" + i));
+            live.put(hash("tx" + i), new Transaction("tx" + i));
+        }
+        log.removed(keys(0, 40));
+        live.keySet().removeAll(keys(0, 40));
+        assertTrue(log.needsCompaction());
+        log.compact(() -> new LinkedHashMap<>(live));
+        /* Logged after the copy, so it follows the copy into the new file */
+        log.added(hash("tx50"), new Transaction("tx50"));
+        log.close();
+        assertFalse(Files.exists(directory.resolve("mempool.log.tmp")));
+
+        MempoolLog reopened = open(1024);
+        assertEquals(keys(40, 51), new ArrayList<>(reopened.replay().keySet()));
+        assertFalse(reopened.needsCompaction());
+        assertEquals(Files.size(file()), reopened.size());
+        reopened.close();
+    }
+
+    private MempoolLog open(long compactBytes) throws IOException {
+        return new MempoolLog(file(), 256, 5, compactBytes, writer);
+    }
+
+    private Path file() {
+        return directory.resolve("mempool.log");
+    }
+
+    private static List<Hash256> keys(int from, int to) {
+        ArrayList<Hash256> keys = new ArrayList<>();
+        for (int i = from; i < to; i++) {
+            keys.add(hash("tx" + i));
+        }
+        return keys;
+    }
+}
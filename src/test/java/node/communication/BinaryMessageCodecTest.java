@@ -0,0 +1,182 @@
+package node.communication;
+
+import node.blockchain.Block;
+import node.blockchain.BlockContainer;
+import node.blockchain.BlockSkeleton;
+import node.blockchain.BlockTransactions;
+import node.blockchain.ShardBlock;
+import node.blockchain.Transaction;
+import node.communication.utils.Hash256;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.*;
+
+import static node.communication.utils.Hashing.hash;
+import static org.junit.jupiter.api.Assertions.*;
+
+class BinaryMessageCodecTest {
+    private final BinaryMessageCodec codec = new BinaryMessageCodec();
+
+    @Test
+    void everyRequestRoundTripsUnderItsOwnWireId() throws IOException {
+        HashSet<Integer> wireIds = new HashSet<>();
+        for (Message.Request request : Message.Request.values()) {
+            byte[] payload = codec.encode(new Message(request, sampleMetadata(request)));
+            assertTrue(wireIds.add(payload[0] & 0xFF), "Wire id of " + request + " is taken");
+            Message decoded = codec.decode(payload, 0, payload.length);
+            assertEquals(request, decoded.getRequest());
+            assertArrayEquals(payload, codec.encode(decoded), "Metadata of " + request + " changed");
+        }
+        assertFalse(wireIds.contains(0));
+    }
+
+    /* Nodes built before later requests were added still send these ids */
+    @Test
+    void wireIdsStayFixed() throws IOException {
+        assertEquals(1, wireId(new Message(Message.Request.ADD_BLOCK, genesis())));
+        assertEquals(7, wireId(new Message(Message.Request.PING)));
+        assertEquals(16, wireId(new Message(Message.Request.RECEIVE_TRANSACTIONS, new ArrayList<Transaction>())));
+        assertEquals(18, wireId(new Message(Message.Request.TX_BATCH, new ArrayList<Transaction>())));
+        assertEquals(35, wireId(new Message(Message.Request.SUBMIT_TRANSACTION, new Transaction("tx"))));
+        assertEquals(36, wireId(new Message(Message.Request.HANDSHAKE, new Handshake(new Address(9000, "localhost"), null))));
+    }
+
+    @Test
+    void unknownRequestIsRejected() {
+        byte[] payload = {(byte) 200, 0};
+        assertThrows(IOException.class, () -> codec.decode(payload, 0, payload.length));
+    }
+
+    @Test
+    void countLargerThanFrameIsRejected() {
+        byte[] varint = {(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFF, 0x07};
+        byte[][] payloads = {
+                concat(new byte[]{18}, varint),
+                concat(new byte[]{17, 1, 2, 2}, varint),
+                concat(new byte[]{22, 1}, varint),
+                concat(new byte[]{0, 2}, varint)
+        };
+        for (byte[] payload : payloads) {
+            assertThrows(IOException.class, () -> codec.decode(payload, 0, payload.length));
+        }
+    }
+
+    @Test
+    void truncatedPayloadIsRejected() throws IOException {
+        byte[] payload = codec.encode(new Message(Message.Request.ADD_BLOCK, block(1, 5)));
+        for (int length = 1; length < payload.length; length++) {
+            int truncated = length;
+            assertThrows(IOException.class, () -> codec.decode(payload, 0, truncated));
+        }
+    }
+
+    /* The genesis block's missing previous hash is still written as the empty string */
+    @Test
+    void genesisKeepsItsLayout() throws IOException {
+        byte[] encoded = codec.encodeBlock(genesis());
+        assertArrayEquals(new byte[]{0, 2, 0}, encoded);
+        assertNull(codec.decodeBlock(encoded, 0, encoded.length).getPrevBlockHash());
+    }
+
+    @Test
+    void blockKeepsKeysAndTransactions() throws IOException {
+        Block block = block(3, 50);
+        byte[] encoded = codec.encodeBlock(block);
+        Block decoded = codec.decodeBlock(encoded, 0, encoded.length);
+        assertEquals(block.getBlockId(), decoded.getBlockId());
+        assertEquals(block.getPrevBlockHash(), decoded.getPrevBlockHash());
+        assertEquals(block.getTxList().keySet(), decoded.getTxList().keySet());
+        for (Map.Entry<Hash256, Transaction> entry : block.getTxList().entrySet()) {
+            assertEquals(entry.getValue().getData(), decoded.getTxList().get(entry.getKey()).getData());
+        }
+    }
+
+    @Test
+    void hexStringsTravelAsRawKeys() throws IOException {
+        String hex = hash("tx").toHex();
+        Message message = new Message(new ArrayList<>(Arrays.asList(hex, "9001")));
+        byte[] payload = codec.encode(message);
+        assertEquals(Arrays.asList(hex, "9001"), codec.decode(payload, 0, payload.length).getMetadata());
+        assertTrue(payload.length < 32 + 16);
+    }
+
+    private int wireId(Message message) throws IOException {
+        return codec.encode(message)[0] & 0xFF;
+    }
+
+    private static Object sampleMetadata(Message.Request request) {
+        Address address = new Address(9001, "localhost");
+        ArrayList<Hash256> keys = new ArrayList<>(Arrays.asList(hash("a"), hash("b")));
+        ArrayList<Transaction> transactions = new ArrayList<>(Arrays.asList(new Transaction("a"), new Transaction("b")));
+        BlockContainer blockContainer = new BlockContainer(block(2, 3));
+        blockContainer.addSignature("9000");
+        switch (request) {
+            case REQUEST_CONNECTION:
+            case ACCEPT_CONNECTION:
+            case HANDSHAKE:
+                return new Handshake(address, FrameCompression.SUPPORTED);
+            case REJECT_CONNECTION:
+            case DISCONNECT:
+                return address;
+            case ADD_TRANSACTION:
+            case SUBMIT_TRANSACTION:
+                return new Transaction("a");
+            case RECEIVE_MEMPOOL:
+                return new HashSet<>(keys);
+            case REQUEST_TRANSACTION:
+                return keys;
+            case RECEIVE_TRANSACTIONS:
+            case TX_BATCH:
+                return transactions;
+            case INV:
+            case GETDATA:
+                return new Inventory(address, keys);
+            case ADD_BLOCK:
+            case REQUEST_BLOCK:
+                return block(2, 3);
+            case VOTE_BLOCK:
+                return blockContainer;
+            case SHARD_VOTE_BLOCK:
+            case SHARD_ADD_BLOCK:
+                return new ShardBlock(-1, blockContainer);
+            case RECEIVE_SKELETON:
+                return new BlockSkeleton(2, hash("parent"), hash("block"), keys, new ArrayList<>(Arrays.asList("9000")));
+            case GET_BLOCK_TRANSACTIONS:
+                return new BlockTransactions(2, new ArrayList<>(Arrays.asList(0, 1)), null);
+            case BLOCK_TRANSACTIONS:
+                return new BlockTransactions(2, new ArrayList<>(Arrays.asList(0, 1)), transactions);
+            case RECEIVE_MEMPOOL_SKETCH:
+                MempoolSketch sketch = new MempoolSketch(12);
+                sketch.addAll(keys);
+                return sketch;
+            case GET_FULL_BLOCK:
+                return 2;
+            case QUERY_PEERS:
+                return address;
+            case QUERY_TRANSACTION:
+                return hash("a").toHex();
+            default:
+                return null;
+        }
+    }
+
+    private static Block genesis() {
+        return new Block(new HashMap<>(), null, 0);
+    }
+
+    private static Block block(int blockId, int transactions) {
+        HashMap<Hash256, Transaction> txList = new HashMap<>();
+        for (int i = 0; i < transactions; i++) {
+            String data = "tx" + blockId + "-" + i;
+            txList.put(hash(data), new Transaction(data));
+        }
+        return new Block(txList, hash("parent" + blockId), blockId);
+    }
+
+    private static byte[] concat(byte[] first, byte[] second) {
+        byte[] bytes = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, bytes, first.length, second.length);
+        return bytes;
+    }
+}
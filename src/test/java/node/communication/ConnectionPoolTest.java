@@ -0,0 +1,75 @@
+package node.communication;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ConnectionPoolTest {
+    private final BinaryMessageCodec codec = new BinaryMessageCodec();
+    private ServerSocket server;
+
+    @AfterEach
+    void closeServer() throws IOException {
+        server.close();
+    }
+
+    /* A peer which restarted closed our idle link with a FIN, which writing to it would not notice */
+    @Test
+    void idleLinkThePeerClosedIsNotReused() throws Exception {
+        server = new ServerSocket(0);
+        LinkedBlockingQueue<Message> received = new LinkedBlockingQueue<>();
+        Semaphore closed = new Semaphore(0);
+        Thread acceptor = new Thread(() -> {
+            try {
+                while (true) {
+                    try (Socket socket = server.accept()) {
+                        DataInputStream in = new DataInputStream(socket.getInputStream());
+                        in.readFully(new byte[Framing.PREFACE.length + 1]);
+                        OutputStream out = socket.getOutputStream();
+                        out.write(Framing.STREAM_HEADER);
+                        out.flush();
+                        received.add(Framing.readFrame(in, codec));
+                    }
+                    closed.release();
+                }
+            } catch (IOException ignored) {
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+        Address address = new Address(server.getLocalPort(), "localhost");
+        ConnectionPool pool = new ConnectionPool(2, codec, null, 2000);
+
+        pool.sendOneWay(address, new Message(Message.Request.PING));
+        assertTrue(closed.tryAcquire(5, TimeUnit.SECONDS));
+        /* Let the FIN arrive */
+        Thread.sleep(100);
+        pool.sendOneWay(address, new Message(Message.Request.QUERY_STATS));
+
+        assertEquals(Message.Request.PING, received.poll(5, TimeUnit.SECONDS).getRequest());
+        Message second = received.poll(5, TimeUnit.SECONDS);
+        assertNotNull(second, "The second message was written to the closed link");
+        assertEquals(Message.Request.QUERY_STATS, second.getRequest());
+    }
+
+    /* The backlog completes the TCP handshake, but nothing ever answers */
+    @Test
+    void silentPeerTimesOut() throws IOException {
+        server = new ServerSocket(0);
+        Address address = new Address(server.getLocalPort(), "localhost");
+        long start = System.nanoTime();
+        assertThrows(SocketTimeoutException.class, () -> new PeerConnection(address, codec, null, 200));
+        assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(5));
+    }
+}
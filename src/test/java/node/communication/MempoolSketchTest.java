@@ -0,0 +1,115 @@
+package node.communication;
+
+import node.communication.utils.Hash256;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+
+import static node.communication.utils.Hashing.hash;
+import static org.junit.jupiter.api.Assertions.*;
+
+class MempoolSketchTest {
+
+    @Test
+    void decodesTheDifferenceOfTwoMempools() {
+        for (int difference : new int[]{0, 1, 10, 100, 500}) {
+            HashSet<Hash256> shared = keys("shared", 5000);
+            HashSet<Hash256> onlySender = keys("sender", difference / 2);
+            HashSet<Hash256> onlyReceiver = keys("receiver", difference - difference / 2);
+
+            MempoolSketch sender = MempoolSketch.forDifference(difference);
+            sender.addAll(shared);
+            sender.addAll(onlySender);
+            MempoolSketch receiver = new MempoolSketch(sender.getCells());
+            receiver.addAll(shared);
+            receiver.addAll(onlyReceiver);
+            sender.subtract(receiver);
+
+            ArrayList<Hash256> absent = new ArrayList<>();
+            ArrayList<Hash256> extra = new ArrayList<>();
+            assertTrue(sender.decode(absent, extra), "Difference of " + difference);
+            assertEquals(onlySender, new HashSet<>(absent));
+            assertEquals(onlyReceiver, new HashSet<>(extra));
+            assertEquals(onlySender.size(), absent.size());
+            assertEquals(onlyReceiver.size(), extra.size());
+        }
+    }
+
+    @Test
+    void reportsADifferenceTooLargeForTheTable() {
+        MempoolSketch sender = MempoolSketch.forDifference(10);
+        sender.addAll(keys("sender", 2000));
+        sender.subtract(new MempoolSketch(sender.getCells()));
+        assertFalse(sender.decode(new ArrayList<>(), new ArrayList<>()));
+    }
+
+    @Test
+    void survivesTheWire() throws Exception {
+        HashSet<Hash256> keys = keys("wire", 40);
+        MempoolSketch sketch = MempoolSketch.forDifference(40);
+        sketch.addAll(keys);
+        BinaryMessageCodec codec = new BinaryMessageCodec();
+        byte[] payload = codec.encode(new Message(Message.Request.RECEIVE_MEMPOOL_SKETCH, sketch));
+        MempoolSketch received = (MempoolSketch) codec.decode(payload, 0, payload.length).getMetadata();
+
+        received.subtract(new MempoolSketch(received.getCells()));
+        ArrayList<Hash256> absent = new ArrayList<>();
+        assertTrue(received.decode(absent, new ArrayList<>()));
+        assertEquals(keys, new HashSet<>(absent));
+    }
+
+    /* A cell made to look pure with a key which belongs elsewhere used to be peeled forever */
+    @Test
+    void craftedPureCellDoesNotHangDecoding() {
+        MempoolSketch sketch = new MempoolSketch(12);
+        sketch.add(hash("crafted"));
+        int pure = 0;
+        while (sketch.getCounts()[pure] == 0) {
+            pure++;
+        }
+        /* Another cell of the same partition of three */
+        int foreign = pure / 3 * 3 + (pure + 1) % 3;
+        System.arraycopy(sketch.getKeySums(), pure * 4, sketch.getKeySums(), foreign * 4, 4);
+        sketch.getHashSums()[foreign] = sketch.getHashSums()[pure];
+        sketch.getCounts()[foreign] = 1;
+
+        ArrayList<Hash256> absent = new ArrayList<>();
+        assertTimeoutPreemptively(Duration.ofSeconds(2), () -> assertFalse(sketch.decode(absent, new ArrayList<>())));
+        assertTrue(absent.size() <= sketch.getCells());
+    }
+
+    @Test
+    void sketchOfAnInvalidSizeIsRejectedByTheCodec() throws Exception {
+        BinaryMessageCodec codec = new BinaryMessageCodec();
+        byte[] valid = codec.encode(new Message(Message.Request.RECEIVE_MEMPOOL_SKETCH, new MempoolSketch(12)));
+        assertEquals(12, valid[1]);
+        for (int cells : new int[]{13, 8, MempoolSketch.MAX_CELLS + 4}) {
+            ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            payload.write(valid[0]);
+            for (int value = cells; ; value >>>= 7) {
+                if ((value & ~0x7F) == 0) {
+                    payload.write(value);
+                    break;
+                }
+                payload.write((value & 0x7F) | 0x80);
+            }
+            for (int c = 0; c < cells; c++) {
+                payload.write(0);
+            }
+            byte[] bytes = payload.toByteArray();
+            assertThrows(IOException.class, () -> codec.decode(bytes, 0, bytes.length), cells + " cells");
+        }
+    }
+
+    private static HashSet<Hash256> keys(String prefix, int count) {
+        HashSet<Hash256> keys = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            keys.add(hash(prefix + i));
+        }
+        return keys;
+    }
+}